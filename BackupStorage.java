@@ -0,0 +1,375 @@
+package FightLang;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Decorator that writes a consistent point-in-time archive of every client
+// and var while the bot keeps running. It sits right above the backend (and
+// the cold tier), so it sees the writes as they reach disk.
+//
+// While an export runs, the first save, delete or read of a client that has
+// not been exported yet keeps a copy of its stored record (copy-on-write of
+// the pre-image), and the exporter writes that copy instead of the newer
+// state. The archive therefore holds every client as it was when the export
+// started, without pausing saves. With write_behind that is the state of the
+// last flush, the same a crash would leave behind.
+//
+// An archive is a gzip stream of:
+//   [int MAGIC][byte VERSION][long created millis]
+//   records: [byte CLIENT][int length][ClientCodec record]
+//            [byte VAR][int length][name][int length][value]
+//            [byte INT_VAR][int length][name][int value]
+//   [byte END][int client count]
+// Archives are written to a temp file and renamed when complete; gzip checks
+// its own CRC when the archive is read back.
+class BackupStorage implements StorageInterface {
+  private static final int MAGIC = 0x464c424b; // "FLBK"
+  private static final byte VERSION = 1;
+  private static final byte END = 0;
+  private static final byte CLIENT = 1;
+  private static final byte VAR = 2;
+  private static final byte INT_VAR = 3;
+  private static final String PREFIX = "backup-";
+  private static final String EXT = ".fbk.gz";
+  private static final int RESTORE_BATCH = 500;
+  private static final byte[] ABSENT = new byte[0];
+
+  private final StorageInterface delegate;
+  // Pre-images of the current export by chat id; null when none runs.
+  private Map<Integer, byte[]> preImages;
+  private Set<Integer> exported;
+  private Thread scheduler;
+
+  BackupStorage(StorageInterface delegate) {
+    this.delegate = delegate;
+  }
+
+  // Starts a thread that writes an archive to dir every interval and keeps
+  // the newest `keep` of them.
+  synchronized void startBackups(File dir, long intervalMs, int keep) {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = new Thread(new Runnable() {
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            Thread.sleep(intervalMs);
+            backup(dir);
+            deleteOldBackups(dir, keep);
+          } catch (InterruptedException e) {
+            return;
+          } catch (Exception e) {
+            Logger.logException(e);
+          }
+        }
+      }
+    }, "backup");
+    scheduler.setDaemon(true);
+    scheduler.start();
+  }
+
+  // Writes a new archive to dir and returns it.
+  File backup(File dir) throws IOException {
+    Map<String, String> vars;
+    Map<String, Integer> intVars;
+    synchronized (this) {
+      if (preImages != null) {
+        throw new IllegalStateException("A backup is already running");
+      }
+      preImages = new HashMap<>();
+      exported = new HashSet<>();
+      vars = Logger.getAllVars();
+      intVars = Logger.getAllIntVars();
+    }
+    long start = System.currentTimeMillis();
+    dir.mkdirs();
+    File target = new File(dir, PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(start)) + EXT);
+    File tmp = new File(target.getPath() + ".tmp");
+    int count = 0;
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new GZIPOutputStream(new FileOutputStream(tmp), 64 * 1024)))) {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(start);
+        for (Map.Entry<String, String> var : vars.entrySet()) {
+          out.writeByte(VAR);
+          writeBytes(out, var.getKey().getBytes(StandardCharsets.UTF_8));
+          writeBytes(out, var.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        for (Map.Entry<String, Integer> var : intVars.entrySet()) {
+          out.writeByte(INT_VAR);
+          writeBytes(out, var.getKey().getBytes(StandardCharsets.UTF_8));
+          out.writeInt(var.getValue());
+        }
+        try (Stream<Client> clients = delegate.streamAllClients()) {
+          Iterator<Client> it = clients.iterator();
+          while (it.hasNext()) {
+            Client c = it.next();
+            byte[] record;
+            synchronized (this) {
+              if (!exported.add(c.chatId)) {
+                continue;
+              }
+              byte[] pre = preImages.remove(c.chatId);
+              record = pre != null ? pre : ClientCodec.encode(c);
+            }
+            count += writeClient(out, record);
+          }
+        }
+        // Clients the scan missed because they moved or were deleted after
+        // their pre-image was taken.
+        List<byte[]> missed;
+        synchronized (this) {
+          missed = new ArrayList<>(preImages.values());
+        }
+        for (byte[] record : missed) {
+          count += writeClient(out, record);
+        }
+        out.writeByte(END);
+        out.writeInt(count);
+      }
+      try (FileOutputStream sync = new FileOutputStream(tmp, true)) {
+        sync.getFD().sync();
+        StorageStats.fsynced();
+      }
+      Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException e) {
+      tmp.delete();
+      throw e;
+    } finally {
+      synchronized (this) {
+        preImages = null;
+        exported = null;
+      }
+    }
+    StorageStats.backupOp();
+    StorageStats.written(target.length());
+    Logger.log("Backed up " + count + " clients to " + target + " in "
+        + (System.currentTimeMillis() - start) + " ms, " + target.length() + " bytes");
+    return target;
+  }
+
+  // Loads an archive into storage, replacing the clients and vars it holds.
+  // The whole archive is checked before anything is written. Meant for a
+  // stopped bot: "Migrator db restore <file>".
+  static int restore(File archive, StorageInterface storage) throws IOException {
+    read(archive, null);
+    return read(archive, storage);
+  }
+
+  static void deleteOldBackups(File dir, int keep) {
+    File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(EXT));
+    if (files == null || files.length <= keep) {
+      return;
+    }
+    Arrays.sort(files);
+    for (int i = 0; i < files.length - keep; i++) {
+      if (files[i].delete()) {
+        StorageStats.backupOp();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void saveClients(Client... clients) {
+    for (Client client : clients) {
+      preserve(client.chatId);
+    }
+    delegate.saveClients(clients);
+  }
+
+  @Override
+  public synchronized void saveClient(Client client) {
+    preserve(client.chatId);
+    delegate.saveClient(client);
+  }
+
+  @Override
+  public synchronized boolean saveIfVersion(Client client, int expectedVersion) {
+    preserve(client.chatId);
+    return delegate.saveIfVersion(client, expectedVersion);
+  }
+
+  @Override
+  public synchronized void deleteClient(int chatId) {
+    preserve(chatId);
+    delegate.deleteClient(chatId);
+  }
+
+  @Override
+  public Stream<Client> streamClients() {
+    return delegate.streamClients();
+  }
+
+  @Override
+  public Stream<Client> streamAllClients() {
+    return delegate.streamAllClients();
+  }
+
+  @Override
+  public void forEachIndexedClient(ClientDo doable) {
+    delegate.forEachIndexedClient(doable);
+  }
+
+  // A read may move a client between tiers below this store, out of the
+  // scan's way, so it takes the pre-image as well.
+  @Override
+  public synchronized Client getClientByChatId(int chatId) {
+    Client client = delegate.getClientByChatId(chatId);
+    if (client != null && preImages != null
+        && !exported.contains(chatId) && !preImages.containsKey(chatId)) {
+      preImages.put(chatId, ClientCodec.encode(client));
+    }
+    return client;
+  }
+
+  @Override
+  public Client[] getClientsByChatIds(Set<Integer> chatIds) {
+    Client[] result = new Client[chatIds.size()];
+    int i = 0;
+    for (int chatId : chatIds) {
+      result[i] = getClientByChatId(chatId);
+      i++;
+    }
+    return result;
+  }
+
+  @Override
+  public int getMaxUpdateId() {
+    return delegate.getMaxUpdateId();
+  }
+
+  @Override
+  public void saveMaxUpdateId(int id) {
+    delegate.saveMaxUpdateId(id);
+  }
+
+  @Override
+  public void flush() {
+    delegate.flush();
+  }
+
+  private void preserve(int chatId) {
+    if (preImages == null || exported.contains(chatId) || preImages.containsKey(chatId)) {
+      return;
+    }
+    Client stored = delegate.getClientByChatId(chatId);
+    preImages.put(chatId, stored == null ? ABSENT : ClientCodec.encode(stored));
+  }
+
+  private static int writeClient(DataOutputStream out, byte[] record) throws IOException {
+    if (record == ABSENT) {
+      return 0; // created after the export started
+    }
+    out.writeByte(CLIENT);
+    writeBytes(out, record);
+    return 1;
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > LogStorage.MAX_RECORD_SIZE * 64) {
+      throw new IOException("Corrupt backup record length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  // Reads the archive and, unless storage is null, applies it. Throws if the
+  // archive is truncated or corrupt.
+  private static int read(File archive, StorageInterface storage) throws IOException {
+    int count = 0;
+    List<Client> batch = new ArrayList<>(RESTORE_BATCH);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new GZIPInputStream(new FileInputStream(archive), 64 * 1024)))) {
+      StorageStats.opened();
+      if (in.readInt() != MAGIC) {
+        throw new IOException(archive + " is not a backup");
+      }
+      byte version = in.readByte();
+      if (version != VERSION) {
+        throw new IOException("Unsupported backup version " + version);
+      }
+      in.readLong();
+      while (true) {
+        byte type = in.readByte();
+        if (type == END) {
+          if (in.readInt() != count) {
+            throw new IOException("Client count mismatch in " + archive);
+          }
+          break;
+        }
+        if (type == CLIENT) {
+          Client client = ClientCodec.decode(readBytes(in));
+          count++;
+          if (storage != null) {
+            batch.add(client);
+            if (batch.size() == RESTORE_BATCH) {
+              storage.saveClients(batch.toArray(new Client[0]));
+              batch.clear();
+            }
+          }
+        } else if (type == VAR) {
+          String name = new String(readBytes(in), StandardCharsets.UTF_8);
+          String value = new String(readBytes(in), StandardCharsets.UTF_8);
+          if (storage != null) {
+            Logger.saveVar(name, value);
+          }
+        } else if (type == INT_VAR) {
+          String name = new String(readBytes(in), StandardCharsets.UTF_8);
+          int value = in.readInt();
+          if (storage != null) {
+            Logger.saveIntVar(name, value);
+          }
+        } else {
+          throw new IOException("Unknown backup record type " + type);
+        }
+      }
+      // GZIPInputStream checks the trailer CRC once the end is reached.
+      if (in.read() != -1) {
+        throw new IOException("Trailing data in " + archive);
+      }
+    } catch (EOFException | IllegalArgumentException e) {
+      throw new IOException("Truncated or corrupt backup " + archive, e);
+    }
+    if (storage != null && !batch.isEmpty()) {
+      storage.saveClients(batch.toArray(new Client[0]));
+    }
+    StorageStats.read(archive.length());
+    return count;
+  }
+}
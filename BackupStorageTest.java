@@ -0,0 +1,121 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.stream.Stream;
+
+/**
+ * Tests for online backups: a point-in-time archive despite saves during the
+ * export, restore into an empty database, rejection of a truncated archive
+ * and rotation of old archives.
+ */
+public class BackupStorageTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testPointInTimeBackupAndRestore();
+        allTestsPassed &= testTruncatedArchiveRejected();
+        allTestsPassed &= testOldBackupsDeleted();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome backup tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testPointInTimeBackupAndRestore() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("backup");
+        final BackupStorage[] backup = new BackupStorage[1];
+        final boolean[] touched = {false};
+        // Saves land in the middle of the export, right after the first
+        // client was read.
+        Storage files = new Storage() {
+            @Override
+            public Stream<Client> streamClients() {
+                return super.streamClients().peek(c -> {
+                    if (!touched[0]) {
+                        touched[0] = true;
+                        Client changed = new Client(2, "Changed");
+                        changed.exp = 999;
+                        backup[0].saveClient(changed);
+                        backup[0].saveClient(new Client(100, "Newcomer"));
+                        backup[0].deleteClient(3);
+                    }
+                });
+            }
+        };
+        backup[0] = new BackupStorage(files);
+        for (int i = 1; i <= 20; i++) {
+            Client c = new Client(i, "Player" + i);
+            c.exp = i;
+            backup[0].saveClient(c);
+        }
+        backup[0].saveMaxUpdateId(77);
+        Logger.saveVar("someVar", "some value");
+        File archive = backup[0].backup(new File(dir, "backups"));
+        testPassed &= assertTrue(touched[0], "Saves should happen during the export");
+        testPassed &= assertEquals(999, files.getClientByChatId(2).exp, "Live store should have the new state");
+
+        File restoredDir = createTempDb("backup");
+        Storage restored = new Storage();
+        testPassed &= assertEquals(20, BackupStorage.restore(archive, restored), "Archive should hold every client of the start");
+        restored.flush();
+        testPassed &= assertEquals(2, restored.getClientByChatId(2).exp, "Client saved during the export should keep its old state");
+        testPassed &= assertTrue(restored.getClientByChatId(100) == null, "Client created during the export should be left out");
+        testPassed &= assertEquals("Player3", restored.getClientByChatId(3).username, "Client deleted during the export should be kept");
+        testPassed &= assertEquals(77, restored.getMaxUpdateId(), "Int vars should be restored");
+        testPassed &= assertEquals("some value", Logger.getVar("someVar"), "Vars should be restored");
+
+        deleteRecursively(restoredDir);
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testTruncatedArchiveRejected() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("backup");
+        BackupStorage backup = new BackupStorage(new Storage());
+        for (int i = 1; i <= 200; i++) {
+            backup.saveClient(new Client(i, "Player" + i));
+        }
+        File archive = backup.backup(new File(dir, "backups"));
+        try (RandomAccessFile raf = new RandomAccessFile(archive, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+
+        File restoredDir = createTempDb("backup");
+        MockStorage restored = new MockStorage();
+        try {
+            BackupStorage.restore(archive, restored);
+            testPassed &= assertTrue(false, "Truncated archive should be rejected");
+        } catch (IOException e) {
+            testPassed &= assertTrue(true, "Truncated archive should be rejected");
+        }
+        testPassed &= assertEquals(0, restored.getAllClients().size(), "Nothing should be restored from a bad archive");
+
+        deleteRecursively(restoredDir);
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testOldBackupsDeleted() throws Exception {
+        boolean testPassed = true;
+        File dir = Files.createTempDirectory("backups").toFile();
+        for (String name : new String[] {"backup-20260101-000000.fbk.gz",
+                "backup-20260102-000000.fbk.gz", "backup-20260103-000000.fbk.gz", "unrelated.txt"}) {
+            new File(dir, name).createNewFile();
+        }
+        BackupStorage.deleteOldBackups(dir, 2);
+        testPassed &= assertTrue(!new File(dir, "backup-20260101-000000.fbk.gz").exists(), "Oldest archive should be deleted");
+        testPassed &= assertTrue(new File(dir, "backup-20260103-000000.fbk.gz").exists(), "Newest archive should be kept");
+        testPassed &= assertTrue(new File(dir, "unrelated.txt").exists(), "Other files should be left alone");
+        deleteRecursively(dir);
+        return testPassed;
+    }
+}
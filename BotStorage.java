@@ -0,0 +1,235 @@
+package FightLang;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+// Decorator that keeps bots (negative chat ids) in a bounded in-memory table
+// instead of the underlying store. A bot only lives for one fight: it is
+// created in assignBotsIfTimeout and dropped when it is saved back as idle at
+// the end of the fight, so PvE fights write only the player.
+//
+// Like WriteBehindStorage, reads hand out the stored instance. Bots written
+// by older versions are still read from the underlying store. With a
+// snapshot file, the table is written there on flush() when it changed and
+// loaded again on start, so fights in progress survive a restart.
+class BotStorage implements StorageInterface {
+  private final StorageInterface delegate;
+  private final int maxBots;
+  private final File snapshot;
+  private final Map<Integer, Client> bots = new LinkedHashMap<>();
+  private boolean changed = false;
+  private long evicted = 0;
+
+  BotStorage(StorageInterface delegate, int maxBots, File snapshot) {
+    this.delegate = delegate;
+    this.maxBots = maxBots;
+    this.snapshot = snapshot;
+    if (snapshot != null && snapshot.exists()) {
+      loadSnapshot();
+    }
+  }
+
+  @Override
+  public void saveClients(Client... clients) {
+    List<Client> players = new ArrayList<>(clients.length);
+    for (Client client : clients) {
+      if (client.chatId < 0) {
+        saveBot(client);
+      } else {
+        players.add(client);
+      }
+    }
+    if (players.size() == clients.length) {
+      delegate.saveClients(clients);
+    } else if (!players.isEmpty()) {
+      delegate.saveClients(players.toArray(new Client[0]));
+    }
+  }
+
+  @Override
+  public void saveClient(Client client) {
+    if (client.chatId < 0) {
+      saveBot(client);
+    } else {
+      delegate.saveClient(client);
+    }
+  }
+
+  @Override
+  public Stream<Client> streamClients() {
+    List<Client> snapshotOfBots;
+    synchronized (this) {
+      snapshotOfBots = new ArrayList<>(bots.values());
+    }
+    return Stream.concat(delegate.streamClients(), snapshotOfBots.stream());
+  }
+
+  @Override
+  public Stream<Client> streamAllClients() {
+    List<Client> snapshotOfBots;
+    synchronized (this) {
+      snapshotOfBots = new ArrayList<>(bots.values());
+    }
+    return Stream.concat(delegate.streamAllClients(), snapshotOfBots.stream());
+  }
+
+  @Override
+  public void forEachIndexedClient(ClientDo doable) {
+    delegate.forEachIndexedClient(doable);
+  }
+
+  @Override
+  public Client getClientByChatId(int chatId) {
+    if (chatId < 0) {
+      synchronized (this) {
+        Client bot = bots.get(chatId);
+        if (bot != null) {
+          return bot;
+        }
+      }
+    }
+    return delegate.getClientByChatId(chatId);
+  }
+
+  @Override
+  public Client[] getClientsByChatIds(Set<Integer> chatIds) {
+    Client[] result = new Client[chatIds.size()];
+    int i = 0;
+    for (int chatId : chatIds) {
+      result[i] = getClientByChatId(chatId);
+      i++;
+    }
+    return result;
+  }
+
+  @Override
+  public void deleteClient(int chatId) {
+    if (chatId < 0) {
+      synchronized (this) {
+        if (bots.remove(chatId) != null) {
+          changed = true;
+          return;
+        }
+      }
+    }
+    delegate.deleteClient(chatId);
+  }
+
+  @Override
+  public int getMaxUpdateId() {
+    return delegate.getMaxUpdateId();
+  }
+
+  @Override
+  public void saveMaxUpdateId(int id) {
+    delegate.saveMaxUpdateId(id);
+  }
+
+  @Override
+  public void flush() {
+    delegate.flush();
+    List<Client> toWrite = null;
+    synchronized (this) {
+      if (snapshot != null && changed) {
+        toWrite = new ArrayList<>(bots.values());
+        changed = false;
+      }
+    }
+    if (toWrite != null) {
+      writeSnapshot(toWrite);
+    }
+  }
+
+  synchronized int getBotCount() {
+    return bots.size();
+  }
+
+  // Bots dropped to stay within max_bots while their fight was still on.
+  synchronized long getEvictedCount() {
+    return evicted;
+  }
+
+  private synchronized void saveBot(Client bot) {
+    changed = true;
+    if (bot.status == Client.Status.IDLE) {
+      bots.remove(bot.chatId);
+      return;
+    }
+    bots.put(bot.chatId, bot);
+    Iterator<Integer> oldest = bots.keySet().iterator();
+    while (bots.size() > maxBots) {
+      int chatId = oldest.next();
+      oldest.remove();
+      evicted++;
+      Logger.log("Bot table full, dropping bot " + chatId);
+    }
+  }
+
+  // Snapshot layout: [int count] then per bot [int length][int crc32]
+  // [int chatId][ClientCodec payload], the record layout of LogStorage.
+  private void writeSnapshot(List<Client> toWrite) {
+    List<byte[]> payloads = new ArrayList<>(toWrite.size());
+    int total = 4;
+    for (Client bot : toWrite) {
+      byte[] payload = ClientCodec.encode(bot);
+      payloads.add(payload);
+      total += LogStorage.HEADER_SIZE + payload.length;
+    }
+    ByteBuffer buf = ByteBuffer.allocate(total);
+    buf.putInt(toWrite.size());
+    for (int i = 0; i < toWrite.size(); i++) {
+      byte[] payload = payloads.get(i);
+      buf.putInt(payload.length);
+      buf.putInt(LogStorage.checksum(toWrite.get(i).chatId, payload));
+      buf.putInt(toWrite.get(i).chatId);
+      buf.put(payload);
+    }
+    File tmp = new File(snapshot.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      out.write(buf.array());
+    } catch (IOException e) {
+      Logger.logException(e);
+      return;
+    }
+    try {
+      Files.move(tmp.toPath(), snapshot.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+  }
+
+  private void loadSnapshot() {
+    try {
+      ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(snapshot.toPath()));
+      int count = buf.getInt();
+      for (int i = 0; i < count; i++) {
+        int length = buf.getInt();
+        int crc = buf.getInt();
+        int chatId = buf.getInt();
+        byte[] payload = new byte[length];
+        buf.get(payload);
+        if (LogStorage.checksum(chatId, payload) != crc) {
+          Logger.log("Skipping corrupt bot " + chatId + " in " + snapshot);
+          continue;
+        }
+        bots.put(chatId, ClientCodec.decode(payload));
+      }
+    } catch (IOException | RuntimeException e) {
+      Logger.logException(e);
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * Tests for the in-memory bot table: routing of negative chat ids,
+ * fight-scoped lifetime, the size bound, the optional snapshot and the
+ * engine losing a bot in the middle of a fight.
+ */
+public class BotStorageTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testBotsStayOutOfDelegate();
+        allTestsPassed &= testBotDroppedWhenFightEnds();
+        allTestsPassed &= testTableIsBounded();
+        allTestsPassed &= testSnapshotSurvivesRestart();
+        allTestsPassed &= testEngineRestartMidFight();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome bot storage tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static Client fightingBot(Client player) {
+        Client bot = new Client(-player.chatId, player);
+        bot.status = Client.Status.FIGHTING;
+        bot.fightingChatId = player.chatId;
+        player.status = Client.Status.FIGHTING;
+        player.fightingChatId = bot.chatId;
+        return bot;
+    }
+
+    private static boolean testBotsStayOutOfDelegate() {
+        boolean testPassed = true;
+        MockStorage delegate = new MockStorage();
+        BotStorage storage = new BotStorage(delegate, 100, null);
+
+        Client player = new Client(1, "Player");
+        Client bot = fightingBot(player);
+        storage.saveClients(bot, player);
+        testPassed &= assertTrue(delegate.getClientByChatId(-1) == null, "Bot should not reach the underlying store");
+        testPassed &= assertTrue(delegate.getClientByChatId(1) == player, "Player should be stored as usual");
+        testPassed &= assertTrue(storage.getClientByChatId(-1) == bot, "Bot should be served from memory");
+
+        Client legacy = new Client(-7, player);
+        delegate.saveClient(legacy);
+        testPassed &= assertTrue(storage.getClientByChatId(-7) == legacy, "Bots stored by older versions should still be found");
+        return testPassed;
+    }
+
+    private static boolean testBotDroppedWhenFightEnds() {
+        boolean testPassed = true;
+        BotStorage storage = new BotStorage(new MockStorage(), 100, null);
+
+        Client player = new Client(1, "Player");
+        Client bot = fightingBot(player);
+        storage.saveClients(bot, player);
+        testPassed &= assertEquals(1, storage.getBotCount(), "Fighting bot should be kept");
+
+        bot.status = Client.Status.IDLE;
+        player.status = Client.Status.IDLE;
+        storage.saveClients(player, bot);
+        testPassed &= assertEquals(0, storage.getBotCount(), "Bot should be dropped once its fight is over");
+        testPassed &= assertTrue(storage.getClientByChatId(-1) == null, "Dropped bot should not be found");
+        return testPassed;
+    }
+
+    private static boolean testTableIsBounded() {
+        boolean testPassed = true;
+        BotStorage storage = new BotStorage(new MockStorage(), 2, null);
+        for (int i = 1; i <= 3; i++) {
+            storage.saveClient(fightingBot(new Client(i, "Player" + i)));
+        }
+        testPassed &= assertEquals(2, storage.getBotCount(), "Table should not grow past its bound");
+        testPassed &= assertEquals(1, (int) storage.getEvictedCount(), "Eviction should be counted");
+        testPassed &= assertTrue(storage.getClientByChatId(-1) == null, "Oldest bot should be evicted first");
+        return testPassed;
+    }
+
+    private static boolean testSnapshotSurvivesRestart() throws Exception {
+        boolean testPassed = true;
+        File dir = Files.createTempDirectory("botstorage").toFile();
+        File snapshot = new File(dir, "bots.snap");
+
+        BotStorage storage = new BotStorage(new MockStorage(), 100, snapshot);
+        Client bot = fightingBot(new Client(5, "Player"));
+        bot.hp = 3;
+        storage.saveClient(bot);
+        storage.flush();
+
+        BotStorage restarted = new BotStorage(new MockStorage(), 100, snapshot);
+        Client loaded = restarted.getClientByChatId(-5);
+        testPassed &= assertTrue(loaded != null, "Bot should be restored from the snapshot");
+        if (loaded != null) {
+            testPassed &= assertEquals(3, loaded.hp, "Bot state should be restored");
+            testPassed &= assertEquals(bot.username, loaded.username, "Bot name should be restored");
+        }
+
+        snapshot.delete();
+        dir.delete();
+        return testPassed;
+    }
+
+    private static boolean testEngineRestartMidFight() {
+        boolean testPassed = true;
+        MockStorage delegate = new MockStorage();
+        BotStorage storage = new BotStorage(delegate, 100, null);
+        int now = (int) (System.currentTimeMillis() / 1000L);
+        int[] players = {1, 2, 3};
+        for (int chatId : players) {
+            Client player = new Client(chatId, "Player" + chatId);
+            Client bot = fightingBot(player);
+            player.lastFightActivitySince = chatId == 3 ? now - 3600 : now;
+            storage.saveClients(bot, player);
+        }
+
+        // Restart: the players are still fighting, their bots are gone.
+        storage = new BotStorage(delegate, 100, null);
+        MockTelegram telegram = new MockTelegram();
+        GameEngine engine = new GameEngine(storage, telegram);
+
+        telegram.simulateUserMessage(1, "Player1", "Erfolg");
+        engine.processUpdate(telegram.getUpdates(1)[0]);
+        telegram.clearUpdates();
+        telegram.simulateUserMessage(2, "Player2", "/retreat42");
+        engine.processUpdate(telegram.getUpdates(1)[0]);
+        try {
+            Thread.sleep(1100); // let the overdue fight timeout fire
+        } catch (InterruptedException e) {
+            // Ignore
+        }
+        engine.runBackgroundTasks();
+
+        for (int chatId : players) {
+            Client player = storage.getClientByChatId(chatId);
+            testPassed &= assertTrue(player.status == Client.Status.IDLE, "Player " + chatId + " should leave the lost fight");
+            testPassed &= assertTrue(telegram.hasMessageForChatContaining(chatId, "Dein Gegner ist verschwunden"),
+                "Player " + chatId + " should be told the fight is over");
+        }
+        return testPassed;
+    }
+}
@@ -0,0 +1,96 @@
+package FightLang;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Striped locks that let updates of different chats run on several threads.
+// A fight changes two clients, so an update holds the stripes of both chats.
+// Blocking acquisition always takes stripes in ascending order; anything else
+// is taken with tryLock and given up when busy, so two players hitting each
+// other at the same moment cannot deadlock.
+class ChatLocks {
+  private final ReentrantLock[] stripes;
+
+  ChatLocks(int stripes) {
+    this.stripes = new ReentrantLock[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new ReentrantLock();
+    }
+  }
+
+  Held lock(int... chatIds) {
+    int[] order = new int[chatIds.length];
+    for (int i = 0; i < chatIds.length; i++) {
+      order[i] = stripe(chatIds[i]);
+    }
+    Arrays.sort(order);
+    Held held = new Held();
+    for (int i = 0; i < order.length; i++) {
+      if (i > 0 && order[i] == order[i - 1]) {
+        continue;
+      }
+      stripes[order[i]].lock();
+      held.add(order[i]);
+    }
+    return held;
+  }
+
+  private int stripe(int chatId) {
+    return Math.floorMod(chatId * 0x9E3779B9, stripes.length);
+  }
+
+  class Held implements AutoCloseable {
+    private int[] held = new int[2];
+    private int count = 0;
+
+    boolean covers(int chatId) {
+      int s = stripe(chatId);
+      for (int i = 0; i < count; i++) {
+        if (held[i] == s) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // Adds a chat without waiting; false if another thread holds its stripe.
+    boolean tryAdd(int chatId) {
+      if (covers(chatId)) {
+        return true;
+      }
+      int s = stripe(chatId);
+      if (!stripes[s].tryLock()) {
+        return false;
+      }
+      add(s);
+      return true;
+    }
+
+    // Lets go of a chat taken with tryAdd. Only for chats whose stripe was
+    // not covered before, or the stripe of another held chat goes with it.
+    void release(int chatId) {
+      int s = stripe(chatId);
+      for (int i = 0; i < count; i++) {
+        if (held[i] == s) {
+          held[i] = held[--count];
+          stripes[s].unlock();
+          return;
+        }
+      }
+    }
+
+    private void add(int s) {
+      if (count == held.length) {
+        held = Arrays.copyOf(held, count * 2);
+      }
+      held[count++] = s;
+    }
+
+    @Override
+    public void close() {
+      while (count > 0) {
+        stripes[held[--count]].unlock();
+      }
+    }
+  }
+}
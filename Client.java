@@ -25,6 +25,9 @@ class Client {
   int readyToFightSince = 0;
   int lastFightActivitySince = 0;
   int lastActivity = 0;
+  // Successful tasks on the game day of lastDailyCleanup, the time the
+  // counter was last changed. A count from an earlier game day reads as 0,
+  // so the daily reset needs no pass over all clients.
   private int successToday = 0;
   private int lastDailyCleanup = 0;
 
@@ -54,9 +57,16 @@ class Client {
   int luckPotionExpiry = 0;      // Unix timestamp when luck effect expires  
   int luckPotionBonus = 0;       // Current luck bonus from potions
 
+  // Bumped by every save, see StorageInterface.saveIfVersion.
+  int version = 0;
+  // Last migration step applied to this record, see Migrations. Records
+  // stored before migrations were tracked read as 0.
+  int schemaVersion = 0;
+
   Client(int chatId, String username) {
     this.chatId = chatId;
     this.username = username;
+    this.schemaVersion = Migrations.LATEST;
     hp = getMaxHp();
   }
   
@@ -68,6 +78,7 @@ class Client {
   // Used for creating bots
   Client(int chatId, Client opponent) {
     this.chatId = chatId;
+    this.schemaVersion = Migrations.LATEST;
     if (opponent.level == 1) {
       vitality = 1;
       strength = 1;
@@ -213,37 +224,85 @@ class Client {
     return desc.toString();
   }
 
+  // Game days start at dailyResetHour UTC (EngineConfig.daily_reset_hour).
+  static volatile int dailyResetHour = 4;
+
+  static int gameDay(int time) {
+    return Math.floorDiv(time - dailyResetHour * 60 * 60, 24 * 60 * 60);
+  }
+
+  static int now() {
+    return (int) (System.currentTimeMillis() / 1000L);
+  }
+
   public int getSuccessToday() {
-    return successToday;
+    return getSuccessToday(now());
+  }
+
+  int getSuccessToday(int now) {
+    return gameDay(lastDailyCleanup) == gameDay(now) ? successToday : 0;
   }
 
   public void setSuccessToday(int val) {
     successToday = val;
+    lastDailyCleanup = now();
     if (storage != null) {
       storage.saveClient(this);
     }
   }
 
   public void incSuccessToday() {
-    successToday++;
+    int now = now();
+    successToday = getSuccessToday(now) + 1;
+    lastDailyCleanup = now;
     if (storage != null) {
       storage.saveClient(this);
     }
   }
 
+  // The counter as stored, possibly from an earlier day; for codecs.
+  int getStoredSuccessToday() {
+    return successToday;
+  }
+
+  void restoreSuccessToday(int count, int stamp) {
+    successToday = count;
+    lastDailyCleanup = stamp;
+  }
+
   public int getLastDailyCleanup() {
     return lastDailyCleanup;
   }
 
-  public void setLastDailyCleanup(int val) {
-    lastDailyCleanup = val;
-    if (storage != null) {
-      storage.saveClient(this);
+  public int getMaxHp() {
+    return vitality * 2 + 5;
+  }
+
+  // Regeneration is not stored tick by tick: hp is the value as of
+  // lastRestore, and outside fights one more hp is due every
+  // REGEN_INTERVAL_SECONDS after it. regenerate() brings hp up to `now`,
+  // keeping the progress towards the next point; returns true if hp grew.
+  boolean regenerate(int now) {
+    if (status == Status.FIGHTING || hp >= getMaxHp() || now <= lastRestore) {
+      return false;
     }
+    int gained = (now - lastRestore) / Game.REGEN_INTERVAL_SECONDS;
+    if (gained == 0) {
+      return false;
+    }
+    if (gained >= getMaxHp() - hp) {
+      hp = getMaxHp();
+      lastRestore = now;
+    } else {
+      hp += gained;
+      lastRestore += gained * Game.REGEN_INTERVAL_SECONDS;
+    }
+    return true;
   }
 
-  public int getMaxHp() {
-    return vitality * 2 + 5;
+  // When regeneration alone brings hp back to full.
+  int fullyRecoveredAt() {
+    return lastRestore + Math.max(0, getMaxHp() - hp) * Game.REGEN_INTERVAL_SECONDS;
   }
 
   public int getMaxDamage() {
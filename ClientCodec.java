@@ -0,0 +1,208 @@
+package FightLang;
+
+import com.google.gson.Gson;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Hand-written binary encoding of Client, used instead of Gson where the
+// storage format is ours to choose. Ints are written as zig-zag varints, so
+// most fields take a single byte and timestamps five.
+//
+// A record starts with a schema version byte. New fields are appended at the
+// end under a new version; decode() keeps reading every older version. A
+// record that starts with '{' is a legacy JSON record and goes through Gson,
+// so stores can switch to this codec and convert records lazily as they are
+// saved again.
+class ClientCodec {
+  static final byte VERSION = 3;
+  private static final Gson g = new Gson();
+
+  static byte[] encode(Client c) {
+    Writer w = new Writer(64 + (c.username == null ? 0 : c.username.length() * 3));
+    w.writeByte(VERSION);
+    w.writeInt(c.chatId);
+    w.writeString(c.username);
+    w.writeByte((byte) c.status.ordinal());
+    w.writeByte((byte) (c.nameChangeHintSent ? 1 : 0));
+    w.writeInt(c.fightingChatId);
+    w.writeInt(c.lastRestore);
+    w.writeInt(c.readyToFightSince);
+    w.writeInt(c.lastFightActivitySince);
+    w.writeInt(c.lastActivity);
+    w.writeInt(c.getStoredSuccessToday());
+    w.writeInt(c.getLastDailyCleanup());
+    w.writeInt(c.totalFights);
+    w.writeInt(c.fightsWon);
+    w.writeInt(c.exp);
+    w.writeInt(c.level);
+    w.writeInt(c.strength);
+    w.writeInt(c.vitality);
+    w.writeInt(c.luck);
+    w.writeInt(c.levelPoints);
+    w.writeInt(c.hp);
+    w.writeInt(c.offeredItem == null ? 0 : c.offeredItem.ordinal() + 1);
+    w.writeInt(c.requestedItem == null ? 0 : c.requestedItem.ordinal() + 1);
+    w.writeInt(c.strengthPotionExpiry);
+    w.writeInt(c.strengthPotionBonus);
+    w.writeInt(c.luckPotionExpiry);
+    w.writeInt(c.luckPotionBonus);
+    w.writeInt(c.inventory.size());
+    for (Map.Entry<Integer, Integer> item : c.inventory.entrySet()) {
+      w.writeInt(item.getKey());
+      w.writeInt(item.getValue() == null ? 0 : item.getValue());
+    }
+    // Version 2
+    w.writeInt(c.version);
+    // Version 3
+    w.writeInt(c.schemaVersion);
+    return w.toByteArray();
+  }
+
+  static Client decode(byte[] data) {
+    return decode(data, 0, data.length);
+  }
+
+  static Client decode(byte[] data, int offset, int length) {
+    if (length > 0 && data[offset] == '{') {
+      return g.fromJson(new String(data, offset, length, StandardCharsets.UTF_8), Client.class);
+    }
+    Reader r = new Reader(data, offset, length);
+    byte version = r.readByte();
+    if (version < 1 || version > VERSION) {
+      throw new IllegalArgumentException("Unsupported client record version " + version);
+    }
+    Client c = new Client(r.readInt(), r.readString());
+    c.status = Client.Status.values()[r.readByte()];
+    c.nameChangeHintSent = r.readByte() == 1;
+    c.fightingChatId = r.readInt();
+    c.lastRestore = r.readInt();
+    c.readyToFightSince = r.readInt();
+    c.lastFightActivitySince = r.readInt();
+    c.lastActivity = r.readInt();
+    int successToday = r.readInt();
+    c.restoreSuccessToday(successToday, r.readInt());
+    c.totalFights = r.readInt();
+    c.fightsWon = r.readInt();
+    c.exp = r.readInt();
+    c.level = r.readInt();
+    c.strength = r.readInt();
+    c.vitality = r.readInt();
+    c.luck = r.readInt();
+    c.levelPoints = r.readInt();
+    c.hp = r.readInt();
+    int offered = r.readInt();
+    int requested = r.readInt();
+    c.offeredItem = offered == 0 ? null : Game.ITEM_VALUES[offered - 1];
+    c.requestedItem = requested == 0 ? null : Game.ITEM_VALUES[requested - 1];
+    c.strengthPotionExpiry = r.readInt();
+    c.strengthPotionBonus = r.readInt();
+    c.luckPotionExpiry = r.readInt();
+    c.luckPotionBonus = r.readInt();
+    int items = r.readInt();
+    for (int i = 0; i < items; i++) {
+      int item = r.readInt();
+      c.inventory.put(item, r.readInt());
+    }
+    if (version >= 2) {
+      c.version = r.readInt();
+    }
+    // Older records predate migration tracking.
+    c.schemaVersion = version >= 3 ? r.readInt() : 0;
+    return c;
+  }
+
+  private static class Writer {
+    private byte[] buf;
+    private int pos = 0;
+
+    Writer(int capacity) {
+      buf = new byte[capacity];
+    }
+
+    void writeByte(byte b) {
+      ensure(1);
+      buf[pos++] = b;
+    }
+
+    void writeInt(int value) {
+      ensure(5);
+      int v = (value << 1) ^ (value >> 31);
+      while ((v & ~0x7F) != 0) {
+        buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      buf[pos++] = (byte) v;
+    }
+
+    void writeString(String s) {
+      if (s == null) {
+        writeInt(-1);
+        return;
+      }
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      writeInt(bytes.length);
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, buf, pos, bytes.length);
+      pos += bytes.length;
+    }
+
+    byte[] toByteArray() {
+      byte[] result = new byte[pos];
+      System.arraycopy(buf, 0, result, 0, pos);
+      return result;
+    }
+
+    private void ensure(int n) {
+      if (pos + n > buf.length) {
+        byte[] bigger = new byte[Math.max(buf.length * 2, pos + n)];
+        System.arraycopy(buf, 0, bigger, 0, pos);
+        buf = bigger;
+      }
+    }
+  }
+
+  private static class Reader {
+    private final byte[] buf;
+    private final int end;
+    private int pos;
+
+    Reader(byte[] buf, int offset, int length) {
+      this.buf = buf;
+      this.pos = offset;
+      this.end = offset + length;
+    }
+
+    byte readByte() {
+      if (pos >= end) {
+        throw new IllegalArgumentException("Truncated client record");
+      }
+      return buf[pos++];
+    }
+
+    int readInt() {
+      int v = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        byte b = readByte();
+        v |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return (v >>> 1) ^ -(v & 1);
+        }
+      }
+      throw new IllegalArgumentException("Malformed varint in client record");
+    }
+
+    String readString() {
+      int length = readInt();
+      if (length < 0) {
+        return null;
+      }
+      if (pos + length > end) {
+        throw new IllegalArgumentException("Truncated client record");
+      }
+      String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+      pos += length;
+      return s;
+    }
+  }
+}
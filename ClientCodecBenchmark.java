@@ -0,0 +1,84 @@
+package FightLang;
+
+import com.google.gson.Gson;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares encode/decode throughput and allocation per client of the binary
+ * ClientCodec against the Gson path used by Storage.
+ *
+ * Not part of build.sh. Run after building with:
+ *   java -cp "./build/classes:./lib/gson-2.8.6.jar" FightLang.ClientCodecBenchmark [iterations]
+ */
+public class ClientCodecBenchmark {
+    private static final Gson g = new Gson();
+    private static final int SAMPLE_SIZE = 1000;
+    private static long sink = 0;
+
+    private interface Op {
+        void run(int i);
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        Client[] clients = new Client[SAMPLE_SIZE];
+        byte[][] json = new byte[SAMPLE_SIZE][];
+        byte[][] binary = new byte[SAMPLE_SIZE][];
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            Client opponent = ClientCodecTest.sampleClient();
+            opponent.level = 1 + i % 12;
+            clients[i] = i % 2 == 0 ? ClientCodecTest.sampleClient() : new Client(-i, opponent);
+            json[i] = g.toJson(clients[i]).getBytes(StandardCharsets.UTF_8);
+            binary[i] = ClientCodec.encode(clients[i]);
+        }
+
+        System.out.println(String.format("record size: gson %d bytes, codec %d bytes (average)",
+            average(json), average(binary)));
+
+        Op gsonEncode = i -> sink += g.toJson(clients[i % SAMPLE_SIZE]).getBytes(StandardCharsets.UTF_8).length;
+        Op codecEncode = i -> sink += ClientCodec.encode(clients[i % SAMPLE_SIZE]).length;
+        Op gsonDecode = i -> sink += g.fromJson(
+            new String(json[i % SAMPLE_SIZE], StandardCharsets.UTF_8), Client.class).hp;
+        Op codecDecode = i -> sink += ClientCodec.decode(binary[i % SAMPLE_SIZE]).hp;
+
+        // Warm up all paths before measuring any of them.
+        for (Op op : new Op[] {gsonEncode, codecEncode, gsonDecode, codecDecode}) {
+            for (int i = 0; i < iterations / 5; i++) {
+                op.run(i);
+            }
+        }
+        measure("gson encode ", gsonEncode, iterations);
+        measure("codec encode", codecEncode, iterations);
+        measure("gson decode ", gsonDecode, iterations);
+        measure("codec decode", codecDecode, iterations);
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    private static void measure(String name, Op op, int iterations) {
+        long allocBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocBefore;
+        System.out.println(String.format("%s: %,10.0f ops/s, %6.0f ns/op, %6d bytes allocated/op",
+            name, iterations * 1e9 / elapsed, (double) elapsed / iterations, allocated / iterations));
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static int average(byte[][] records) {
+        long total = 0;
+        for (byte[] r : records) {
+            total += r.length;
+        }
+        return (int) (total / records.length);
+    }
+}
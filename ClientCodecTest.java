@@ -0,0 +1,101 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import com.google.gson.Gson;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests for the binary client codec: field round trip, legacy JSON records
+ * and schema version checks.
+ */
+public class ClientCodecTest {
+
+    public static void main(String[] args) {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testRoundTrip();
+        allTestsPassed &= testBotRoundTrip();
+        allTestsPassed &= testLegacyJson();
+        allTestsPassed &= testUnknownVersionRejected();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome client codec tests failed!");
+            System.exit(1);
+        }
+    }
+
+    static Client sampleClient() {
+        Client client = new Client(123456789, "Größter Held");
+        client.status = Client.Status.TRADING;
+        client.offeredItem = Game.Item.CLAW;
+        client.requestedItem = Game.Item.SILVER;
+        client.nameChangeHintSent = true;
+        client.fightingChatId = -123456789;
+        client.lastActivity = 1700000000;
+        client.lastRestore = 1700000001;
+        client.restoreSuccessToday(12, 1699990000);
+        client.totalFights = 40;
+        client.fightsWon = 31;
+        client.exp = 2500;
+        client.level = 6;
+        client.strength = 9;
+        client.levelPoints = 2;
+        client.hp = 4;
+        client.giveItem(Game.Item.HPOTION);
+        client.giveItem(Game.Item.ASH);
+        client.giveItem(Game.Item.ASH);
+        client.addLuckPotionEffect(Game.LUCK_POTION_BONUS, 1700000000);
+        client.version = 17;
+        client.schemaVersion = 5;
+        return client;
+    }
+
+    private static boolean testRoundTrip() {
+        boolean testPassed = true;
+        Client client = sampleClient();
+        byte[] encoded = ClientCodec.encode(client);
+        Client decoded = ClientCodec.decode(encoded);
+
+        testPassed &= assertEquals(ClientCodec.VERSION, encoded[0], "Record should start with the schema version");
+        Gson g = new Gson();
+        testPassed &= assertEquals(g.toJson(client), g.toJson(decoded), "Decoded client should match the original field by field");
+        testPassed &= assertTrue(encoded.length < g.toJson(client).getBytes(StandardCharsets.UTF_8).length / 3,
+            "Binary record should be much smaller than JSON");
+        return testPassed;
+    }
+
+    private static boolean testBotRoundTrip() {
+        boolean testPassed = true;
+        Client player = new Client(100, "Player");
+        Client bot = new Client(-100, player);
+        Client decoded = ClientCodec.decode(ClientCodec.encode(bot));
+        testPassed &= assertEquals(-100, decoded.chatId, "Negative bot chat id should round trip");
+        testPassed &= assertEquals(bot.username, decoded.username, "Bot name should round trip");
+        testPassed &= assertEquals(bot.inventory.size(), decoded.inventory.size(), "Bot loot should round trip");
+        return testPassed;
+    }
+
+    private static boolean testLegacyJson() {
+        boolean testPassed = true;
+        Client client = sampleClient();
+        byte[] json = new Gson().toJson(client).getBytes(StandardCharsets.UTF_8);
+        Client decoded = ClientCodec.decode(json);
+        testPassed &= assertEquals(client.username, decoded.username, "Legacy JSON record should decode");
+        testPassed &= assertEquals(12, decoded.getStoredSuccessToday(), "Private fields should decode from JSON");
+        testPassed &= assertEquals(2, decoded.getItemNum(Game.Item.ASH), "Inventory should decode from JSON");
+        return testPassed;
+    }
+
+    private static boolean testUnknownVersionRejected() {
+        byte[] encoded = ClientCodec.encode(sampleClient());
+        encoded[0] = (byte) (ClientCodec.VERSION + 1);
+        try {
+            ClientCodec.decode(encoded);
+        } catch (IllegalArgumentException e) {
+            return assertTrue(true, "Newer schema version should be rejected");
+        }
+        return assertTrue(false, "Newer schema version should be rejected");
+    }
+}
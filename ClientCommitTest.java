@@ -0,0 +1,143 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests for multi-client commits of the file storage: journal cleanup,
+ * replay of committed journals after a crash and recovery from a torn
+ * journal or a legacy backup file.
+ */
+public class ClientCommitTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testCommitAndCheckpoint();
+        allTestsPassed &= testReplayCommittedJournal();
+        allTestsPassed &= testSingleSaveAfterCommitSurvivesReplay();
+        allTestsPassed &= testTornJournalDiscarded();
+        allTestsPassed &= testLegacyBackupRestored();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome client commit tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testCommitAndCheckpoint() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("clientcommit");
+
+        Storage storage = new Storage();
+        Client winner = new Client(1, "Winner");
+        Client loser = new Client(2, "Loser");
+        winner.exp = 10;
+        storage.saveClients(winner, loser);
+        testPassed &= assertEquals(10, storage.getClientByChatId(1).exp, "Committed client should be readable");
+        testPassed &= assertEquals("Loser", storage.getClientByChatId(2).username, "Both clients should be written");
+        testPassed &= assertEquals(1, countFiles(dir, ".journal-"), "Journal stays until checkpoint");
+
+        storage.flush();
+        testPassed &= assertEquals(0, countFiles(dir, ".journal-"), "Checkpoint should drop applied journals");
+        testPassed &= assertEquals(0, countFiles(dir, ".tmp-"), "No temp files should be left behind");
+        testPassed &= assertEquals(2, Logger.getAllClientNames().size(), "Only client files should be listed");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testReplayCommittedJournal() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("clientcommit");
+
+        Storage storage = new Storage();
+        storage.saveClient(new Client(1, "Old"));
+        storage.saveClient(new Client(2, "Old"));
+        // Crash right after the commit point: the journal is durable but
+        // neither client file has been replaced yet.
+        Logger.writeJournal(new String[] {"1", "2"},
+            new String[] {"{\"chatId\":1,\"username\":\"New\"}", "{\"chatId\":2,\"username\":\"New;er\"}"});
+
+        Logger.initialize();
+        testPassed &= assertEquals("New", storage.getClientByChatId(1).username, "Journal should be replayed");
+        testPassed &= assertEquals("New;er", storage.getClientByChatId(2).username, "Values containing ';' should replay intact");
+        testPassed &= assertEquals(0, countFiles(dir, ".journal-"), "Replayed journal should be removed");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testSingleSaveAfterCommitSurvivesReplay() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("clientcommit");
+
+        Storage storage = new Storage();
+        Client a = new Client(1, "Fought");
+        storage.saveClients(a, new Client(2, "Opponent"));
+        a.username = "Ready";
+        storage.saveClient(a);
+        testPassed &= assertEquals(2, countFiles(dir, ".journal-"), "Save of a journaled client should be journaled too");
+        // Crash before the checkpoint: both journals are replayed in order.
+        Logger.initialize();
+        testPassed &= assertEquals("Ready", storage.getClientByChatId(1).username, "Replay should not bring back the older value");
+
+        storage.saveClient(a);
+        testPassed &= assertEquals(0, countFiles(dir, ".journal-"), "Saves after a checkpoint need no journal");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testTornJournalDiscarded() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("clientcommit");
+
+        Storage storage = new Storage();
+        storage.saveClient(new Client(1, "Old"));
+        File journal = Logger.writeJournal(new String[] {"1", "2"},
+            new String[] {"{\"chatId\":1,\"username\":\"New\"}", "{\"chatId\":2,\"username\":\"New\"}"});
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        Logger.initialize();
+        testPassed &= assertEquals("Old", storage.getClientByChatId(1).username, "Torn journal must not be applied");
+        testPassed &= assertTrue(storage.getClientByChatId(2) == null, "Torn journal must not create clients");
+        testPassed &= assertEquals(0, countFiles(dir, ".journal-"), "Torn journal should be removed");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testLegacyBackupRestored() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("clientcommit");
+
+        Storage storage = new Storage();
+        storage.saveClient(new Client(1, "Half written"));
+        try (FileWriter fw = new FileWriter(new File(dir, "clients/.backup"))) {
+            fw.write("1;{\"chatId\":1,\"username\":\"Before;crash\"}\n");
+        }
+
+        Logger.initialize();
+        testPassed &= assertEquals("Before;crash", storage.getClientByChatId(1).username, "Legacy backup should be restored");
+        testPassed &= assertTrue(!new File(dir, "clients/.backup").exists(), "Legacy backup should be removed");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static int countFiles(File dir, String marker) {
+        int count = 0;
+        for (File f : new File(dir, "clients").listFiles()) {
+            if (f.getName().contains(marker)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
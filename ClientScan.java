@@ -0,0 +1,76 @@
+package FightLang;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Parallel full scans over a store. Streams run on a dedicated fork-join
+// pool, so reading and parsing clients fans out across cores without
+// competing with other users of the common pool.
+//
+// Only the filtering runs in parallel. Clients that match are handed back to
+// the calling thread in scan order, so game logic that saves clients or
+// sends messages stays single-threaded.
+class ClientScan {
+  private static final ForkJoinPool pool = new ForkJoinPool(
+      Runtime.getRuntime().availableProcessors(),
+      p -> {
+        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+        t.setName("client-scan-" + t.getPoolIndex());
+        t.setDaemon(true);
+        return t;
+      },
+      null, false);
+
+  static List<Client> collect(StorageInterface storage, Predicate<Client> filter) {
+    return run(() -> {
+      try (Stream<Client> clients = storage.streamClients()) {
+        return clients.parallel().filter(filter).collect(Collectors.toList());
+      }
+    });
+  }
+
+  // Chat ids of matching clients, including the cold tier, for jobs that go
+  // over every record such as migrations.
+  static List<Integer> collectAllIds(StorageInterface storage, Predicate<Client> filter) {
+    return run(() -> {
+      try (Stream<Client> clients = storage.streamAllClients()) {
+        return clients.parallel().filter(filter).map(c -> c.chatId).collect(Collectors.toList());
+      }
+    });
+  }
+
+  // Stops reading as soon as any client matches.
+  static boolean anyMatch(StorageInterface storage, Predicate<Client> filter) {
+    return run(() -> {
+      try (Stream<Client> clients = storage.streamClients()) {
+        return clients.parallel().anyMatch(filter);
+      }
+    });
+  }
+
+  static void forEachMatching(StorageInterface storage, Predicate<Client> filter, ClientDo doable) {
+    for (Client client : collect(storage, filter)) {
+      doable.run(client);
+    }
+  }
+
+  private static <T> T run(Callable<T> scan) {
+    try {
+      return pool.submit(scan).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Tests for streaming scans: parallel filtering over the file store,
+ * early termination and the sequential forEachClient adapter.
+ */
+public class ClientScanTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        File dir = createTempDb("clientscan");
+        Storage storage = new Storage();
+        for (int i = 1; i <= 300; i++) {
+            Client client = new Client(i, "Player" + i);
+            client.exp = i;
+            storage.saveClient(client);
+        }
+
+        allTestsPassed &= testParallelCollect(storage);
+        allTestsPassed &= testEarlyTermination(storage);
+        allTestsPassed &= testSequentialAdapter(storage);
+
+        deleteRecursively(dir);
+        if (!allTestsPassed) {
+            System.out.println("\nSome client scan tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testParallelCollect(Storage storage) {
+        boolean testPassed = true;
+        List<Client> matching = ClientScan.collect(storage, c -> c.exp % 3 == 0);
+        testPassed &= assertEquals(100, matching.size(), "Parallel scan should find every matching client");
+        int sum = 0;
+        for (Client c : matching) {
+            sum += c.exp;
+        }
+        testPassed &= assertEquals(3 * 100 * 101 / 2, sum, "Parallel scan should return each client once");
+        return testPassed;
+    }
+
+    private static boolean testEarlyTermination(Storage storage) {
+        boolean testPassed = true;
+        testPassed &= assertTrue(ClientScan.anyMatch(storage, c -> c.exp == 150), "anyMatch should find an existing client");
+        testPassed &= assertTrue(!ClientScan.anyMatch(storage, c -> c.exp > 300), "anyMatch should report no match");
+
+        final int[] read = {0};
+        try (Stream<Client> clients = storage.streamClients()) {
+            clients.peek(c -> read[0]++).limit(5).forEach(c -> { });
+        }
+        testPassed &= assertEquals(5, read[0], "A limited stream should stop reading files");
+        return testPassed;
+    }
+
+    private static boolean testSequentialAdapter(Storage storage) {
+        final int[] seen = {0};
+        final boolean[] sameThread = {true};
+        final Thread caller = Thread.currentThread();
+        storage.forEachClient(new ClientDo() {
+            public void run(Client c) {
+                seen[0]++;
+                sameThread[0] &= Thread.currentThread() == caller;
+            }
+        });
+        boolean testPassed = assertEquals(300, seen[0], "forEachClient should visit every client");
+        testPassed &= assertTrue(sameThread[0], "forEachClient should run on the calling thread");
+        return testPassed;
+    }
+}
@@ -14,6 +14,8 @@ public class ClientTest {
         allTestsPassed &= testProfileDisplayWithSingleBrewingOption();
         allTestsPassed &= testProfileDisplayWithMultipleBrewingOptions();
         allTestsPassed &= testTradingSystem();
+        allTestsPassed &= testDailySuccessReset();
+        allTestsPassed &= testLazyRegeneration();
         if (!allTestsPassed) {
             System.exit(1); 
         }
@@ -484,4 +486,73 @@ public class ClientTest {
     }
 
 
+
+    public static boolean testDailySuccessReset() {
+        boolean allTestsPassed = true;
+        int resetHour = Client.dailyResetHour;
+        Client.dailyResetHour = 4;
+        // 2024-01-01 03:00 UTC, an hour before the reset.
+        int beforeReset = 1704078000;
+        Client c = new Client(1, "Daily");
+        c.restoreSuccessToday(7, beforeReset - 60);
+        allTestsPassed &= assertEquals(7, c.getSuccessToday(beforeReset), "Count should hold until the reset hour");
+        allTestsPassed &= assertEquals(0, c.getSuccessToday(beforeReset + 60 * 60), "Count should read 0 after the reset hour");
+        allTestsPassed &= assertEquals(7, c.getStoredSuccessToday(), "Reading should not change the stored count");
+
+        // 23:00 and 01:00 are the same game day with a 4am reset, not with
+        // a midnight one.
+        c.restoreSuccessToday(3, beforeReset - 4 * 60 * 60);
+        allTestsPassed &= assertEquals(3, c.getSuccessToday(beforeReset - 2 * 60 * 60), "Count should survive midnight with a 4am reset");
+        Client.dailyResetHour = 0;
+        allTestsPassed &= assertEquals(0, c.getSuccessToday(beforeReset - 2 * 60 * 60), "Reset hour should be configurable");
+        Client.dailyResetHour = 4;
+
+        // The profile shows the lazily reset value, and the next success
+        // starts the new day from 0.
+        TestEnvironment env = createTestEnvironment();
+        Client player = createPlayer(env, 500, "Daily");
+        player.restoreSuccessToday(9, Client.now() - 2 * 24 * 60 * 60);
+        env.storage.saveClient(player);
+        MockTelegram.SentMessage profile = getPlayerProfile(env, 500, "Daily");
+        allTestsPassed &= assertTrue(profile.message.contains("Erfolg heute: 0"), "Profile should show today's count");
+        player.incSuccessToday();
+        allTestsPassed &= assertEquals(1, player.getSuccessToday(), "First success of a new day should count from 0");
+
+        Client.dailyResetHour = resetHour;
+        return allTestsPassed;
+    }
+
+    public static boolean testLazyRegeneration() {
+        boolean allTestsPassed = true;
+        int interval = Game.REGEN_INTERVAL_SECONDS;
+        Client c = new Client(1, "Regen");
+        c.hp = c.getMaxHp() - 5;
+        c.lastRestore = 1000;
+        allTestsPassed &= assertEquals(1000 + 5 * interval, c.fullyRecoveredAt(), "Full hp is due after one interval per missing point");
+        allTestsPassed &= assertFalse(c.regenerate(1000 + interval - 1), "Nothing regenerates before the first interval");
+        allTestsPassed &= assertTrue(c.regenerate(1000 + 2 * interval + 3), "Two intervals should add hp");
+        allTestsPassed &= assertEquals(c.getMaxHp() - 3, c.hp, "One hp per interval");
+        allTestsPassed &= assertEquals(1000 + 2 * interval, c.lastRestore, "Progress towards the next point should be kept");
+        allTestsPassed &= assertEquals(1000 + 5 * interval, c.fullyRecoveredAt(), "Materializing should not move the recovery time");
+
+        c.status = Client.Status.FIGHTING;
+        allTestsPassed &= assertFalse(c.regenerate(1000 + 100 * interval), "No regeneration during a fight");
+        c.status = Client.Status.IDLE;
+        allTestsPassed &= assertTrue(c.regenerate(1000 + 100 * interval), "Regeneration should stop at max hp");
+        allTestsPassed &= assertEquals(c.getMaxHp(), c.hp, "Hp should be full");
+        allTestsPassed &= assertFalse(c.regenerate(1000 + 200 * interval), "Full hp should not change");
+
+        // Loading the client for an update stores the regenerated hp.
+        TestEnvironment env = createTestEnvironment();
+        Client player = createPlayer(env, 501, "Regen");
+        player.hp = player.getMaxHp() - 2;
+        player.lastRestore = Client.now() - interval - 1;
+        env.storage.saveClient(player);
+        MockTelegram.SentMessage profile = getPlayerProfile(env, 501, "Regen");
+        allTestsPassed &= assertTrue(profile.message.contains("Gesundheit: " + (player.getMaxHp() - 1) + " "),
+            "Profile should show the regenerated hp");
+        allTestsPassed &= assertEquals(player.getMaxHp() - 1, env.storage.getClientByChatId(501).hp,
+            "Regenerated hp should be stored when the client is loaded");
+        return allTestsPassed;
+    }
 }
@@ -0,0 +1,31 @@
+package FightLang;
+
+import com.google.gson.Gson;
+
+// Optional "engine" section of config.json, for example
+//   {"token": "...", "engine": {"workers": 4}}
+class EngineConfig {
+  private static Gson g = new Gson();
+
+  private class Config {
+    EngineConfig engine;
+  }
+
+  // Process the updates of different chats on this many threads. Updates of
+  // one chat always run in order on the same thread; 1 handles everything on
+  // the main loop.
+  int workers = 1;
+  // Hour (UTC) at which the daily success counters start over.
+  int daily_reset_hour = 4;
+  // Seconds Telegram may hold each getUpdates call open waiting for new
+  // messages; 0 polls without waiting.
+  int poll_timeout_s = 25;
+
+  static EngineConfig load() {
+    Config c = g.fromJson(Logger.getConfigText(), Config.class);
+    if (c == null || c.engine == null) {
+      return new EngineConfig();
+    }
+    return c.engine;
+  }
+}
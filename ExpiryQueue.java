@@ -0,0 +1,33 @@
+package FightLang;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+// Min-heap of (expiry, chatId) pairs. Entries are never removed early: when
+// an effect is renewed the new expiry is simply added, and whoever polls an
+// entry checks the client before acting on it.
+class ExpiryQueue {
+  // expiry in the high 32 bits, so the natural order of the longs is the
+  // order of the expiries.
+  private final PriorityQueue<Long> heap = new PriorityQueue<>();
+
+  synchronized void add(int chatId, int expiry) {
+    heap.add(((long) expiry << 32) | (chatId & 0xFFFFFFFFL));
+  }
+
+  // Removes and returns the chats with an entry due at `now`, each once.
+  synchronized List<Integer> pollDue(int now) {
+    Set<Integer> due = new LinkedHashSet<>();
+    while (!heap.isEmpty() && (int) (heap.peek() >>> 32) <= now) {
+      due.add((int) heap.poll().longValue());
+    }
+    return new ArrayList<>(due);
+  }
+
+  synchronized int size() {
+    return heap.size();
+  }
+}
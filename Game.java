@@ -103,6 +103,9 @@ class Game {
   public static final int LUCK_POTION_BONUS = 2;
   public static final int POTION_DURATION_SECONDS = 180; // 3 minutes
 
+  // Players out of a fight regain 1 hp this often.
+  public static final int REGEN_INTERVAL_SECONDS = 9;
+
   // Define the recipe for brewing a healing potion
   private static final Map<Item, Integer> POTION_RECIPE = new EnumMap<>(Item.class);
   // Define the recipe for brewing a strength potion
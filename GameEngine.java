@@ -3,11 +3,11 @@ package FightLang;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class GameEngine {
     private final StorageInterface storage;
@@ -17,9 +17,13 @@ public class GameEngine {
     private static final String[] LEVEL_POINT_BUTTONS = {
         "Stärke verbessern", "Vitalität verbessern", "Glück verbessern"
     };
-    private static final int CHAT_TIMEOUT = 600;
+    static final int CHAT_TIMEOUT = 600;
     private static final int FIGHT_TIMEOUT = 60;
-    private static final int REGEN_INTERVAL_SECONDS = 9;
+    private static final int BOT_DELAY_SECONDS = 10;
+    // Kinds of per-chat timers in the timer wheel.
+    private static final int TIMER_REGEN = 0;
+    private static final int TIMER_BOT = 1;
+    private static final int TIMER_FIGHT_TIMEOUT = 2;
     private static final String TASK_FAIL = "Fehler";
     private static final String TASK_SUCCESS = "Erfolg";
     private static final String GAME_DESCRIPTION_PROMPT = "Du bist ein Rollenspiel. In diesem Spiel gibt es die folgenden Monster: " +
@@ -42,17 +46,27 @@ public class GameEngine {
       "Was sagst du?'\" Beschreibe die Kreatur oder Person kurz, halte dich an das Angebot und stelle am Ende die Frage nach der Entscheidung. " +
       "Verwende nicht das Wort 'Händler' in der Beschreibung.";
     
-    private Set<Integer> activeChats = new HashSet<>();
-    private Set<Integer> injuredChats = new HashSet<>();
-    private Set<Integer> readyToFightChats = new HashSet<>();
-    private Set<Integer> fightingChats = new HashSet<>();
+    // Updates of different chats may be processed on several threads (see
+    // UpdateWorkers), so these sets are concurrent and each update holds the
+    // locks of its chat and, in a fight, of the opponent.
+    private Set<Integer> activeChats = ConcurrentHashMap.newKeySet();
+    private Set<Integer> readyToFightChats = ConcurrentHashMap.newKeySet();
+    private final ChatLocks chatLocks = new ChatLocks(256);
+    // Deadlines of HP regen, bot assignment and fight timeouts. They are set
+    // when a client's state changes, and a background tick loads only the
+    // clients whose deadline has come.
+    private final TimerWheel timers;
+    // Potion effects by expiry, so a tick only loads clients whose effect
+    // has run out.
+    private final ExpiryQueue potionExpiries = new ExpiryQueue();
     
-    private int curTimeSeconds;
+    private volatile int curTimeSeconds;
     
     public GameEngine(StorageInterface storage, TelegramInterface telegram) {
         this.storage = storage;
         this.telegram = telegram;
         updateCurTime();
+        this.timers = new TimerWheel(curTimeSeconds);
         initializeClientSets();
     }
     
@@ -66,7 +80,7 @@ public class GameEngine {
     }
     
     private void initializeClientSets() {
-        storage.forEachClient(new ClientDo() {
+        storage.forEachIndexedClient(new ClientDo() {
             public void run(Client client) {
                 if (client == null) {
                     return; // this shouldn't happen
@@ -80,23 +94,51 @@ public class GameEngine {
                 if (client.lastActivity > curTimeSeconds - CHAT_TIMEOUT) {
                     activeChats.add(client.chatId);
                 }
-                if (client.hp < client.getMaxHp()) {
-                    injuredChats.add(client.chatId);
+                if (client.status != Client.Status.FIGHTING) {
+                    scheduleRegen(client);
                 }
                 if (client.status == Client.Status.READY_TO_FIGHT) {
                     readyToFightChats.add(client.chatId);
+                    timers.schedule(TIMER_BOT, client.chatId, client.readyToFightSince + BOT_DELAY_SECONDS);
                 }
                 if (client.status == Client.Status.FIGHTING) {
-                    fightingChats.add(client.chatId);
+                    scheduleFightTimeout(client);
+                }
+                if (client.strengthPotionExpiry > 0) {
+                    potionExpiries.add(client.chatId, client.strengthPotionExpiry);
+                }
+                if (client.luckPotionExpiry > 0) {
+                    potionExpiries.add(client.chatId, client.luckPotionExpiry);
                 }
             }
         });
     }
     
     public void processUpdate(Telegram.Update upd) {
+        int chatId = upd.message.chat.id;
+        ChatLocks.Held held = chatLocks.lock(chatId);
+        try {
+            Client client = getClientWithStorage(chatId);
+            // A fight update changes the opponent too. Its lock is taken
+            // without waiting; if another worker has it, let go and take
+            // both in order, then re-read the client.
+            while (client != null && client.status == Client.Status.FIGHTING
+                   && !held.covers(client.fightingChatId)) {
+                if (!held.tryAdd(client.fightingChatId)) {
+                    held.close();
+                    held = chatLocks.lock(chatId, client.fightingChatId);
+                    client = getClientWithStorage(chatId);
+                }
+            }
+            processUpdate(upd, client, held);
+        } finally {
+            held.close();
+        }
+    }
+
+    private void processUpdate(Telegram.Update upd, Client client, ChatLocks.Held held) {
         updateCurTime();
         int chatId = upd.message.chat.id;
-        Client client = getClientWithStorage(chatId);
         boolean newClient = client == null;
         if (newClient) {
             String username;
@@ -110,10 +152,20 @@ public class GameEngine {
         } else {
             // Ensure existing client has storage dependency set
             client.setStorage(storage);
+            // Bring hp up to date; it is stored with the activity below. If
+            // that completes the recovery, tell the player now, as the timer
+            // will find nothing left to do.
+            if (client.regenerate(curTimeSeconds) && client.hp == client.getMaxHp()) {
+                timers.cancel(TIMER_REGEN, chatId);
+                telegram.sendMessage(chatId, "Du bist jetzt vollständig erholt.");
+            }
         }
         client.lastActivity = curTimeSeconds;
         activeChats.add(chatId);
         storage.saveClient(client);
+        if (client.status == Client.Status.FIGHTING && getOpponentOrEndFight(client) == null) {
+            return;
+        }
 
         if (newClient) {
             telegram.sendMessage(client.chatId, "Willkommen im German Club!", MAIN_BUTTONS);
@@ -200,11 +252,11 @@ public class GameEngine {
                 telegram.sendMessage(client.chatId, "Du suchst bereits nach einem Opfer.");
                 return;
             }
-            if (readyToFightChats.size() == 0) {
+            Client opponent = claimReadyOpponent(client, held);
+            if (opponent == null) {
                 setReadyToFight(client);
             } else {
-                int opponentChatId = readyToFightChats.iterator().next();
-                startFightReal(client, getClientWithStorage(opponentChatId));
+                startFightReal(client, opponent);
             }
             return;
         }
@@ -306,10 +358,17 @@ public class GameEngine {
         if (txt.equals("/reset42")) {
             Client cleanClient = new Client(client.chatId, client.username);
             storage.saveClient(cleanClient);
+            scheduleRegen(cleanClient);
             telegram.sendMessage(cleanClient.chatId, "Zurücksetzen42");
             return;
         }
 
+        if (txt.equals("/stats42")) {
+            GameStats stats = GameStats.active;
+            telegram.sendMessage(client.chatId, stats == null ? "Keine Statistik" : stats.report());
+            return;
+        }
+
         if (txt.equals("/version")) {
             telegram.sendMessage(client.chatId, "Version: 0.02");
             return;
@@ -322,6 +381,7 @@ public class GameEngine {
                 client.incSuccessToday();
             }
             client.lastFightActivitySince = curTimeSeconds;
+            scheduleFightTimeout(client);
             Client opponent = getClientWithStorage(client.fightingChatId);
             handleHitTask(client, opponent, isSuccess);
             storage.saveClients(opponent, client);
@@ -346,138 +406,147 @@ public class GameEngine {
     
     public void runBackgroundTasks() {
         updateCurTime();
-        cleanupDailySuccess();
         cleanupExpiredPotionEffects();
-        restoreHpIfNeeded(storage.getClientsByChatIds(injuredChats));
-        assignBotsIfTimeout(storage.getClientsByChatIds(readyToFightChats));
-        Client[] fightingClients = storage.getClientsByChatIds(fightingChats);
-        handleFightTimeouts(fightingClients);
-    }
-    
-    private void cleanupDailySuccess() {
-        // Only reset stats at 4am in GMT+0 (roughly)
-        if (curTimeSeconds / 60 / 60 % 24 != 4) {
-            return;
-        }
-        storage.forEachClient(new ClientDo() {
-            public void run(Client client) {
-                if (client == null) return;
-                client.setStorage(storage); // Ensure storage dependency is set
-                
-                if (client.getLastDailyCleanup() + 24 * 60 * 60 < curTimeSeconds) {
-                    client.setSuccessToday(0);
-                    client.setLastDailyCleanup(curTimeSeconds);
+        timers.advance(curTimeSeconds, new TimerWheel.Handler() {
+            public void fire(int kind, int chatId) {
+                Client client = getClientWithStorage(chatId);
+                if (client == null) {
+                    return;
                 }
-            }
-        });
-    }
-    
-    private void cleanupExpiredPotionEffects() {
-        storage.forEachClient(new ClientDo() {
-            public void run(Client client) {
-                if (client == null) return;
-                client.setStorage(storage); // Ensure storage dependency is set
-                
-                // Check which effects were active before cleanup and which will expire
-                boolean hadStrengthEffect = client.strengthPotionExpiry > 0 && client.strengthPotionExpiry > curTimeSeconds;
-                boolean hadLuckEffect = client.luckPotionExpiry > 0 && client.luckPotionExpiry > curTimeSeconds;
-                boolean strengthWillExpire = client.strengthPotionExpiry > 0 && client.strengthPotionExpiry <= curTimeSeconds;
-                boolean luckWillExpire = client.luckPotionExpiry > 0 && client.luckPotionExpiry <= curTimeSeconds;
-                
-                // Remove expired potion effects
-                client.removeExpiredPotionEffects(curTimeSeconds);
-                
-                // Check which effects expired and send notifications
-                boolean strengthExpired = strengthWillExpire;
-                boolean luckExpired = luckWillExpire;
-                
-                if (strengthExpired || luckExpired) {
-                    // Only send notification to real players (not bots)
-                    if (client.chatId > 0) {
-                        String message = "⏰ ";
-                        if (strengthExpired && luckExpired) {
-                            message += "Deine Stärke- und Glückstrank-Effekte sind abgelaufen. Deine Stärke ist jetzt " + 
-                                client.strength + " und dein Glück ist " + client.luck + ".";
-                        } else if (strengthExpired) {
-                            message += "Dein Stärketrank-Effekt ist abgelaufen. Deine Stärke ist wieder " + client.strength + ".";
-                        } else if (luckExpired) {
-                            message += "Dein Glückstrank-Effekt ist abgelaufen. Dein Glück ist wieder " + client.luck + ".";
-                        }
-                        telegram.sendMessage(client.chatId, message);
-                    }
-                    storage.saveClient(client);
+                if (kind == TIMER_REGEN) {
+                    notifyIfRecovered(client);
+                } else if (kind == TIMER_BOT) {
+                    assignBotIfTimeout(client);
+                } else if (kind == TIMER_FIGHT_TIMEOUT) {
+                    handleFightTimeout(client);
                 }
             }
         });
     }
-    
-    private void assignBotsIfTimeout(Client[] clients) {
-        for (Client client : clients) {
-            if (client == null) continue;
-            client.setStorage(storage); // Ensure storage dependency is set
-            
-            if (client.status != Client.Status.READY_TO_FIGHT
-                || client.readyToFightSince > curTimeSeconds - 10) {
-                return;
-            }
-            Client bot = new Client(-client.chatId, client);
-            bot.setStorage(storage); // Set storage for bot too
-            prepareToFight(client, bot);
-            storage.saveClients(bot, client);
 
-            telegram.sendMessage(client.chatId, "Du kämpfst jetzt mit " + bot.username + ".");
-            telegram.sendMessage(client.chatId, getClientStats(bot));
-            
-            // Determine turn order and ask the first player to act
-            boolean clientGoesFirst = determineTurnOrder(client, bot);
-            if (clientGoesFirst) {
-                askTaskStatus(client);
-            } else {
-                // Bot goes first - activate bot immediately
-                activateBotTask(bot, client);
-            }
+    // Hp is not written while it regenerates; the only timer is the one for
+    // the moment it is full again.
+    private void scheduleRegen(Client client) {
+        if (client.chatId < 0) {
+            return;
+        }
+        if (client.hp < client.getMaxHp()) {
+            timers.schedule(TIMER_REGEN, client.chatId, client.fullyRecoveredAt());
+        } else {
+            timers.cancel(TIMER_REGEN, client.chatId);
+        }
+    }
+
+    private void scheduleFightTimeout(Client client) {
+        if (client.chatId > 0) {
+            timers.schedule(TIMER_FIGHT_TIMEOUT, client.chatId,
+                client.lastFightActivitySince + FIGHT_TIMEOUT + 5);
         }
     }
     
-    private void restoreHpIfNeeded(Client[] clients) {
-        for (Client client : clients) {
+    private void cleanupExpiredPotionEffects() {
+        for (int chatId : potionExpiries.pollDue(curTimeSeconds)) {
+            Client client = getClientWithStorage(chatId);
             if (client == null) continue;
-            client.setStorage(storage); // Ensure storage dependency is set
             
-            if (client.status != Client.Status.IDLE
-                || client.hp == client.getMaxHp()
-                || client.lastRestore > curTimeSeconds - REGEN_INTERVAL_SECONDS) {
+            // An entry is stale if the effect was renewed; the renewal queued
+            // its own entry, so nothing expires here yet.
+            boolean strengthExpired = client.strengthPotionExpiry > 0 && client.strengthPotionExpiry <= curTimeSeconds;
+            boolean luckExpired = client.luckPotionExpiry > 0 && client.luckPotionExpiry <= curTimeSeconds;
+            if (!strengthExpired && !luckExpired) {
                 continue;
             }
-            client.hp++;
-            client.lastRestore = curTimeSeconds;
-            if (client.hp == client.getMaxHp()) {
-                telegram.sendMessage(client.chatId, "Du bist jetzt vollständig erholt.");
-                injuredChats.remove(client.chatId);
+            
+            // Remove expired potion effects
+            client.removeExpiredPotionEffects(curTimeSeconds);
+            
+            // Only send notification to real players (not bots)
+            if (client.chatId > 0) {
+                String message = "⏰ ";
+                if (strengthExpired && luckExpired) {
+                    message += "Deine Stärke- und Glückstrank-Effekte sind abgelaufen. Deine Stärke ist jetzt " + 
+                        client.strength + " und dein Glück ist " + client.luck + ".";
+                } else if (strengthExpired) {
+                    message += "Dein Stärketrank-Effekt ist abgelaufen. Deine Stärke ist wieder " + client.strength + ".";
+                } else if (luckExpired) {
+                    message += "Dein Glückstrank-Effekt ist abgelaufen. Dein Glück ist wieder " + client.luck + ".";
+                }
+                telegram.sendMessage(client.chatId, message);
             }
             storage.saveClient(client);
         }
     }
     
-    private void handleFightTimeouts(Client[] clients) {
-        for (Client client : clients) {
-            if (client == null) continue;
-            client.setStorage(storage); // Ensure storage dependency is set
-            
-            if (client.status != Client.Status.FIGHTING
-                || client.chatId < 0
-                || client.lastFightActivitySince > curTimeSeconds - (FIGHT_TIMEOUT + 5)) {
-                continue;
-            }
-            Client opponent = getClientWithStorage(client.fightingChatId);
-            // Reset activity since we're handling the timeout
-            client.lastFightActivitySince = curTimeSeconds;
-            // Timeout acts the same as pressing "Fail" - handle as failed task
-            handleHitTask(client, opponent, false);
-            storage.saveClients(opponent, client);
-            if (opponent.chatId < 0 && opponent.status == Client.Status.FIGHTING) {
-                activateBotTask(opponent, client);
-            }
+    // Timer handlers check the client's state again: a timer left over from
+    // an earlier state is dropped or moved to the client's current deadline.
+    private void assignBotIfTimeout(Client client) {
+        if (client.status != Client.Status.READY_TO_FIGHT) {
+            return;
+        }
+        if (client.readyToFightSince > curTimeSeconds - BOT_DELAY_SECONDS) {
+            timers.schedule(TIMER_BOT, client.chatId, client.readyToFightSince + BOT_DELAY_SECONDS);
+            return;
+        }
+        Client bot = new Client(-client.chatId, client);
+        bot.setStorage(storage); // Set storage for bot too
+        prepareToFight(client, bot);
+        storage.saveClients(bot, client);
+
+        telegram.sendMessage(client.chatId, "Du kämpfst jetzt mit " + bot.username + ".");
+        telegram.sendMessage(client.chatId, getClientStats(bot));
+        
+        // Determine turn order and ask the first player to act
+        boolean clientGoesFirst = determineTurnOrder(client, bot);
+        if (clientGoesFirst) {
+            askTaskStatus(client);
+        } else {
+            // Bot goes first - activate bot immediately
+            activateBotTask(bot, client);
+        }
+    }
+    
+    private void notifyIfRecovered(Client client) {
+        if (client.status == Client.Status.FIGHTING) {
+            return; // the end of the fight schedules it again
+        }
+        if (client.hp < client.getMaxHp() && client.fullyRecoveredAt() > curTimeSeconds) {
+            scheduleRegen(client);
+            return;
+        }
+        int loadedVersion = client.version;
+        if (!client.regenerate(curTimeSeconds)) {
+            return; // hp was made full some other way
+        }
+        if (!storage.saveIfVersion(client, loadedVersion)) {
+            // changed since we read it; retried next cycle
+            timers.schedule(TIMER_REGEN, client.chatId, curTimeSeconds + 1);
+            return;
+        }
+        telegram.sendMessage(client.chatId, "Du bist jetzt vollständig erholt.");
+    }
+    
+    private void handleFightTimeout(Client client) {
+        if (client.status != Client.Status.FIGHTING) {
+            return;
+        }
+        if (client.lastFightActivitySince > curTimeSeconds - (FIGHT_TIMEOUT + 5)) {
+            scheduleFightTimeout(client);
+            return;
+        }
+        Client opponent = getOpponentOrEndFight(client);
+        if (opponent == null) {
+            return;
+        }
+        // Reset activity since we're handling the timeout
+        client.lastFightActivitySince = curTimeSeconds;
+        // Timeout acts the same as pressing "Fail" - handle as failed task
+        handleHitTask(client, opponent, false);
+        storage.saveClients(opponent, client);
+        if (opponent.chatId < 0 && opponent.status == Client.Status.FIGHTING) {
+            activateBotTask(opponent, client);
+        }
+        if (client.status == Client.Status.FIGHTING) {
+            scheduleFightTimeout(client);
         }
     }
     
@@ -676,6 +745,7 @@ public class GameEngine {
         } else if (skill.equals("vitality")) {
             newValue = ++client.vitality;
             client.hp = client.getMaxHp();
+            scheduleRegen(client);
         } else if (skill.equals("luck")) {
             newValue = ++client.luck;
         }
@@ -690,12 +760,42 @@ public class GameEngine {
         storage.saveClient(client);
     }
 
+    // Picks a waiting player whose chat no other worker is busy with. The
+    // opponent's lock is only tried, never waited for, so two players
+    // pressing "Kämpfen" at once cannot deadlock or take the same opponent.
+    private Client claimReadyOpponent(Client client, ChatLocks.Held held) {
+        for (int opponentChatId : readyToFightChats) {
+            if (opponentChatId == client.chatId) {
+                continue;
+            }
+            boolean covered = held.covers(opponentChatId);
+            if (!covered && !held.tryAdd(opponentChatId)) {
+                continue;
+            }
+            Client opponent = getClientWithStorage(opponentChatId);
+            if (opponent != null && opponent.status == Client.Status.READY_TO_FIGHT) {
+                return opponent;
+            }
+            // No longer waiting; safe to drop while we hold its lock.
+            readyToFightChats.remove(opponentChatId);
+            if (!covered) {
+                held.release(opponentChatId);
+            }
+        }
+        return null;
+    }
+
+    int getReadyToFightCount() {
+        return readyToFightChats.size();
+    }
+
     private void setReadyToFight(Client client) {
         // TODO: set ready to fight and save to index
         client.status = Client.Status.READY_TO_FIGHT;
         client.readyToFightSince = curTimeSeconds;
         storage.saveClient(client);
         readyToFightChats.add(client.chatId);
+        timers.schedule(TIMER_BOT, client.chatId, client.readyToFightSince + BOT_DELAY_SECONDS);
         try {
             sendToActiveUsers(PhraseGenerator.getReadyToFightPhrase(client));
         } catch (Exception e) {
@@ -799,12 +899,16 @@ public class GameEngine {
             if (c.hp > c.getMaxHp()) {
                 c.hp = c.getMaxHp();
             }
+            if (c.status != Client.Status.FIGHTING) {
+                scheduleRegen(c);
+            }
         });
     }
 
     private void consumeStrengthPotion(Client client) {
         // Apply the effect first
         client.addStrengthPotionEffect(Game.STRENGTH_POTION_BONUS, curTimeSeconds);
+        potionExpiries.add(client.chatId, client.strengthPotionExpiry);
         
         // Remove the potion from inventory
         client.takeItem(Game.Item.SPOTION);
@@ -836,6 +940,7 @@ public class GameEngine {
     private void consumeLuckPotion(Client client) {
         // Apply the effect first
         client.addLuckPotionEffect(Game.LUCK_POTION_BONUS, curTimeSeconds);
+        potionExpiries.add(client.chatId, client.luckPotionExpiry);
         
         // Remove the potion from inventory
         client.takeItem(Game.Item.LPOTION);
@@ -931,8 +1036,28 @@ public class GameEngine {
         loser.totalFights++;
         winner.status = Client.Status.IDLE;
         loser.status = Client.Status.IDLE;
-        fightingChats.remove(winner.chatId);
-        fightingChats.remove(loser.chatId);
+        // Regeneration starts over from the hp left after the fight.
+        winner.lastRestore = curTimeSeconds;
+        loser.lastRestore = curTimeSeconds;
+        timers.cancel(TIMER_FIGHT_TIMEOUT, winner.chatId);
+        timers.cancel(TIMER_FIGHT_TIMEOUT, loser.chatId);
+    }
+
+    // Bots are kept in memory only, so after a restart or an eviction a
+    // player can still be fighting one that is gone. Such a fight ends
+    // without a winner and null is returned.
+    private Client getOpponentOrEndFight(Client client) {
+        Client opponent = getClientWithStorage(client.fightingChatId);
+        if (opponent != null) {
+            return opponent;
+        }
+        client.status = Client.Status.IDLE;
+        client.lastRestore = curTimeSeconds;
+        timers.cancel(TIMER_FIGHT_TIMEOUT, client.chatId);
+        storage.saveClient(client);
+        scheduleRegen(client);
+        telegram.sendMessage(client.chatId, "Dein Gegner ist verschwunden, der Kampf ist beendet.", MAIN_BUTTONS);
+        return null;
     }
 
     private void finishFight(Client winner, Client loser) {
@@ -988,9 +1113,9 @@ public class GameEngine {
         // Add health regeneration information if needed
         if (winner.hp < winner.getMaxHp() && winner.chatId > 0) {
             victoryMessage.append("\n\n❤️ Deine Gesundheit wird sich in ")
-                         .append(REGEN_INTERVAL_SECONDS * (winner.getMaxHp() - winner.hp))
+                         .append(Game.REGEN_INTERVAL_SECONDS * (winner.getMaxHp() - winner.hp))
                          .append(" Sekunden regenerieren.");
-            injuredChats.add(winner.chatId);
+            scheduleRegen(winner);
         }
         
         // Check for level up and add to message if applicable
@@ -1015,9 +1140,9 @@ public class GameEngine {
         String message;
         if (loser.hp < loser.getMaxHp()) {
             message = "Du wurdest im Kampf besiegt" + (lost.isEmpty() ? ". " : ", und " + lost + " wurden gestohlen. ") +
-                "Deine Gesundheit wird sich in " + REGEN_INTERVAL_SECONDS * (loser.getMaxHp() - loser.hp) +
+                "Deine Gesundheit wird sich in " + Game.REGEN_INTERVAL_SECONDS * (loser.getMaxHp() - loser.hp) +
                 " Sekunden regenerieren.";
-            injuredChats.add(loser.chatId);
+            scheduleRegen(loser);
         } else {
             message = "Du wurdest im Kampf besiegt" + (lost.isEmpty() ? "." : ", und " + lost + " wurden gestohlen.");
         }
@@ -1108,11 +1233,15 @@ public class GameEngine {
     }
 
     private void setupClientForFight(Client client, Client opponent) {
+        // Hp regenerated so far counts in the fight; none is added during it.
+        client.regenerate(curTimeSeconds);
+        timers.cancel(TIMER_REGEN, client.chatId);
         client.status = Client.Status.FIGHTING;
         client.fightingChatId = opponent.chatId;
         client.lastFightActivitySince = curTimeSeconds;
         readyToFightChats.remove(client.chatId);
-        fightingChats.add(client.chatId);
+        timers.cancel(TIMER_BOT, client.chatId);
+        scheduleFightTimeout(client);
     }
 
     // Determines who goes first based on luck values
@@ -0,0 +1,235 @@
+package FightLang;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// Player counts by level, status, win rate and today's successful tasks,
+// kept up to date as clients are saved, so reading them costs nothing
+// instead of a scan over every client file.
+//
+// Each player's contribution is remembered as one packed int; a save
+// subtracts the old one and adds the new one. The contributions are
+// persisted to db/stats.bin, so a restart does not need a scan. After a
+// crash some contributions may be older than the stored clients; the totals
+// still add up and each one is corrected on the player's next save.
+//
+// Success counts belong to one game day (see Client.gameDay). The first call
+// after the daily reset moves every player to the "0" bucket in memory,
+// the same way Client reads an old counter as 0, without loading anyone.
+class GameStats {
+  private static final int MAGIC = 0x464c4753; // "FLGS"
+  // Win rate buckets: none (no fights yet), then 0-9% ... 90-99%, 100%.
+  static final int WIN_BUCKETS = 12;
+  static final int[] SUCCESS_LIMITS = {0, 2, 5, 10, Integer.MAX_VALUE};
+  private static final String[] SUCCESS_NAMES = {"0", "1-2", "3-5", "6-10", "11+"};
+
+  // The stats of the running bot, for the admin command; null without them.
+  static volatile GameStats active;
+
+  private final Map<Integer, Integer> contributions = new HashMap<>();
+  private final TreeMap<Integer, Long> byLevel = new TreeMap<>();
+  private final long[] byStatus = new long[Client.Status.values().length];
+  private final long[] byWinRate = new long[WIN_BUCKETS];
+  private final long[] bySuccess = new long[SUCCESS_LIMITS.length];
+  private int successDay = Client.gameDay(Client.now());
+  private boolean changed = false;
+
+  synchronized void update(Client client) {
+    if (client.chatId < 0) {
+      return; // bots come and go with their fight
+    }
+    rollOver(Client.now());
+    int key = key(client);
+    Integer old = contributions.put(client.chatId, key);
+    if (old != null && old == key) {
+      return;
+    }
+    if (old != null) {
+      add(old, -1);
+    }
+    add(key, 1);
+    changed = true;
+  }
+
+  synchronized void remove(int chatId) {
+    Integer old = contributions.remove(chatId);
+    if (old != null) {
+      add(old, -1);
+      changed = true;
+    }
+  }
+
+  synchronized long getPlayerCount() {
+    return contributions.size();
+  }
+
+  synchronized long getLevelCount(int level) {
+    return byLevel.getOrDefault(level, 0L);
+  }
+
+  synchronized long getStatusCount(Client.Status status) {
+    return byStatus[status.ordinal()];
+  }
+
+  synchronized long getWinRateCount(int bucket) {
+    return byWinRate[bucket];
+  }
+
+  synchronized long getSuccessCount(int bucket) {
+    rollOver(Client.now());
+    return bySuccess[bucket];
+  }
+
+  synchronized void rollOver(int now) {
+    int day = Client.gameDay(now);
+    if (day == successDay) {
+      return;
+    }
+    successDay = day;
+    for (Map.Entry<Integer, Integer> e : contributions.entrySet()) {
+      int key = e.getValue();
+      if ((key & 0xf) != 0) {
+        add(key, -1);
+        add(key & ~0xf, 1);
+        e.setValue(key & ~0xf);
+        changed = true;
+      }
+    }
+  }
+
+  synchronized String report() {
+    rollOver(Client.now());
+    StringBuilder result = new StringBuilder();
+    result.append("players: ").append(contributions.size()).append('\n');
+    for (Map.Entry<Integer, Long> e : byLevel.entrySet()) {
+      result.append("level ").append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+    }
+    for (Client.Status status : Client.Status.values()) {
+      result.append("status ").append(status).append(": ").append(byStatus[status.ordinal()]).append('\n');
+    }
+    result.append("win rate none: ").append(byWinRate[0]).append('\n');
+    for (int b = 1; b < WIN_BUCKETS - 1; b++) {
+      result.append("win rate ").append((b - 1) * 10).append('-').append((b - 1) * 10 + 9)
+          .append("%: ").append(byWinRate[b]).append('\n');
+    }
+    result.append("win rate 100%: ").append(byWinRate[WIN_BUCKETS - 1]).append('\n');
+    for (int b = 0; b < SUCCESS_LIMITS.length; b++) {
+      result.append("success today ").append(SUCCESS_NAMES[b]).append(": ").append(bySuccess[b]).append('\n');
+    }
+    return result.toString();
+  }
+
+  // Writes the contributions and a readable report next to them, if
+  // anything changed since the last call.
+  void save(File binary, File text) {
+    byte[] data;
+    String report;
+    synchronized (this) {
+      if (!changed) {
+        return;
+      }
+      changed = false;
+      ByteBuffer buf = ByteBuffer.allocate(8 + contributions.size() * 8 + 4);
+      buf.putInt(MAGIC).putInt(contributions.size());
+      for (Map.Entry<Integer, Integer> e : contributions.entrySet()) {
+        buf.putInt(e.getKey()).putInt(e.getValue());
+      }
+      CRC32 crc = new CRC32();
+      crc.update(buf.array(), 0, buf.position());
+      buf.putInt((int) crc.getValue());
+      data = buf.array();
+      report = report();
+    }
+    try {
+      replace(binary, data);
+      replace(text, report.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+  }
+
+  // Returns false if there is no complete stats file.
+  synchronized boolean load(File binary) {
+    if (!binary.exists()) {
+      return false;
+    }
+    try {
+      ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(binary.toPath()));
+      if (buf.remaining() < 12 || buf.getInt() != MAGIC) {
+        return false;
+      }
+      int count = buf.getInt();
+      if (count < 0 || buf.remaining() != count * 8 + 4) {
+        return false;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(buf.array(), 0, 8 + count * 8);
+      // The success buckets are from the day the file was written.
+      successDay = Client.gameDay((int) (binary.lastModified() / 1000L));
+      for (int i = 0; i < count; i++) {
+        int chatId = buf.getInt();
+        int key = buf.getInt();
+        contributions.put(chatId, key);
+        add(key, 1);
+      }
+      if (buf.getInt() != (int) crc.getValue()) {
+        clear();
+        return false;
+      }
+      return true;
+    } catch (IOException e) {
+      Logger.logException(e);
+      clear();
+      return false;
+    }
+  }
+
+  // Level in the high bits, then status, win rate and success buckets.
+  private static int key(Client client) {
+    int win = 0;
+    if (client.totalFights > 0) {
+      win = 1 + Math.min(10, Math.max(0, client.fightsWon) * 10 / client.totalFights);
+    }
+    int success = 0;
+    while (client.getSuccessToday() > SUCCESS_LIMITS[success]) {
+      success++;
+    }
+    return (client.level << 12) | (client.status.ordinal() << 8) | (win << 4) | success;
+  }
+
+  private void add(int key, int delta) {
+    byLevel.merge(key >> 12, (long) delta, Long::sum);
+    if (byLevel.get(key >> 12) == 0) {
+      byLevel.remove(key >> 12);
+    }
+    byStatus[(key >> 8) & 0xf] += delta;
+    byWinRate[(key >> 4) & 0xf] += delta;
+    bySuccess[key & 0xf] += delta;
+  }
+
+  private void clear() {
+    contributions.clear();
+    byLevel.clear();
+    Arrays.fill(byStatus, 0);
+    Arrays.fill(byWinRate, 0);
+    Arrays.fill(bySuccess, 0);
+  }
+
+  private static void replace(File target, byte[] data) throws IOException {
+    File tmp = new File(target.getPath() + ".tmp");
+    Files.write(tmp.toPath(), data);
+    Files.move(tmp.toPath(), target.toPath(),
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
@@ -0,0 +1,106 @@
+package FightLang;
+
+import java.io.File;
+import java.util.Set;
+import java.util.stream.Stream;
+
+// Decorator that feeds every client save into GameStats and writes the
+// stats files from flush(), at most once per DUMP_INTERVAL_MS.
+class GameStatsStorage implements StorageInterface {
+  private static final long DUMP_INTERVAL_MS = 60 * 1000L;
+
+  private final StorageInterface delegate;
+  private final GameStats stats;
+  private final File binary;
+  private final File text;
+  private long lastDump = 0;
+
+  GameStatsStorage(StorageInterface delegate, GameStats stats, String dbPath) {
+    this.delegate = delegate;
+    this.stats = stats;
+    this.binary = new File(dbPath, "stats.bin");
+    this.text = new File(dbPath, "stats.txt");
+    if (!stats.load(binary)) {
+      // One full scan, the first time the bot starts without stats.
+      Logger.log("Building game stats");
+      try (Stream<Client> clients = delegate.streamAllClients()) {
+        clients.forEach(stats::update);
+      }
+      stats.save(binary, text);
+    }
+  }
+
+  @Override
+  public void saveClients(Client... clients) {
+    delegate.saveClients(clients);
+    for (Client client : clients) {
+      stats.update(client);
+    }
+  }
+
+  @Override
+  public void saveClient(Client client) {
+    delegate.saveClient(client);
+    stats.update(client);
+  }
+
+  @Override
+  public boolean saveIfVersion(Client client, int expectedVersion) {
+    if (!delegate.saveIfVersion(client, expectedVersion)) {
+      return false;
+    }
+    stats.update(client);
+    return true;
+  }
+
+  @Override
+  public void deleteClient(int chatId) {
+    delegate.deleteClient(chatId);
+    stats.remove(chatId);
+  }
+
+  @Override
+  public Stream<Client> streamClients() {
+    return delegate.streamClients();
+  }
+
+  @Override
+  public Stream<Client> streamAllClients() {
+    return delegate.streamAllClients();
+  }
+
+  @Override
+  public void forEachIndexedClient(ClientDo doable) {
+    delegate.forEachIndexedClient(doable);
+  }
+
+  @Override
+  public Client getClientByChatId(int chatId) {
+    return delegate.getClientByChatId(chatId);
+  }
+
+  @Override
+  public Client[] getClientsByChatIds(Set<Integer> chatIds) {
+    return delegate.getClientsByChatIds(chatIds);
+  }
+
+  @Override
+  public int getMaxUpdateId() {
+    return delegate.getMaxUpdateId();
+  }
+
+  @Override
+  public void saveMaxUpdateId(int id) {
+    delegate.saveMaxUpdateId(id);
+  }
+
+  @Override
+  public void flush() {
+    delegate.flush();
+    long now = System.currentTimeMillis();
+    if (now - lastDump >= DUMP_INTERVAL_MS) {
+      lastDump = now;
+      stats.save(binary, text);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+
+/**
+ * Tests for the incrementally maintained game stats: counts follow saves,
+ * survive a restart via the stats file and are shown by /stats42.
+ */
+public class GameStatsTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testCountsFollowSaves();
+        allTestsPassed &= testBuildAndReload();
+        allTestsPassed &= testAdminCommand();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome game stats tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testCountsFollowSaves() {
+        boolean testPassed = true;
+        GameStats stats = new GameStats();
+        Client a = new Client(1, "A");
+        Client b = new Client(2, "B");
+        b.level = 3;
+        b.totalFights = 10;
+        b.fightsWon = 10;
+        stats.update(a);
+        stats.update(b);
+        stats.update(new Client(-1, a)); // bots are not counted
+        testPassed &= assertEquals(2, (int) stats.getPlayerCount(), "Players should be counted once each");
+        testPassed &= assertEquals(1, (int) stats.getLevelCount(3), "Level count should include B");
+        testPassed &= assertEquals(1, (int) stats.getWinRateCount(0), "Player without fights has no win rate");
+        testPassed &= assertEquals(1, (int) stats.getWinRateCount(GameStats.WIN_BUCKETS - 1), "Unbeaten player should be at 100%");
+
+        a.level = 3;
+        a.status = Client.Status.FIGHTING;
+        a.setSuccessToday(4);
+        stats.update(a);
+        testPassed &= assertEquals(0, (int) stats.getLevelCount(1), "Level up should leave the old level");
+        testPassed &= assertEquals(2, (int) stats.getLevelCount(3), "Level up should join the new level");
+        testPassed &= assertEquals(1, (int) stats.getStatusCount(Client.Status.FIGHTING), "Status should follow saves");
+        testPassed &= assertEquals(1, (int) stats.getSuccessCount(2), "Four successes fall into the 3-5 bucket");
+
+        stats.rollOver(Client.now() + 24 * 60 * 60);
+        testPassed &= assertEquals(2, (int) stats.getSuccessCount(0), "A new game day should start everyone at 0");
+        testPassed &= assertEquals(2, (int) stats.getPlayerCount(), "Rolling over should keep every player");
+
+        stats.remove(2);
+        testPassed &= assertEquals(1, (int) stats.getPlayerCount(), "Deleted player should be dropped");
+        testPassed &= assertTrue(stats.report().contains("level 3: 1"), "Report should list counts per level");
+        return testPassed;
+    }
+
+    private static boolean testBuildAndReload() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("gamestats");
+        MockStorage backend = new MockStorage();
+        for (int i = 1; i <= 30; i++) {
+            Client c = new Client(i, "Player" + i);
+            c.level = 1 + i % 3;
+            backend.saveClient(c);
+        }
+
+        GameStats stats = new GameStats();
+        GameStatsStorage storage = new GameStatsStorage(backend, stats, dir.getPath());
+        testPassed &= assertEquals(10, (int) stats.getLevelCount(2), "First start should build the stats with a scan");
+        Client c = storage.getClientByChatId(1);
+        c.level = 5;
+        storage.saveClient(c);
+        storage.flush();
+        testPassed &= assertTrue(new File(dir, "stats.txt").exists(), "Flush should write the readable dump");
+
+        // Saves that bypass the stats must not be seen after a restart,
+        // proving the counts come from the file rather than a scan.
+        backend.saveClient(new Client(100, "Unseen"));
+        GameStats reloaded = new GameStats();
+        new GameStatsStorage(backend, reloaded, dir.getPath());
+        testPassed &= assertEquals(30, (int) reloaded.getPlayerCount(), "Restart should load the saved stats");
+        testPassed &= assertEquals(1, (int) reloaded.getLevelCount(5), "Saved counts should include the last update");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testAdminCommand() {
+        boolean testPassed = true;
+        MockStorage storage = new MockStorage();
+        MockTelegram telegram = new MockTelegram();
+        GameEngine engine = new GameEngine(storage, telegram);
+        GameStats.active = new GameStats();
+        GameStats.active.update(new Client(7, "Counted"));
+
+        telegram.simulateUserMessage(7, "Counted", "/stats42");
+        engine.processUpdate(telegram.getUpdates(1)[0]);
+        MockTelegram.SentMessage reply = telegram.getLastMessageForChat(7);
+        testPassed &= assertTrue(reply != null && reply.message.contains("players: 1"), "/stats42 should reply with the report");
+        GameStats.active = null;
+        return testPassed;
+    }
+}
@@ -0,0 +1,190 @@
+package FightLang;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+// Decorator that keeps a persisted index of the chats the engine needs at
+// startup: players that are not idle, injured, under a potion effect or
+// recently active. The index is updated on every save and stored in
+// vars/clientIndex.db, so GameEngine.initializeClientSets() loads those
+// clients only instead of scanning the whole store.
+//
+// A player entering the index in a non-idle status (ready, fighting) is
+// written to it before the save itself: without the entry a restart would
+// leave them with no timers and stuck in that status. Other changes are
+// only marked and written once per flush(), i.e. once per loop cycle; losing
+// them in a crash costs at most a late regeneration message or, for a stale
+// entry, one extra read at startup, since the engine checks every loaded
+// client again.
+class IndexedStorage implements StorageInterface {
+  static final String INDEX_VAR = "clientIndex";
+
+  private final StorageInterface delegate;
+  private final int activeWindowSeconds;
+  private Set<Integer> index;
+  private boolean indexChanged = false;
+
+  IndexedStorage(StorageInterface delegate, int activeWindowSeconds) {
+    this.delegate = delegate;
+    this.activeWindowSeconds = activeWindowSeconds;
+  }
+
+  @Override
+  public synchronized void saveClients(Client... clients) {
+    updateIndex(clients);
+    delegate.saveClients(clients);
+  }
+
+  @Override
+  public synchronized void saveClient(Client client) {
+    updateIndex(client);
+    delegate.saveClient(client);
+  }
+
+  @Override
+  public Stream<Client> streamClients() {
+    return delegate.streamClients();
+  }
+
+  @Override
+  public Stream<Client> streamAllClients() {
+    return delegate.streamAllClients();
+  }
+
+  @Override
+  public synchronized void forEachIndexedClient(ClientDo doable) {
+    if (!loadIndex()) {
+      rebuildIndex();
+    }
+    Set<Integer> stale = new HashSet<>();
+    for (int chatId : new TreeSet<>(index)) {
+      Client client = delegate.getClientByChatId(chatId);
+      if (client == null || !isIndexed(client)) {
+        stale.add(chatId);
+      }
+      if (client != null) {
+        doable.run(client);
+      }
+    }
+    if (!stale.isEmpty()) {
+      index.removeAll(stale);
+      indexChanged = true;
+    }
+  }
+
+  @Override
+  public Client getClientByChatId(int chatId) {
+    return delegate.getClientByChatId(chatId);
+  }
+
+  @Override
+  public Client[] getClientsByChatIds(Set<Integer> chatIds) {
+    return delegate.getClientsByChatIds(chatIds);
+  }
+
+  @Override
+  public synchronized void deleteClient(int chatId) {
+    delegate.deleteClient(chatId);
+    loadIndex();
+    if (index.remove(chatId)) {
+      indexChanged = true;
+    }
+  }
+
+  @Override
+  public int getMaxUpdateId() {
+    return delegate.getMaxUpdateId();
+  }
+
+  @Override
+  public void saveMaxUpdateId(int id) {
+    delegate.saveMaxUpdateId(id);
+  }
+
+  @Override
+  public synchronized void flush() {
+    delegate.flush();
+    if (indexChanged) {
+      persistIndex();
+    }
+  }
+
+  synchronized Set<Integer> getIndexedChatIds() {
+    loadIndex();
+    return new TreeSet<>(index);
+  }
+
+  private boolean isIndexed(Client client) {
+    if (client.chatId < 0) {
+      return false; // bots have no async logic as of now
+    }
+    int now = (int) (System.currentTimeMillis() / 1000L);
+    return client.status != Client.Status.IDLE
+        || client.hp < client.getMaxHp()
+        || client.hasActivePotionEffects()
+        || client.lastActivity > now - activeWindowSeconds;
+  }
+
+  private void updateIndex(Client... clients) {
+    loadIndex();
+    boolean persistNow = false;
+    for (Client client : clients) {
+      if (isIndexed(client)) {
+        if (index.add(client.chatId)) {
+          indexChanged = true;
+          persistNow |= client.status != Client.Status.IDLE;
+        }
+      } else if (index.remove(client.chatId)) {
+        indexChanged = true;
+      }
+    }
+    if (persistNow) {
+      persistIndex();
+    }
+  }
+
+  // Returns false when there is no index on disk yet.
+  private boolean loadIndex() {
+    if (index != null) {
+      return true;
+    }
+    index = new HashSet<>();
+    String value = Logger.getVar(INDEX_VAR);
+    if (value == null) {
+      return false;
+    }
+    for (String chatId : value.split(",")) {
+      if (!chatId.isEmpty()) {
+        index.add(Integer.parseInt(chatId));
+      }
+    }
+    return true;
+  }
+
+  // One full scan, the first time the bot starts with an index-less store.
+  private void rebuildIndex() {
+    Logger.log("Building client index");
+    delegate.forEachClient(new ClientDo() {
+      public void run(Client client) {
+        if (client != null && isIndexed(client)) {
+          index.add(client.chatId);
+        }
+      }
+    });
+    persistIndex();
+  }
+
+  private void persistIndex() {
+    StringBuilder value = new StringBuilder();
+    for (int chatId : index) {
+      if (value.length() > 0) {
+        value.append(',');
+      }
+      value.append(chatId);
+    }
+    Logger.saveVar(INDEX_VAR, value.toString());
+    indexChanged = false;
+  }
+}
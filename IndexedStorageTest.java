@@ -0,0 +1,144 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tests for the persisted startup index: incremental updates on save,
+ * reload from disk, pruning of stale entries and the one-off rebuild for
+ * stores that have no index yet.
+ */
+public class IndexedStorageTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testIndexUpdatedOnSave();
+        allTestsPassed &= testNonIdleAdditionWrittenWithSave();
+        allTestsPassed &= testStaleEntriesPruned();
+        allTestsPassed &= testRebuildWithoutIndex();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome indexed storage tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testIndexUpdatedOnSave() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("indexedstorage");
+
+        IndexedStorage storage = new IndexedStorage(new Storage(), 600);
+        Client idle = new Client(1, "Idle");
+        Client injured = new Client(2, "Injured");
+        injured.hp = 1;
+        Client ready = new Client(3, "Ready");
+        ready.status = Client.Status.READY_TO_FIGHT;
+        Client active = new Client(4, "Active");
+        active.lastActivity = (int) (System.currentTimeMillis() / 1000L);
+        Client bot = new Client(-5, injured);
+        storage.saveClients(idle, injured, active, bot);
+        testPassed &= assertTrue(Logger.getVar(IndexedStorage.INDEX_VAR) == null, "Index should not be written on every save");
+        storage.saveClient(ready);
+
+        testPassed &= assertEquals(ids(2, 3, 4), storage.getIndexedChatIds().toString(), "Only tracked players should be indexed");
+        storage.flush();
+        IndexedStorage reopened = new IndexedStorage(new Storage(), 600);
+        testPassed &= assertEquals(ids(2, 3, 4), visit(reopened), "Startup should load only indexed clients");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testNonIdleAdditionWrittenWithSave() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("indexedstorage");
+
+        IndexedStorage storage = new IndexedStorage(new Storage(), 600);
+        Client injured = new Client(1, "Injured");
+        injured.hp = 1;
+        Client fighting = new Client(2, "Fighting");
+        fighting.status = Client.Status.FIGHTING;
+        storage.saveClient(injured);
+        storage.saveClient(fighting);
+
+        // Killed before the next flush.
+        IndexedStorage reopened = new IndexedStorage(new Storage(), 600);
+        testPassed &= assertEquals(ids(1, 2), reopened.getIndexedChatIds().toString(),
+            "A player entering a fight should be indexed without waiting for flush");
+        testPassed &= assertEquals(ids(1, 2), visit(reopened), "Fighting player should be loaded at startup");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testStaleEntriesPruned() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("indexedstorage");
+
+        IndexedStorage storage = new IndexedStorage(new Storage(), 600);
+        Client injured = new Client(1, "Injured");
+        injured.hp = 1;
+        Client fighting = new Client(2, "Fighting");
+        fighting.status = Client.Status.FIGHTING;
+        storage.saveClients(injured, fighting);
+
+        injured.hp = injured.getMaxHp();
+        storage.saveClient(injured);
+        testPassed &= assertEquals(ids(2), storage.getIndexedChatIds().toString(), "Healed client should leave the index");
+        storage.flush();
+        testPassed &= assertEquals(ids(2), new IndexedStorage(new Storage(), 600).getIndexedChatIds().toString(),
+            "Removals should be persisted on flush");
+
+        // A client that changed behind the index's back is dropped on load.
+        fighting.status = Client.Status.IDLE;
+        new Storage().saveClient(fighting);
+        IndexedStorage reopened = new IndexedStorage(new Storage(), 600);
+        testPassed &= assertEquals(ids(), visit(reopened), "Stale entries should not be reported as tracked");
+        testPassed &= assertEquals(ids(), reopened.getIndexedChatIds().toString(), "Stale entries should be pruned");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testRebuildWithoutIndex() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("indexedstorage");
+
+        Storage plain = new Storage();
+        Client injured = new Client(1, "Injured");
+        injured.hp = 1;
+        plain.saveClients(injured, new Client(2, "Idle"));
+
+        IndexedStorage storage = new IndexedStorage(new Storage(), 600);
+        testPassed &= assertEquals(ids(1), visit(storage), "Missing index should be rebuilt from a full scan");
+        testPassed &= assertTrue(new File(dir, "vars/" + IndexedStorage.INDEX_VAR + ".db").exists(),
+            "Rebuilt index should be persisted");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static String visit(IndexedStorage storage) {
+        final Set<Integer> seen = new TreeSet<>();
+        storage.forEachIndexedClient(new ClientDo() {
+            public void run(Client c) {
+                if (c.status != Client.Status.IDLE || c.hp < c.getMaxHp() || c.lastActivity > 0) {
+                    seen.add(c.chatId);
+                }
+            }
+        });
+        return seen.toString();
+    }
+
+    private static String ids(Integer... chatIds) {
+        Set<Integer> result = new TreeSet<>();
+        for (int chatId : chatIds) {
+            result.add(chatId);
+        }
+        return result.toString();
+    }
+}
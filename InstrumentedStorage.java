@@ -0,0 +1,117 @@
+package FightLang;
+
+import java.util.Set;
+import java.util.stream.Stream;
+
+// Outermost decorator that times every client operation into StorageStats,
+// so the numbers include all the layers below, as the engine sees them.
+// Streams are timed from creation until they are closed.
+class InstrumentedStorage implements StorageInterface {
+  private final StorageInterface delegate;
+
+  InstrumentedStorage(StorageInterface delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void saveClients(Client... clients) {
+    long start = System.nanoTime();
+    try {
+      delegate.saveClients(clients);
+    } finally {
+      StorageStats.saveClients.recordSince(start);
+    }
+  }
+
+  @Override
+  public void saveClient(Client client) {
+    long start = System.nanoTime();
+    try {
+      delegate.saveClient(client);
+    } finally {
+      StorageStats.saveClient.recordSince(start);
+    }
+  }
+
+  @Override
+  public boolean saveIfVersion(Client client, int expectedVersion) {
+    long start = System.nanoTime();
+    try {
+      return delegate.saveIfVersion(client, expectedVersion);
+    } finally {
+      StorageStats.saveClient.recordSince(start);
+    }
+  }
+
+  @Override
+  public Stream<Client> streamClients() {
+    long start = System.nanoTime();
+    return delegate.streamClients().onClose(() -> StorageStats.scan.recordSince(start));
+  }
+
+  @Override
+  public Stream<Client> streamAllClients() {
+    long start = System.nanoTime();
+    return delegate.streamAllClients().onClose(() -> StorageStats.scan.recordSince(start));
+  }
+
+  @Override
+  public void forEachClient(ClientDo doable) {
+    long start = System.nanoTime();
+    try {
+      delegate.forEachClient(doable);
+    } finally {
+      StorageStats.scan.recordSince(start);
+    }
+  }
+
+  @Override
+  public void forEachIndexedClient(ClientDo doable) {
+    long start = System.nanoTime();
+    try {
+      delegate.forEachIndexedClient(doable);
+    } finally {
+      StorageStats.scan.recordSince(start);
+    }
+  }
+
+  @Override
+  public Client getClientByChatId(int chatId) {
+    long start = System.nanoTime();
+    try {
+      return delegate.getClientByChatId(chatId);
+    } finally {
+      StorageStats.getClient.recordSince(start);
+    }
+  }
+
+  @Override
+  public Client[] getClientsByChatIds(Set<Integer> chatIds) {
+    long start = System.nanoTime();
+    try {
+      return delegate.getClientsByChatIds(chatIds);
+    } finally {
+      StorageStats.getClients.recordSince(start);
+    }
+  }
+
+  @Override
+  public void deleteClient(int chatId) {
+    delegate.deleteClient(chatId);
+  }
+
+  @Override
+  public int getMaxUpdateId() {
+    return delegate.getMaxUpdateId();
+  }
+
+  @Override
+  public void saveMaxUpdateId(int id) {
+    delegate.saveMaxUpdateId(id);
+  }
+
+  @Override
+  public void flush() {
+    delegate.flush();
+  }
+}
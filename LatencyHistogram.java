@@ -0,0 +1,131 @@
+package FightLang;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free latency histogram in the style of HdrHistogram: every power of
+// two is split into eight linear buckets, so a recorded value is off by at
+// most 12.5% while 488 counters cover 1ns to beyond an hour. Recording is a
+// few atomic increments, cheap enough to wrap every storage call.
+class LatencyHistogram {
+  private static final int SUB_BITS = 3;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder total = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  static class Snapshot {
+    final long count;
+    final long meanNanos;
+    final long p50Nanos;
+    final long p90Nanos;
+    final long p99Nanos;
+    final long maxNanos;
+
+    Snapshot(long count, long meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long maxNanos) {
+      this.count = count;
+      this.meanNanos = meanNanos;
+      this.p50Nanos = p50Nanos;
+      this.p90Nanos = p90Nanos;
+      this.p99Nanos = p99Nanos;
+      this.maxNanos = maxNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("n=%d mean=%s p50=%s p90=%s p99=%s max=%s", count,
+          format(meanNanos), format(p50Nanos), format(p90Nanos), format(p99Nanos), format(maxNanos));
+    }
+
+    private static String format(long nanos) {
+      if (nanos < 10000L) {
+        return nanos + "ns";
+      }
+      if (nanos < 10000000L) {
+        return nanos / 1000L + "us";
+      }
+      return nanos / 1000000L + "ms";
+    }
+  }
+
+  void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(bucket(nanos));
+    total.increment();
+    sum.add(nanos);
+    max.accumulateAndGet(nanos, Math::max);
+  }
+
+  // Records the time elapsed since start, a System.nanoTime() reading.
+  void recordSince(long start) {
+    record(System.nanoTime() - start);
+  }
+
+  // Percentiles are reported as the upper bound of their bucket. Recording
+  // may go on while the snapshot is taken, so the numbers can be off by the
+  // values recorded meanwhile.
+  Snapshot snapshot() {
+    long[] copy = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+      count += copy[i];
+    }
+    long maxNanos = max.get();
+    if (count == 0) {
+      return new Snapshot(0, 0, 0, 0, 0, 0);
+    }
+    return new Snapshot(count, sum.sum() / Math.max(1, total.sum()),
+        percentile(copy, count, 0.50, maxNanos),
+        percentile(copy, count, 0.90, maxNanos),
+        percentile(copy, count, 0.99, maxNanos),
+        maxNanos);
+  }
+
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    total.reset();
+    sum.reset();
+    max.set(0);
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_COUNT) {
+      return (int) value;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+    return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+  }
+
+  // Smallest value that falls into the bucket.
+  static long lowerBound(int bucket) {
+    if (bucket < SUB_COUNT) {
+      return bucket;
+    }
+    int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+    long sub = bucket % SUB_COUNT;
+    return (SUB_COUNT + sub) << (exp - SUB_BITS);
+  }
+
+  private static long percentile(long[] copy, long count, double p, long maxNanos) {
+    long rank = (long) Math.ceil(p * count);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += copy[i];
+      if (seen >= rank) {
+        long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+        return Math.min(upper, maxNanos);
+      }
+    }
+    return maxNanos;
+  }
+}
@@ -0,0 +1,496 @@
+package FightLang;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Client store backed by append-only segment files. Every save appends a
+// record to the active segment and moves the chatId -> location index entry,
+// so a hit costs one sequential write instead of a truncate/rewrite of a
+// per-client file. Superseded records are dropped by compaction.
+//
+// Record layout: [int length][int crc32][int chatId][length bytes payload],
+// where the payload is a ClientCodec record (or legacy JSON imported from
+// db/clients, which is decoded the same way). The checksum covers chatId and
+// payload, so a torn write at the tail of the log is detected and cut off
+// when the log is replayed on startup.
+//
+// deleteClient() appends a tombstone, a record with an empty payload. A
+// tombstone counts as live data and is carried along by compaction for as
+// long as an older segment may still hold a record of its chat; once its
+// own segment is the oldest one it is dropped.
+class LogStorage implements StorageInterface {
+  private static final String SEGMENT_EXT = ".seg";
+  static final int HEADER_SIZE = 12;
+  static final int MAX_RECORD_SIZE = 1 << 20;
+  private static final long DEFAULT_SEGMENT_BYTES = 16L << 20;
+  private static final long COMPACTION_INTERVAL_MS = 60 * 1000L;
+  // Segments whose live data falls under this share get rewritten.
+  private static final double COMPACTION_LIVE_RATIO = 0.5;
+  private static final int COMPACTION_BATCH = 256;
+
+  private static class Location {
+    final int segment;
+    final long offset;
+    final int size; // whole record including the header
+
+    Location(int segment, long offset, int size) {
+      this.segment = segment;
+      this.offset = offset;
+      this.size = size;
+    }
+  }
+
+  private final File dir;
+  private final long maxSegmentBytes;
+  private final boolean fsync;
+  private final Map<Integer, Location> index = new HashMap<>();
+  // chatId -> latest record if that is a tombstone
+  private final Map<Integer, Location> tombstones = new HashMap<>();
+  private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+  // segment id -> bytes of records still referenced by the index
+  private final Map<Integer, Long> liveBytes = new HashMap<>();
+  private int activeSegment;
+  private FileChannel active;
+  private Thread compactor;
+
+  LogStorage(String path) {
+    this(path, DEFAULT_SEGMENT_BYTES, false);
+  }
+
+  LogStorage(String path, long maxSegmentBytes, boolean fsync) {
+    this.dir = new File(path);
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.fsync = fsync;
+    dir.mkdirs();
+    try {
+      replay();
+    } catch (IOException e) {
+      Logger.logException(e);
+      throw new IllegalStateException("Could not open client log " + path, e);
+    }
+  }
+
+  // Copies clients from the one-file-per-client layout, used the first time
+  // the bot starts on an empty log.
+  synchronized void importFromFiles() {
+    if (!index.isEmpty()) {
+      return;
+    }
+    List<String> names = Logger.getAllClientNames();
+    for (String name : names) {
+      String json = Logger.getClient(name);
+      if (json == null || json.isEmpty()) {
+        continue;
+      }
+      try {
+        append(new int[] {Integer.parseInt(name)},
+            new byte[][] {json.getBytes(StandardCharsets.UTF_8)});
+      } catch (NumberFormatException | IOException e) {
+        Logger.logException(e);
+      }
+    }
+    Logger.log("Imported " + index.size() + " clients into " + dir);
+  }
+
+  // Starts the background thread that rewrites mostly-dead segments.
+  synchronized void startCompaction() {
+    if (compactor != null) {
+      return;
+    }
+    compactor = new Thread(new Runnable() {
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            Thread.sleep(COMPACTION_INTERVAL_MS);
+            compact();
+          } catch (InterruptedException e) {
+            return;
+          } catch (Exception e) {
+            Logger.logException(e);
+          }
+        }
+      }
+    }, "log-compactor");
+    compactor.setDaemon(true);
+    compactor.start();
+  }
+
+  @Override
+  public void saveClients(Client... clients) {
+    int[] chatIds = new int[clients.length];
+    byte[][] payloads = new byte[clients.length][];
+    for (int i = 0; i < clients.length; i++) {
+      chatIds[i] = clients[i].chatId;
+      payloads[i] = ClientCodec.encode(clients[i]);
+    }
+    try {
+      append(chatIds, payloads);
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+  }
+
+  @Override
+  public void saveClient(Client client) {
+    saveClients(client);
+  }
+
+  @Override
+  public Stream<Client> streamClients() {
+    List<Map.Entry<Integer, Location>> entries;
+    synchronized (this) {
+      entries = new ArrayList<>(index.entrySet());
+    }
+    // Visit records in file order so the scan reads the log sequentially.
+    entries.sort(new Comparator<Map.Entry<Integer, Location>>() {
+      public int compare(Map.Entry<Integer, Location> a, Map.Entry<Integer, Location> b) {
+        if (a.getValue().segment != b.getValue().segment) {
+          return Integer.compare(a.getValue().segment, b.getValue().segment);
+        }
+        return Long.compare(a.getValue().offset, b.getValue().offset);
+      }
+    });
+    // Only the read is under the lock; decoding runs on the stream's threads.
+    return entries.stream()
+        .map(entry -> getClientByChatId(entry.getKey()))
+        .filter(Objects::nonNull);
+  }
+
+  @Override
+  public Client getClientByChatId(int chatId) {
+    byte[] payload = readPayload(chatId);
+    if (payload == null) {
+      return null;
+    }
+    try {
+      return ClientCodec.decode(payload);
+    } catch (RuntimeException e) {
+      Logger.logException(new Exception("Undecodable record of " + chatId, e));
+      return null;
+    }
+  }
+
+  @Override
+  public Client[] getClientsByChatIds(Set<Integer> chatIds) {
+    Client[] result = new Client[chatIds.size()];
+    int i = 0;
+    for (int chatId : chatIds) {
+      result[i] = getClientByChatId(chatId);
+      i++;
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized void deleteClient(int chatId) {
+    if (!index.containsKey(chatId)) {
+      return;
+    }
+    try {
+      append(new int[] {chatId}, new byte[][] {new byte[0]});
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+  }
+
+  @Override
+  public int getMaxUpdateId() {
+    Integer result = Logger.getIntVar("maxUpdateId");
+    if (result == null) {
+      result = 0;
+    }
+    return result;
+  }
+
+  @Override
+  public void saveMaxUpdateId(int id) {
+    Logger.saveIntVar("maxUpdateId", id);
+  }
+
+  // Rewrites the live records of sealed segments that are mostly garbage
+  // into the active segment and deletes the old files. Records are moved in
+  // small batches so saves from the game thread are never blocked for long.
+  void compact() throws IOException {
+    List<Integer> candidates = new ArrayList<>();
+    synchronized (this) {
+      for (Map.Entry<Integer, FileChannel> s : segments.entrySet()) {
+        int id = s.getKey();
+        if (id == activeSegment) {
+          continue;
+        }
+        long size = s.getValue().size();
+        long live = liveBytes.getOrDefault(id, 0L);
+        if (size == 0 || live < size * COMPACTION_LIVE_RATIO) {
+          candidates.add(id);
+        }
+      }
+    }
+    for (int segment : candidates) {
+      compactSegment(segment);
+    }
+  }
+
+  synchronized void close() {
+    if (compactor != null) {
+      compactor.interrupt();
+      compactor = null;
+    }
+    for (FileChannel ch : segments.values()) {
+      try {
+        ch.close();
+      } catch (IOException e) {
+        Logger.logException(e);
+      }
+    }
+    segments.clear();
+    active = null;
+  }
+
+  synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  private void compactSegment(int segment) throws IOException {
+    List<Integer> chatIds = new ArrayList<>();
+    synchronized (this) {
+      for (Map.Entry<Integer, Location> e : index.entrySet()) {
+        if (e.getValue().segment == segment) {
+          chatIds.add(e.getKey());
+        }
+      }
+      if (segment != segments.firstKey()) {
+        // Older segments may still hold records these tombstones cancel.
+        for (int chatId : tombstonesIn(segment)) {
+          append(new int[] {chatId}, new byte[][] {new byte[0]});
+        }
+      }
+    }
+    for (int from = 0; from < chatIds.size(); from += COMPACTION_BATCH) {
+      int to = Math.min(from + COMPACTION_BATCH, chatIds.size());
+      synchronized (this) {
+        for (int chatId : chatIds.subList(from, to)) {
+          Location loc = index.get(chatId);
+          if (loc == null || loc.segment != segment) {
+            continue; // saved again since we looked
+          }
+          byte[] payload = readPayload(chatId);
+          if (payload != null) {
+            append(new int[] {chatId}, new byte[][] {payload});
+          }
+        }
+      }
+    }
+    synchronized (this) {
+      List<Integer> dead = tombstonesIn(segment);
+      long tombstoneBytes = (long) dead.size() * HEADER_SIZE;
+      if (liveBytes.getOrDefault(segment, 0L) > tombstoneBytes) {
+        return;
+      }
+      // Whatever tombstones are left sit in the oldest segment, with
+      // nothing older to cancel.
+      for (int chatId : dead) {
+        removeTombstone(chatId);
+      }
+      FileChannel ch = segments.remove(segment);
+      liveBytes.remove(segment);
+      ch.close();
+      if (!segmentFile(segment).delete()) {
+        Logger.log("Could not delete compacted segment " + segment);
+      }
+    }
+  }
+
+  private List<Integer> tombstonesIn(int segment) {
+    List<Integer> chatIds = new ArrayList<>();
+    for (Map.Entry<Integer, Location> e : tombstones.entrySet()) {
+      if (e.getValue().segment == segment) {
+        chatIds.add(e.getKey());
+      }
+    }
+    return chatIds;
+  }
+
+  private synchronized void append(int[] chatIds, byte[][] payloads) throws IOException {
+    int total = 0;
+    for (byte[] payload : payloads) {
+      total += HEADER_SIZE + payload.length;
+    }
+    if (active.size() > 0 && active.size() + total > maxSegmentBytes) {
+      openSegment(activeSegment + 1);
+    }
+    // All records of one call go out in a single write.
+    ByteBuffer buf = ByteBuffer.allocate(total);
+    for (int i = 0; i < payloads.length; i++) {
+      buf.putInt(payloads[i].length);
+      buf.putInt(checksum(chatIds[i], payloads[i]));
+      buf.putInt(chatIds[i]);
+      buf.put(payloads[i]);
+    }
+    buf.flip();
+    long offset = active.size();
+    while (buf.hasRemaining()) {
+      active.write(buf, active.size());
+    }
+    StorageStats.written(total);
+    if (fsync) {
+      active.force(false);
+      StorageStats.fsynced();
+    }
+    for (int i = 0; i < payloads.length; i++) {
+      int size = HEADER_SIZE + payloads[i].length;
+      setLocation(chatIds[i], new Location(activeSegment, offset, size));
+      offset += size;
+    }
+  }
+
+  private synchronized byte[] readPayload(int chatId) {
+    Location loc = index.get(chatId);
+    if (loc == null) {
+      return null;
+    }
+    try {
+      ByteBuffer buf = ByteBuffer.allocate(loc.size);
+      FileChannel ch = segments.get(loc.segment);
+      while (buf.hasRemaining()) {
+        if (ch.read(buf, loc.offset + buf.position()) < 0) {
+          throw new IOException("Unexpected end of segment " + loc.segment);
+        }
+      }
+      StorageStats.read(loc.size);
+      byte[] payload = new byte[loc.size - HEADER_SIZE];
+      System.arraycopy(buf.array(), HEADER_SIZE, payload, 0, payload.length);
+      return payload;
+    } catch (IOException e) {
+      Logger.logException(e);
+      return null;
+    }
+  }
+
+  // An empty record (just the header) is a tombstone.
+  private void setLocation(int chatId, Location loc) {
+    removeTombstone(chatId);
+    Location old = loc.size == HEADER_SIZE ? index.remove(chatId) : index.put(chatId, loc);
+    if (old != null) {
+      addLiveBytes(old.segment, -old.size);
+    }
+    if (loc.size == HEADER_SIZE) {
+      tombstones.put(chatId, loc);
+    }
+    addLiveBytes(loc.segment, loc.size);
+  }
+
+  private void removeTombstone(int chatId) {
+    Location old = tombstones.remove(chatId);
+    if (old != null) {
+      addLiveBytes(old.segment, -old.size);
+    }
+  }
+
+  private void addLiveBytes(int segment, long bytes) {
+    liveBytes.put(segment, liveBytes.getOrDefault(segment, 0L) + bytes);
+  }
+
+  // Rebuilds the index by reading every segment in order. A record that is
+  // cut short or fails its checksum marks the end of the valid log; anything
+  // after it is a write that never completed and is truncated away.
+  private void replay() throws IOException {
+    File[] files = dir.listFiles();
+    List<Integer> ids = new ArrayList<>();
+    for (File f : files) {
+      String name = f.getName();
+      if (f.isFile() && name.endsWith(SEGMENT_EXT)) {
+        ids.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXT.length())));
+      }
+    }
+    Integer[] sorted = ids.toArray(new Integer[0]);
+    Arrays.sort(sorted);
+    for (int id : sorted) {
+      FileChannel ch = open(id);
+      segments.put(id, ch);
+      long valid = scanSegment(id, ch);
+      if (valid < ch.size()) {
+        Logger.log("Truncating segment " + id + " from " + ch.size() + " to " + valid
+            + " bytes after an incomplete write");
+        ch.truncate(valid);
+      }
+    }
+    if (segments.isEmpty()) {
+      openSegment(1);
+    } else {
+      activeSegment = segments.lastKey();
+      active = segments.get(activeSegment);
+    }
+  }
+
+  private long scanSegment(int segment, FileChannel ch) throws IOException {
+    long pos = 0;
+    long size = ch.size();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (pos + HEADER_SIZE <= size) {
+      header.clear();
+      readFully(ch, header, pos);
+      header.flip();
+      int length = header.getInt();
+      int crc = header.getInt();
+      int chatId = header.getInt();
+      if (length < 0 || length > MAX_RECORD_SIZE || pos + HEADER_SIZE + length > size) {
+        return pos;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      readFully(ch, payload, pos + HEADER_SIZE);
+      if (checksum(chatId, payload.array()) != crc) {
+        return pos;
+      }
+      setLocation(chatId, new Location(segment, pos, HEADER_SIZE + length));
+      pos += HEADER_SIZE + length;
+    }
+    return pos;
+  }
+
+  private void openSegment(int id) throws IOException {
+    FileChannel ch = open(id);
+    segments.put(id, ch);
+    activeSegment = id;
+    active = ch;
+  }
+
+  private FileChannel open(int id) throws IOException {
+    return new RandomAccessFile(segmentFile(id), "rw").getChannel();
+  }
+
+  private File segmentFile(int id) {
+    return new File(dir, String.format("%08d", id) + SEGMENT_EXT);
+  }
+
+  private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+    while (buf.hasRemaining()) {
+      if (ch.read(buf, pos + buf.position()) < 0) {
+        throw new IOException("Unexpected end of segment");
+      }
+    }
+  }
+
+  static int checksum(int chatId, byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(ByteBuffer.allocate(4).putInt(chatId).array());
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+}
@@ -0,0 +1,198 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Tests for the append-only segment log client store: reload from disk,
+ * compaction of superseded records, deletes and recovery from a torn tail
+ * write.
+ */
+public class LogStorageTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testSaveAndReload();
+        allTestsPassed &= testCompaction();
+        allTestsPassed &= testDeleteClient();
+        allTestsPassed &= testTornTailRecovery();
+        allTestsPassed &= testLegacyImport();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome log storage tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testSaveAndReload() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("logstorage");
+
+        LogStorage storage = new LogStorage(dir.getPath() + "/log");
+        Client alice = new Client(100, "Alice");
+        Client bob = new Client(200, "Bob");
+        storage.saveClients(alice, bob);
+        alice.exp = 42;
+        alice.giveItem(Game.Item.GOLD);
+        storage.saveClient(alice);
+        storage.close();
+
+        storage = new LogStorage(dir.getPath() + "/log");
+        Client loaded = storage.getClientByChatId(100);
+        testPassed &= assertTrue(loaded != null, "Saved client should be found after reopening");
+        if (loaded != null) {
+            testPassed &= assertEquals(42, loaded.exp, "Latest record should win on replay");
+            testPassed &= assertEquals(1, loaded.getItemNum(Game.Item.GOLD), "Inventory should survive reload");
+        }
+        testPassed &= assertEquals("Bob", storage.getClientByChatId(200).username, "Second client should survive reload");
+        testPassed &= assertTrue(storage.getClientByChatId(300) == null, "Unknown client should be null");
+
+        final int[] seen = {0};
+        storage.forEachClient(new ClientDo() {
+            public void run(Client c) {
+                seen[0]++;
+            }
+        });
+        testPassed &= assertEquals(2, seen[0], "Scan should visit each client once");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testCompaction() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("logstorage");
+
+        // Tiny segments so that a few saves roll over many files.
+        LogStorage storage = new LogStorage(dir.getPath() + "/log", 2048, false);
+        Client client = new Client(100, "Compacted");
+        for (int i = 0; i < 500; i++) {
+            client.exp = i;
+            storage.saveClient(client);
+        }
+        storage.saveClient(new Client(200, "Other"));
+        int before = storage.getSegmentCount();
+        storage.compact();
+        int after = storage.getSegmentCount();
+        testPassed &= assertTrue(before > 3, "Test should produce several segments");
+        testPassed &= assertTrue(after < before, "Compaction should delete superseded segments");
+        testPassed &= assertEquals(499, storage.getClientByChatId(100).exp, "Compaction must keep latest value");
+        storage.close();
+
+        storage = new LogStorage(dir.getPath() + "/log", 2048, false);
+        testPassed &= assertEquals(499, storage.getClientByChatId(100).exp, "Compacted log should replay correctly");
+        testPassed &= assertEquals("Other", storage.getClientByChatId(200).username, "Unrelated client should survive compaction");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testDeleteClient() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("logstorage");
+
+        LogStorage storage = new LogStorage(dir.getPath() + "/log", 2048, false);
+        storage.saveClient(new Client(300, "Deleted"));
+        storage.saveClient(new Client(400, "Returning"));
+        Client client = new Client(100, "Churn");
+        for (int i = 0; i < 200; i++) {
+            client.exp = i;
+            storage.saveClient(client);
+        }
+        storage.deleteClient(300);
+        storage.deleteClient(400);
+        storage.deleteClient(500);
+        testPassed &= assertTrue(storage.getClientByChatId(300) == null, "Deleted client should be gone");
+        storage.saveClient(new Client(400, "Returning"));
+        for (int i = 200; i < 400; i++) {
+            client.exp = i;
+            storage.saveClient(client);
+        }
+        storage.close();
+
+        storage = new LogStorage(dir.getPath() + "/log", 2048, false);
+        testPassed &= assertTrue(storage.getClientByChatId(300) == null, "Tombstone should survive replay");
+        testPassed &= assertEquals("Returning", storage.getClientByChatId(400).username, "Saving after a delete should win");
+        storage.compact();
+        storage.close();
+
+        storage = new LogStorage(dir.getPath() + "/log", 2048, false);
+        testPassed &= assertTrue(storage.getClientByChatId(300) == null, "Compaction must not resurrect deleted clients");
+        testPassed &= assertEquals("Returning", storage.getClientByChatId(400).username, "Compaction should keep re-saved clients");
+        testPassed &= assertEquals(399, storage.getClientByChatId(100).exp, "Compaction must keep latest value");
+        final int[] seen = {0};
+        storage.forEachClient(new ClientDo() {
+            public void run(Client c) {
+                seen[0]++;
+            }
+        });
+        testPassed &= assertEquals(2, seen[0], "Scan should skip deleted clients");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testTornTailRecovery() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("logstorage");
+
+        LogStorage storage = new LogStorage(dir.getPath() + "/log");
+        Client client = new Client(100, "Survivor");
+        client.exp = 7;
+        storage.saveClient(client);
+        storage.close();
+
+        // Simulate a crash in the middle of an append: a header promising
+        // more bytes than were written.
+        File segment = new File(dir, "log/00000001.seg");
+        long validLength = segment.length();
+        try (FileOutputStream out = new FileOutputStream(segment, true)) {
+            out.write(new byte[] {0, 0, 1, 0, 1, 2, 3, 4, 0, 0, 0, 100, '{'});
+        }
+
+        storage = new LogStorage(dir.getPath() + "/log");
+        testPassed &= assertEquals(7, storage.getClientByChatId(100).exp, "Valid records should survive a torn tail");
+        testPassed &= assertTrue(segment.length() == validLength, "Torn tail should be truncated");
+        client.exp = 8;
+        storage.saveClient(client);
+        storage.close();
+
+        storage = new LogStorage(dir.getPath() + "/log");
+        testPassed &= assertEquals(8, storage.getClientByChatId(100).exp, "Appends after recovery should replay");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testLegacyImport() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("logstorage");
+
+        Client legacy = new Client(100, "Legacy");
+        legacy.exp = 55;
+        Logger.writeClient("100", new com.google.gson.Gson().toJson(legacy));
+
+        LogStorage storage = new LogStorage(dir.getPath() + "/log");
+        storage.importFromFiles();
+        testPassed &= assertEquals(55, storage.getClientByChatId(100).exp, "Imported JSON record should be readable");
+        Client loaded = storage.getClientByChatId(100);
+        loaded.exp = 56;
+        storage.saveClient(loaded);
+        storage.close();
+
+        storage = new LogStorage(dir.getPath() + "/log");
+        storage.importFromFiles(); // no-op on a populated log
+        testPassed &= assertEquals(56, storage.getClientByChatId(100).exp, "Re-saved record should be stored in binary form");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+}
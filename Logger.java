@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -11,16 +12,31 @@ import java.io.StringWriter;
 
 import java.lang.Runtime;
 
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -30,16 +46,32 @@ class Logger {
   private static String clientsPath;
   private static String varsPath;
   private static String exceptionsLog;
+  private static String lockFile;
+  private static FileChannel lockChannel;
   private static final String EXT = ".db";
   private static final String BACKUP_FILE = ".backup";
+  private static final String JOURNAL_PREFIX = ".journal-";
+  private static final String JOURNAL_MAGIC = "FLJ1";
+  private static final String TMP_SUFFIX = ".tmp-";
+  private static final String SHARD_GLOB = "[0-9a-f][0-9a-f]";
   private static final String CONFIG_FILE = "config.json";
+  private static final String VARS_FILE = "vars.map";
   private static PrintWriter logsWriter;
+  private static boolean flatClientsRemain = false;
+  private static VarsStore vars;
+  private static boolean varsFsync = false;
+  // Seeded from the clock so journals of a restarted process sort after
+  // any left behind by the previous one.
+  private static final AtomicLong journalSeq = new AtomicLong(System.currentTimeMillis() * 1000);
+  private static final List<File> appliedJournals = new ArrayList<>();
+  private static final Set<String> unsyncedClients = new HashSet<>();
 
   public static void initialize() {
     if (hasClientsBackup()) {
       restoreClientsFromBackup();
       removeClientsBackup();
     }
+    replayJournals();
   }
 
   static void logException(Exception e) {
@@ -80,65 +112,394 @@ class Logger {
     exceptionsLog = path + "/exceptions_log";
     logsFile = path + "/network";
     varsPath = path + "/vars/";
+    lockFile = path + "/bot.lock";
+    flatClientsRemain = hasFlatClients();
+    closeVarsStore();
+  }
+
+  // Takes the database for this process until it exits. The bot holds it
+  // while it runs, so tools that need the database to themselves (migrate,
+  // restore) can refuse to start next to it. Returns false if another
+  // process has it.
+  static boolean lockDb() {
+    try {
+      FileChannel channel = FileChannel.open(Paths.get(lockFile),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      if (channel.tryLock() == null) {
+        channel.close();
+        return false;
+      }
+      lockChannel = channel;
+      return true;
+    } catch (java.nio.channels.OverlappingFileLockException e) {
+      return false; // this process has it already
+    } catch (IOException e) {
+      logException(e);
+      return false;
+    }
+  }
+
+  // Client files live in clients/ab/cd/<chatId>.db, where ab/cd come from a
+  // hash of the chat id, so no directory holds more than a few files and
+  // scans can proceed shard by shard. Files of the old flat layout
+  // (clients/<chatId>.db) are still read until "Migrator db shard" has
+  // moved them; writes always go to the sharded path.
+  static String clientFile(String name) {
+    int h = name.hashCode() * 0x9E3779B1;
+    return String.format("%s%02x/%02x/%s%s",
+        clientsPath, (h >>> 24) & 0xff, (h >>> 16) & 0xff, name, EXT);
   }
 
   static List<String> getAllClientNames() {
-    List<String> result = new LinkedList<>();
-    File folder = new File(clientsPath);
-    File[] listOfFiles = folder.listFiles();
-    for (File f : listOfFiles) {
-      if (f.isFile()) {
-        String fileName = f.getName();
-        String name = fileName.substring(0, fileName.length() - EXT.length());
-        result.add(name);
+    try (Stream<String> names = streamClientNames()) {
+      return names.collect(Collectors.toList());
+    }
+  }
+
+  // Lists client names lazily, one shard directory at a time, followed by
+  // any files left in the flat layout. The shard list splits evenly, so a
+  // parallel stream lists and reads different shards on different threads.
+  // Close the stream to release the directory handles.
+  static Stream<String> streamClientNames() {
+    List<Path> shards = new ArrayList<>();
+    try (DirectoryStream<Path> top = Files.newDirectoryStream(Paths.get(clientsPath), SHARD_GLOB)) {
+      for (Path first : top) {
+        try (DirectoryStream<Path> second = Files.newDirectoryStream(first, SHARD_GLOB)) {
+          for (Path shard : second) {
+            shards.add(shard);
+          }
+        }
       }
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+    return Stream.concat(
+        shards.stream().flatMap(Logger::streamNamesIn),
+        streamNamesIn(Paths.get(clientsPath)));
+  }
+
+  // Moves every client file of the flat layout into its shard by linking it
+  // there and unlinking the flat name. Safe to run while the bot is up: if
+  // the bot has written the sharded file in the meantime, that copy is newer
+  // and the flat one is dropped; a flat file the bot has removed itself is
+  // skipped. Returns the number of files moved.
+  static int shardClients() {
+    return shardClients(p -> {});
+  }
+
+  // beforeMove is called with each flat file before it is moved.
+  static int shardClients(Consumer<Path> beforeMove) {
+    int moved = 0;
+    try (DirectoryStream<Path> flat = Files.newDirectoryStream(Paths.get(clientsPath), "*" + EXT)) {
+      for (Path p : flat) {
+        beforeMove.accept(p);
+        String fileName = p.getFileName().toString();
+        Path target = Paths.get(clientFile(fileName.substring(0, fileName.length() - EXT.length())));
+        try {
+          Files.createDirectories(target.getParent());
+          try {
+            // Unlike rename, linking fails instead of replacing a newer file.
+            Files.createLink(target, p);
+          } catch (FileAlreadyExistsException e) {
+            // Keep the sharded copy the bot has written meanwhile.
+          }
+          Files.deleteIfExists(p);
+          moved++;
+        } catch (NoSuchFileException e) {
+          // Re-saved by the bot since the listing, which dropped the flat file.
+        } catch (IOException e) {
+          Logger.logException(e);
+        }
+      }
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+    return moved;
+  }
+
+  private static boolean hasFlatClients() {
+    try (DirectoryStream<Path> flat = Files.newDirectoryStream(Paths.get(clientsPath), "*" + EXT)) {
+      return flat.iterator().hasNext();
+    } catch (IOException e) {
+      return false;
     }
-    return result;
   }
 
+  private static Stream<String> streamNamesIn(Path path) {
+    DirectoryStream<Path> dir;
+    try {
+      dir = Files.newDirectoryStream(path, "*" + EXT);
+    } catch (IOException e) {
+      Logger.logException(e);
+      return Stream.empty();
+    }
+    return StreamSupport.stream(dir.spliterator(), false)
+        .onClose(() -> {
+          try {
+            dir.close();
+          } catch (IOException e) {
+            Logger.logException(e);
+          }
+        })
+        .map(p -> p.getFileName().toString())
+        .map(fileName -> fileName.substring(0, fileName.length() - EXT.length()));
+  }
+
+  // A single file is replaced atomically by renaming a temp file over it, so
+  // it needs no journal, unless a journal that is not checkpointed yet also
+  // holds the client: replaying that one after a crash would bring back the
+  // older value, so the new one is journaled after it.
   static void saveClient(String name, String value) {
-    makeClientBackup(name);
-    writeClient(name, value); 
-    removeClientsBackup();
+    boolean journaled;
+    synchronized (appliedJournals) {
+      journaled = unsyncedClients.contains(clientFile(name));
+    }
+    if (journaled) {
+      commitClients(new String[] {name}, new String[] {value});
+    } else {
+      writeClient(name, value);
+    }
   }
 
+  // Multi-client commit: the new values go to a checksummed redo journal
+  // with a single fsync, which is the commit point. The client files are
+  // then replaced by rename. Journals are only deleted by
+  // checkpointClients() once the files they cover have been synced, so a
+  // crash at any point replays whole commits on the next initialize().
   static void saveClients(String[] names, String[] values) {
     assert names.length == values.length;
-    makeClientsBackup(names);
+    if (names.length == 1) {
+      saveClient(names[0], values[0]);
+      return;
+    }
+    commitClients(names, values);
+  }
+
+  private static void commitClients(String[] names, String[] values) {
+    File journal = writeJournal(names, values);
+    if (journal == null) {
+      return;
+    }
     for (int i = 0; i < names.length; i++) {
-      writeClient(names[i], values[i]); 
+      writeClient(names[i], values[i]);
+    }
+    synchronized (appliedJournals) {
+      appliedJournals.add(journal);
+      for (String name : names) {
+        unsyncedClients.add(clientFile(name));
+      }
     }
-    removeClientsBackup();
   }
 
   static void writeClient(String name, String value) {
-    try (FileWriter fw = new FileWriter(clientsPath + name + EXT, false)) {
-      fw.write(value);
+    String filename = clientFile(name);
+    new File(filename).getParentFile().mkdirs();
+    replaceFile(clientsPath, filename, value);
+    if (flatClientsRemain) {
+      // The sharded copy is now the newer one.
+      new File(clientsPath + name + EXT).delete();
+    }
+  }
+
+  static void deleteClient(String name) {
+    new File(clientFile(name)).delete();
+    if (flatClientsRemain) {
+      new File(clientsPath + name + EXT).delete();
+    }
+  }
+
+  // Makes the client files written by saveClients durable and drops the
+  // journals that covered them. Called once per main loop iteration, so the
+  // file fsyncs are shared by every commit of that iteration.
+  static void checkpointClients() {
+    List<File> journals;
+    Set<String> filenames;
+    synchronized (appliedJournals) {
+      if (appliedJournals.isEmpty()) {
+        return;
+      }
+      journals = new ArrayList<>(appliedJournals);
+      filenames = new HashSet<>(unsyncedClients);
+      appliedJournals.clear();
+      unsyncedClients.clear();
+    }
+    try {
+      Set<String> dirs = new HashSet<>();
+      for (String filename : filenames) {
+        try (FileChannel ch = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE)) {
+          StorageStats.opened();
+          ch.force(true);
+          StorageStats.fsynced();
+          dirs.add(new File(filename).getParent());
+        } catch (NoSuchFileException e) {
+          // Replaced or removed since; nothing left to sync.
+        }
+      }
+      for (String dir : dirs) {
+        syncDir(dir);
+      }
     } catch (IOException e) {
+      // Leave the journals in place; they are replayed on restart.
       Logger.logException(e);
+      return;
+    }
+    for (File journal : journals) {
+      journal.delete();
+      StorageStats.backupOp();
     }
   }
 
+  static File writeJournal(String[] names, String[] values) {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < names.length; i++) {
+      body.append(names[i]).append(';').append(values[i]).append('\n');
+    }
+    byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    String header = JOURNAL_MAGIC + " " + names.length + " " + crc.getValue() + "\n";
+    File journal = new File(String.format("%s%s%020d",
+        clientsPath, JOURNAL_PREFIX, journalSeq.incrementAndGet()));
+    try (FileOutputStream out = new FileOutputStream(journal)) {
+      StorageStats.opened();
+      StorageStats.backupOp();
+      byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+      out.write(headerBytes);
+      out.write(bytes);
+      StorageStats.written(headerBytes.length + bytes.length);
+      out.getFD().sync();
+      StorageStats.fsynced();
+    } catch (IOException e) {
+      journal.delete();
+      Logger.logException(e);
+      return null;
+    }
+    return journal;
+  }
+
   static String getClient(String name) {
-    return readOneLineFile(clientsPath + name + EXT, true);
+    String value = readOneLineFile(clientFile(name), true);
+    if (value == null && flatClientsRemain) {
+      value = readOneLineFile(clientsPath + name + EXT, true);
+      if (value == null) {
+        // Moved by a concurrent "Migrator db shard" between the two reads.
+        value = readOneLineFile(clientFile(name), true);
+      }
+    }
+    return value;
   }
 
+  // Int vars live in the memory-mapped vars/vars.map; a plain file per var
+  // is only used if the map cannot be opened or is full.
   static void saveIntVar(String name, int value) {
-      // TODO: for some variables (maxUpdateId) it would be better to open file once
-      // and use flush to save data.
-    try (FileWriter fw = new FileWriter(varsPath + name + EXT, false)) {
-      fw.write(Integer.toString(value));
-    } catch (IOException e) {
-      Logger.logException(e);
+    long start = System.nanoTime();
+    try {
+      VarsStore store = getVarsStore();
+      if (store != null && store.putInt(name, value)) {
+        return;
+      }
+      try (FileWriter fw = new FileWriter(varsPath + name + EXT, false)) {
+        StorageStats.opened();
+        String text = Integer.toString(value);
+        fw.write(text);
+        StorageStats.written(text.length());
+      } catch (IOException e) {
+        Logger.logException(e);
+      }
+    } finally {
+      StorageStats.varWrite.recordSince(start);
     }
   }
 
-  static Integer getIntVar(String name) {
+  // Replaces the variable atomically, for values that must never be seen
+  // half written.
+  static void saveVar(String name, String value) {
+    long start = System.nanoTime();
+    replaceFile(varsPath, varsPath + name + EXT, value);
+    StorageStats.varWrite.recordSince(start);
+  }
+
+  static String getVar(String name) {
+    long start = System.nanoTime();
     String value = readOneLineFile(varsPath + name + EXT, true);
-    if (value == null || value.isEmpty()) {
-      return null;
+    StorageStats.varRead.recordSince(start);
+    return value;
+  }
+
+  static Integer getIntVar(String name) {
+    long start = System.nanoTime();
+    try {
+      VarsStore store = getVarsStore();
+      Integer stored = store == null ? null : store.getInt(name);
+      if (stored != null) {
+        return stored;
+      }
+      // Vars written before the map existed.
+      String value = readOneLineFile(varsPath + name + EXT, true);
+      if (value == null || value.isEmpty()) {
+        return null;
+      }
+      return Integer.parseInt(value);
+    } finally {
+      StorageStats.varRead.recordSince(start);
+    }
+  }
+
+  // Current values of the vars kept in files, such as clientIndex, by name.
+  static Map<String, String> getAllVars() {
+    Map<String, String> result = new HashMap<>();
+    File[] files = new File(varsPath).listFiles();
+    if (files == null) {
+      return result;
+    }
+    for (File f : files) {
+      String name = f.getName();
+      if (name.endsWith(EXT) && !name.contains(TMP_SUFFIX)) {
+        String value = getVar(name.substring(0, name.length() - EXT.length()));
+        if (value != null) {
+          result.put(name.substring(0, name.length() - EXT.length()), value);
+        }
+      }
+    }
+    return result;
+  }
+
+  // Current values of the int vars in vars.map.
+  static Map<String, Integer> getAllIntVars() {
+    VarsStore store = getVarsStore();
+    return store == null ? new HashMap<>() : store.getAll();
+  }
+
+  // Makes the int vars durable when fsync is configured. Called once per
+  // main loop cycle, after the cycle's client writes were flushed.
+  static void flushVars() {
+    VarsStore store = vars;
+    if (store != null) {
+      store.flush();
+    }
+  }
+
+  static void setVarsFsync(boolean fsync) {
+    varsFsync = fsync;
+    closeVarsStore();
+  }
+
+  private static synchronized VarsStore getVarsStore() {
+    if (vars == null) {
+      try {
+        vars = new VarsStore(varsPath + VARS_FILE, varsFsync);
+      } catch (IOException e) {
+        Logger.logException(e);
+      }
+    }
+    return vars;
+  }
+
+  private static synchronized void closeVarsStore() {
+    if (vars != null) {
+      vars.close();
+      vars = null;
     }
-    return Integer.parseInt(value);
   }
 
   static void log(String entry) {
@@ -153,46 +514,146 @@ class Logger {
     return f.exists() && !f.isDirectory();
   }
 
+  // Legacy crash backup from before journals: one "name;value" pre-image per
+  // line. Only found when upgrading from a crashed older version.
   private static void restoreClientsFromBackup() {
-    try {
-      BufferedReader br = new BufferedReader(
-          new FileReader(clientsPath + BACKUP_FILE));
+    StorageStats.backupOp();
+    try (BufferedReader br = new BufferedReader(
+          new FileReader(clientsPath + BACKUP_FILE))) {
+      StorageStats.opened();
       String backupLine = br.readLine();
-      Pattern nameExtractor = Pattern.compile("^([-0-9]*)");
-      Pattern valueExtractor = Pattern.compile("^.*?;(.*)$");
       while (backupLine != null) {
-        String name = Utils.getMatch(backupLine, nameExtractor);
-        String value = Utils.getMatch(backupLine, valueExtractor);
-        writeClient(name, value);
+        int sep = backupLine.indexOf(';');
+        if (sep > 0) {
+          writeClient(backupLine.substring(0, sep), backupLine.substring(sep + 1));
+        }
         backupLine = br.readLine();
       }
-      br.close();
     } catch (Exception e) {
       logException(e);
     }
   }
 
-  private static void removeClientsBackup() {
-    Path p = Paths.get(clientsPath + BACKUP_FILE);
+  // Re-applies every complete journal in commit order. A journal with a bad
+  // checksum or missing lines was torn before its fsync returned, so none of
+  // its client files were touched yet and it is simply dropped.
+  private static void replayJournals() {
+    File[] files = new File(clientsPath).listFiles();
+    if (files == null) {
+      return;
+    }
+    List<File> journals = new ArrayList<>();
+    for (File f : files) {
+      if (f.getName().startsWith(JOURNAL_PREFIX)) {
+        journals.add(f);
+      } else if (f.getName().contains(TMP_SUFFIX)) {
+        f.delete();
+      }
+    }
+    Collections.sort(journals);
+    for (File journal : journals) {
+      List<String> lines = readJournal(journal);
+      if (lines == null) {
+        Logger.log("Discarding incomplete journal " + journal.getName());
+        journal.delete();
+        continue;
+      }
+      String[] names = new String[lines.size()];
+      for (int i = 0; i < lines.size(); i++) {
+        String line = lines.get(i);
+        int sep = line.indexOf(';');
+        names[i] = line.substring(0, sep);
+        writeClient(names[i], line.substring(sep + 1));
+      }
+      synchronized (appliedJournals) {
+        appliedJournals.add(journal);
+        for (String name : names) {
+          unsyncedClients.add(clientFile(name));
+        }
+      }
+    }
+    checkpointClients();
+  }
+
+  private static List<String> readJournal(File journal) {
     try {
-      Files.delete(p);
+      byte[] data = Files.readAllBytes(journal.toPath());
+      StorageStats.opened();
+      StorageStats.read(data.length);
+      StorageStats.backupOp();
+      int headerEnd = -1;
+      for (int i = 0; i < data.length; i++) {
+        if (data[i] == '\n') {
+          headerEnd = i;
+          break;
+        }
+      }
+      if (headerEnd < 0) {
+        return null;
+      }
+      String[] header = new String(data, 0, headerEnd, StandardCharsets.UTF_8).split(" ");
+      if (header.length != 3 || !header[0].equals(JOURNAL_MAGIC)) {
+        return null;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(data, headerEnd + 1, data.length - headerEnd - 1);
+      if (crc.getValue() != Long.parseLong(header[2])) {
+        return null;
+      }
+      String body = new String(data, headerEnd + 1, data.length - headerEnd - 1,
+          StandardCharsets.UTF_8);
+      List<String> lines = new ArrayList<>();
+      for (String line : body.split("\n")) {
+        if (line.indexOf(';') > 0) {
+          lines.add(line);
+        }
+      }
+      if (lines.size() != Integer.parseInt(header[1])) {
+        return null;
+      }
+      return lines;
     } catch (Exception e) {
       Logger.logException(e);
+      return null;
     }
   }
 
-  private static void makeClientBackup(String filename) {
-    makeClientsBackup(new String[] {filename});
+  // Writes a temp file in tmpDir and renames it over the target, so readers
+  // see either the old or the new content. Client temp files all go to the
+  // top of the clients directory, where initialize() cleans up leftovers.
+  private static void replaceFile(String tmpDir, String filename, String value) {
+    File tmp = new File(tmpDir + new File(filename).getName() + TMP_SUFFIX + journalSeq.incrementAndGet());
+    try (FileWriter fw = new FileWriter(tmp, false)) {
+      StorageStats.opened();
+      fw.write(value);
+      // Counted in chars; client records are almost all ASCII.
+      StorageStats.written(value.length());
+    } catch (IOException e) {
+      tmp.delete();
+      Logger.logException(e);
+      return;
+    }
+    try {
+      Files.move(tmp.toPath(), Paths.get(filename),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      tmp.delete();
+      Logger.logException(e);
+    }
   }
 
-  private static void makeClientsBackup(String[] filenames) {
-    try (BufferedWriter bw = new BufferedWriter(
-            new FileWriter(clientsPath + BACKUP_FILE));
-         PrintWriter backupWriter = new PrintWriter(bw)) {
-      for (int i = 0; i < filenames.length; i++) {
-        String value = getClient(filenames[i]);
-        backupWriter.println(filenames[i] + ";" + value);
-      }
+  private static void syncDir(String dir) throws IOException {
+    try (FileChannel ch = FileChannel.open(Paths.get(dir), StandardOpenOption.READ)) {
+      ch.force(true);
+      StorageStats.fsynced();
+    }
+  }
+
+  private static void removeClientsBackup() {
+    Path p = Paths.get(clientsPath + BACKUP_FILE);
+    StorageStats.backupOp();
+    try {
+      Files.delete(p);
     } catch (Exception e) {
       Logger.logException(e);
     }
@@ -205,7 +666,11 @@ class Logger {
   private static String readOneLineFile(String filename, boolean ignoreErr) {
     String value = null;
     try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+      StorageStats.opened();
       value = br.readLine();
+      if (value != null) {
+        StorageStats.read(value.length());
+      }
     } catch (IOException e) {
       if (!ignoreErr) {
         Logger.logException(e);
@@ -227,7 +692,7 @@ class Logger {
     return str;
   }
 
-  private static PrintWriter getLogsWriter() {
+  private static synchronized PrintWriter getLogsWriter() {
     if (logsWriter == null) {
       try {
         logsWriter = new PrintWriter(new BufferedWriter(
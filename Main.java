@@ -4,39 +4,57 @@ import java.lang.InterruptedException;
 import java.lang.Thread;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.List;
 
 public class Main {
   public static boolean isProd = false;
   private static GameEngine gameEngine;
+  private static StorageInterface storage;
+  private static UpdateWorkers workers;
+  private static int pollTimeoutSeconds;
+  private static final int UPDATE_QUEUE_SIZE = 500;
+  // Longest pause between polls that came back empty.
+  private static final long MAX_POLL_INTERVAL_MS = 500;
+  private static final long CYCLE_MS = 500;
 
   public static void main(String[] args)
       throws InterruptedException, Exception {
     initialize(args);
     System.out.println("German Club Server started...");
+    UpdatePoller poller = new UpdatePoller(new TelegramService(pollTimeoutSeconds),
+        storage.getMaxUpdateId() + 1, UPDATE_QUEUE_SIZE, MAX_POLL_INTERVAL_MS);
+    poller.start();
+    List<Telegram.Update> updates = new ArrayList<>();
     while (true) {
       try {
-        StorageInterface storage = new Storage();
-        TelegramInterface telegram = new TelegramService();
-        int maxUpdateId = storage.getMaxUpdateId();
-        // TODO: download updates async and put to queue
-        Telegram.Update[] updates = telegram.getUpdates(maxUpdateId + 1);
-        Arrays.sort(updates, new Comparator<Telegram.Update>() {
-          public int compare(Telegram.Update u1, Telegram.Update u2) {
-            return u1.update_id - u2.update_id;
-          }
-        });
+        // Waiting for updates also paces the background tasks when the bot
+        // is idle.
+        updates.clear();
+        poller.drainTo(updates, UPDATE_QUEUE_SIZE, CYCLE_MS);
         // Handle user commands
-        for (Telegram.Update upd : updates) {
-          storage.saveMaxUpdateId(upd.update_id);
-          if (upd.message != null && upd.message.text != null) {
-            gameEngine.processUpdate(upd);
+        if (workers == null) {
+          for (Telegram.Update upd : updates) {
+            storage.saveMaxUpdateId(upd.update_id);
+            if (upd.message != null && upd.message.text != null) {
+              gameEngine.processUpdate(upd);
+            }
+          }
+        } else if (!updates.isEmpty()) {
+          List<Telegram.Update> commands = new ArrayList<>();
+          for (Telegram.Update upd : updates) {
+            if (upd.message != null && upd.message.text != null) {
+              commands.add(upd);
+            }
           }
+          // Updates come sorted; the whole batch counts as taken.
+          storage.saveMaxUpdateId(updates.get(updates.size() - 1).update_id);
+          workers.run(commands, gameEngine::processUpdate);
         }
         // Background/async operations for each client
         Messenger.sendSheduledMessages();
         gameEngine.runBackgroundTasks();
+        storage.flush();
+        Logger.flushVars();
       } catch (Exception e) {
         if (isProd) {
           Logger.logException(e);
@@ -44,7 +62,6 @@ public class Main {
           throw e;
         }
       }
-      Thread.sleep(500);
     }
   }
 
@@ -54,6 +71,10 @@ public class Main {
       System.exit(0);
     }
     Logger.setDbPath(args[0]);
+    if (!Logger.lockDb()) {
+      System.out.println("Another process is using " + args[0] + ", stop it first.");
+      System.exit(1);
+    }
     Logger.initialize();
     
     // Set environment before initializing components that depend on it
@@ -67,9 +88,15 @@ public class Main {
     Phrases.initialize();
 
     // Initialize the game engine
-    StorageInterface storage = new Storage();
+    EngineConfig engine = EngineConfig.load();
+    Client.dailyResetHour = engine.daily_reset_hour;
+    pollTimeoutSeconds = Math.max(0, engine.poll_timeout_s);
+    storage = StorageConfig.load().open(args[0]);
     TelegramInterface telegram = new TelegramService();
     gameEngine = new GameEngine(storage, telegram);
+    if (engine.workers > 1) {
+      workers = new UpdateWorkers(engine.workers);
+    }
   }
 
 
@@ -0,0 +1,388 @@
+package FightLang;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Client store that keeps every client in a fixed-size slot of a
+// memory-mapped file. Loads and saves copy a few hundred bytes to or from
+// the mapping, with no JSON and no file open per operation.
+//
+// Each slot holds two copies of the record. A save writes the older copy and
+// bumps its sequence number last, so if the process dies in the middle of a
+// save the other copy is still intact and wins on the next start.
+//
+// Copy layout (offsets within a copy):
+//   0 seq, 4 crc32 of bytes 8.., 8 chatId, 12 used flag, 13 status,
+//   14 nameChangeHintSent, 16 fixed int fields, RESERVED record version
+//   and schema version followed by spare ints,
+//   INVENTORY one int per item, NAME length-prefixed UTF-8 username.
+class MappedStorage implements StorageInterface {
+  private static final int MAGIC = 0x464c534c; // "FLSL"
+  private static final int LAYOUT_VERSION = 1;
+  private static final int COPY_SIZE = 512;
+  private static final int SLOT_SIZE = 2 * COPY_SIZE;
+  private static final int FIXED = 16;
+  private static final int FIXED_INTS = 22;
+  private static final int RESERVED = FIXED + FIXED_INTS * 4;
+  private static final int RESERVED_INTS = 16;
+  private static final int INVENTORY = RESERVED + RESERVED_INTS * 4;
+  private static final int INVENTORY_SLOTS = 32;
+  private static final int NAME = INVENTORY + INVENTORY_SLOTS * 4;
+  private static final int MAX_NAME_BYTES = COPY_SIZE - NAME - 2;
+  private static final int INITIAL_SLOTS = 1024;
+
+  private static class SlotRef {
+    final int slot;
+    int copy;
+    int seq;
+
+    SlotRef(int slot, int copy, int seq) {
+      this.slot = slot;
+      this.copy = copy;
+      this.seq = seq;
+    }
+  }
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final boolean fsync;
+  private final Map<Integer, SlotRef> index = new HashMap<>();
+  private final byte[] scratch = new byte[COPY_SIZE];
+  private MappedByteBuffer map;
+  private int capacity;
+  private int nextFreeSlot = 1; // slot 0 is the file header
+  private final Deque<Integer> freeSlots = new ArrayDeque<>(); // deleted slots
+
+  MappedStorage(String path) {
+    this(path, false);
+  }
+
+  MappedStorage(String path, boolean fsync) {
+    this.fsync = fsync;
+    try {
+      File dir = new File(path);
+      dir.mkdirs();
+      file = new RandomAccessFile(new File(dir, "clients.slots"), "rw");
+      channel = file.getChannel();
+      open();
+    } catch (IOException e) {
+      Logger.logException(e);
+      throw new IllegalStateException("Could not open slot table " + path, e);
+    }
+  }
+
+  // Copies clients from the one-file-per-client layout, used the first time
+  // the bot starts on an empty table.
+  synchronized void importFromFiles() {
+    if (!index.isEmpty()) {
+      return;
+    }
+    Gson g = new Gson();
+    for (String name : Logger.getAllClientNames()) {
+      String json = Logger.getClient(name);
+      Client c = json == null ? null : g.fromJson(json, Client.class);
+      if (c != null) {
+        write(c);
+      }
+    }
+    Logger.log("Imported " + index.size() + " clients into the slot table");
+  }
+
+  @Override
+  public synchronized void saveClients(Client... clients) {
+    for (Client client : clients) {
+      write(client);
+    }
+  }
+
+  @Override
+  public synchronized void saveClient(Client client) {
+    write(client);
+  }
+
+  @Override
+  public Stream<Client> streamClients() {
+    int[] chatIds;
+    synchronized (this) {
+      // Slot order is file order, so the scan walks the mapping sequentially.
+      List<SlotRef> refs = new ArrayList<>(index.values());
+      refs.sort((a, b) -> Integer.compare(a.slot, b.slot));
+      chatIds = new int[refs.size()];
+      for (int i = 0; i < refs.size(); i++) {
+        chatIds[i] = map.getInt(copyBase(refs.get(i).slot, refs.get(i).copy) + 8);
+      }
+    }
+    return Arrays.stream(chatIds)
+        .mapToObj(this::getClientByChatId)
+        .filter(Objects::nonNull);
+  }
+
+  @Override
+  public synchronized Client getClientByChatId(int chatId) {
+    SlotRef ref = index.get(chatId);
+    if (ref == null) {
+      return null;
+    }
+    return read(copyBase(ref.slot, ref.copy));
+  }
+
+  @Override
+  public synchronized Client[] getClientsByChatIds(Set<Integer> chatIds) {
+    Client[] result = new Client[chatIds.size()];
+    int i = 0;
+    for (int chatId : chatIds) {
+      result[i] = getClientByChatId(chatId);
+      i++;
+    }
+    return result;
+  }
+
+  @Override
+  public int getMaxUpdateId() {
+    Integer result = Logger.getIntVar("maxUpdateId");
+    if (result == null) {
+      result = 0;
+    }
+    return result;
+  }
+
+  @Override
+  public void saveMaxUpdateId(int id) {
+    Logger.saveIntVar("maxUpdateId", id);
+  }
+
+  // Clears the used flag of both copies; the slot is reused by the next new
+  // client.
+  @Override
+  public synchronized void deleteClient(int chatId) {
+    SlotRef ref = index.remove(chatId);
+    if (ref == null) {
+      return;
+    }
+    map.put(copyBase(ref.slot, 0) + 12, (byte) 0);
+    map.put(copyBase(ref.slot, 1) + 12, (byte) 0);
+    freeSlots.push(ref.slot);
+  }
+
+  @Override
+  public synchronized void flush() {
+    if (fsync) {
+      map.force();
+      StorageStats.fsynced();
+    }
+  }
+
+  synchronized void close() {
+    try {
+      map.force();
+      channel.close();
+      file.close();
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+  }
+
+  private void open() throws IOException {
+    boolean fresh = channel.size() < SLOT_SIZE;
+    capacity = fresh ? INITIAL_SLOTS : (int) (channel.size() / SLOT_SIZE);
+    remap();
+    if (fresh) {
+      map.putInt(0, MAGIC);
+      map.putInt(4, LAYOUT_VERSION);
+      map.putInt(8, COPY_SIZE);
+      return;
+    }
+    if (map.getInt(0) != MAGIC || map.getInt(8) != COPY_SIZE) {
+      throw new IOException("Not a client slot table");
+    }
+    for (int slot = 1; slot < capacity; slot++) {
+      SlotRef ref = null;
+      for (int copy = 0; copy < 2; copy++) {
+        int base = copyBase(slot, copy);
+        if (map.get(base + 12) != 1 || !checksumMatches(base)) {
+          continue;
+        }
+        int seq = map.getInt(base);
+        if (ref == null || seq > ref.seq) {
+          ref = new SlotRef(slot, copy, seq);
+        }
+      }
+      if (ref != null) {
+        index.put(map.getInt(copyBase(slot, ref.copy) + 8), ref);
+        nextFreeSlot = slot + 1;
+      } else {
+        freeSlots.push(slot);
+      }
+    }
+    freeSlots.removeIf(slot -> slot >= nextFreeSlot);
+  }
+
+  private void remap() throws IOException {
+    map = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * SLOT_SIZE);
+  }
+
+  private void write(Client c) {
+    SlotRef ref = index.get(c.chatId);
+    if (ref == null) {
+      ref = new SlotRef(allocateSlot(), 1, 0);
+      index.put(c.chatId, ref);
+    }
+    int target = 1 - ref.copy;
+    int base = copyBase(ref.slot, target);
+    ByteBuffer buf = ByteBuffer.wrap(scratch);
+    Arrays.fill(scratch, (byte) 0);
+    encode(c, buf);
+    CRC32 crc = new CRC32();
+    crc.update(scratch, 8, COPY_SIZE - 8);
+    map.position(base + 8);
+    map.put(scratch, 8, COPY_SIZE - 8);
+    map.putInt(base + 4, (int) crc.getValue());
+    // The sequence number goes last: until it is written the other copy wins.
+    map.putInt(base, ref.seq + 1);
+    ref.copy = target;
+    ref.seq++;
+  }
+
+  private int allocateSlot() {
+    if (!freeSlots.isEmpty()) {
+      return freeSlots.pop();
+    }
+    if (nextFreeSlot >= capacity) {
+      capacity *= 2;
+      try {
+        remap();
+      } catch (IOException e) {
+        Logger.logException(e);
+        throw new IllegalStateException("Could not grow slot table", e);
+      }
+    }
+    return nextFreeSlot++;
+  }
+
+  private void encode(Client c, ByteBuffer buf) {
+    buf.putInt(8, c.chatId);
+    buf.put(12, (byte) 1);
+    buf.put(13, (byte) c.status.ordinal());
+    buf.put(14, (byte) (c.nameChangeHintSent ? 1 : 0));
+    buf.position(FIXED);
+    buf.putInt(c.fightingChatId);
+    buf.putInt(c.lastRestore);
+    buf.putInt(c.readyToFightSince);
+    buf.putInt(c.lastFightActivitySince);
+    buf.putInt(c.lastActivity);
+    buf.putInt(c.getStoredSuccessToday());
+    buf.putInt(c.getLastDailyCleanup());
+    buf.putInt(c.totalFights);
+    buf.putInt(c.fightsWon);
+    buf.putInt(c.exp);
+    buf.putInt(c.level);
+    buf.putInt(c.strength);
+    buf.putInt(c.vitality);
+    buf.putInt(c.luck);
+    buf.putInt(c.levelPoints);
+    buf.putInt(c.hp);
+    buf.putInt(c.strengthPotionExpiry);
+    buf.putInt(c.strengthPotionBonus);
+    buf.putInt(c.luckPotionExpiry);
+    buf.putInt(c.luckPotionBonus);
+    buf.putInt(c.offeredItem == null ? 0 : c.offeredItem.ordinal() + 1);
+    buf.putInt(c.requestedItem == null ? 0 : c.requestedItem.ordinal() + 1);
+    buf.putInt(RESERVED, c.version);
+    buf.putInt(RESERVED + 4, c.schemaVersion);
+    for (Map.Entry<Integer, Integer> item : c.inventory.entrySet()) {
+      if (item.getValue() != null && item.getKey() < INVENTORY_SLOTS) {
+        buf.putInt(INVENTORY + item.getKey() * 4, item.getValue());
+      }
+    }
+    byte[] name = c.username == null ? new byte[0] : c.username.getBytes(StandardCharsets.UTF_8);
+    int nameLength = name.length;
+    if (nameLength > MAX_NAME_BYTES) {
+      nameLength = MAX_NAME_BYTES;
+      // Do not cut a multi-byte character in half.
+      while ((name[nameLength] & 0xC0) == 0x80) {
+        nameLength--;
+      }
+      Logger.log("Username of " + c.chatId + " truncated to " + nameLength + " bytes");
+    }
+    buf.putShort(NAME, (short) nameLength);
+    buf.position(NAME + 2);
+    buf.put(name, 0, nameLength);
+  }
+
+  private Client read(int base) {
+    int nameLength = map.getShort(base + NAME);
+    byte[] name = new byte[nameLength];
+    for (int i = 0; i < nameLength; i++) {
+      name[i] = map.get(base + NAME + 2 + i);
+    }
+    Client c = new Client(map.getInt(base + 8), new String(name, StandardCharsets.UTF_8));
+    c.status = Client.Status.values()[map.get(base + 13)];
+    c.nameChangeHintSent = map.get(base + 14) == 1;
+    int p = base + FIXED;
+    c.fightingChatId = map.getInt(p);
+    c.lastRestore = map.getInt(p + 4);
+    c.readyToFightSince = map.getInt(p + 8);
+    c.lastFightActivitySince = map.getInt(p + 12);
+    c.lastActivity = map.getInt(p + 16);
+    c.restoreSuccessToday(map.getInt(p + 20), map.getInt(p + 24));
+    c.totalFights = map.getInt(p + 28);
+    c.fightsWon = map.getInt(p + 32);
+    c.exp = map.getInt(p + 36);
+    c.level = map.getInt(p + 40);
+    c.strength = map.getInt(p + 44);
+    c.vitality = map.getInt(p + 48);
+    c.luck = map.getInt(p + 52);
+    c.levelPoints = map.getInt(p + 56);
+    c.hp = map.getInt(p + 60);
+    c.strengthPotionExpiry = map.getInt(p + 64);
+    c.strengthPotionBonus = map.getInt(p + 68);
+    c.luckPotionExpiry = map.getInt(p + 72);
+    c.luckPotionBonus = map.getInt(p + 76);
+    int offered = map.getInt(p + 80);
+    int requested = map.getInt(p + 84);
+    c.version = map.getInt(base + RESERVED);
+    c.schemaVersion = map.getInt(base + RESERVED + 4);
+    c.offeredItem = offered == 0 ? null : Game.ITEM_VALUES[offered - 1];
+    c.requestedItem = requested == 0 ? null : Game.ITEM_VALUES[requested - 1];
+    for (int item = 0; item < Game.ITEM_VALUES.length; item++) {
+      int count = map.getInt(base + INVENTORY + item * 4);
+      if (count != 0) {
+        c.inventory.put(item, count);
+      }
+    }
+    return c;
+  }
+
+  private boolean checksumMatches(int base) {
+    byte[] copy = new byte[COPY_SIZE - 8];
+    map.position(base + 8);
+    map.get(copy);
+    CRC32 crc = new CRC32();
+    crc.update(copy);
+    return (int) crc.getValue() == map.getInt(base + 4);
+  }
+
+  private static int copyBase(int slot, int copy) {
+    return slot * SLOT_SIZE + copy * COPY_SIZE;
+  }
+}
@@ -0,0 +1,155 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests for the memory-mapped fixed-slot client table: full field round
+ * trip, growth of the mapping and fallback to the older copy of a slot
+ * after an interrupted write, and deletes.
+ */
+public class MappedStorageTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testRoundTrip();
+        allTestsPassed &= testGrowth();
+        allTestsPassed &= testInterruptedWrite();
+        allTestsPassed &= testDeleteReusesSlot();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome mapped storage tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testRoundTrip() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("mappedstorage");
+
+        MappedStorage storage = new MappedStorage(dir.getPath() + "/slots");
+        Client client = new Client(100, "Jürgen");
+        client.status = Client.Status.TRADING;
+        client.offeredItem = Game.Item.FANG;
+        client.requestedItem = Game.Item.GOLD;
+        client.exp = 1234;
+        client.hp = 3;
+        client.setSuccessToday(5);
+        client.nameChangeHintSent = true;
+        client.giveItem(Game.Item.LPOTION);
+        client.giveItem(Game.Item.LPOTION);
+        client.addStrengthPotionEffect(Game.STRENGTH_POTION_BONUS, 1000);
+        storage.saveClient(client);
+        storage.close();
+
+        storage = new MappedStorage(dir.getPath() + "/slots");
+        Client loaded = storage.getClientByChatId(100);
+        testPassed &= assertTrue(loaded != null, "Client should be found after reopening");
+        if (loaded != null) {
+            testPassed &= assertEquals("Jürgen", loaded.username, "Username should round trip");
+            testPassed &= assertTrue(loaded.status == Client.Status.TRADING, "Status should round trip");
+            testPassed &= assertTrue(loaded.offeredItem == Game.Item.FANG, "Offered item should round trip");
+            testPassed &= assertTrue(loaded.requestedItem == Game.Item.GOLD, "Requested item should round trip");
+            testPassed &= assertEquals(1234, loaded.exp, "Experience should round trip");
+            testPassed &= assertEquals(3, loaded.hp, "HP should round trip");
+            testPassed &= assertEquals(5, loaded.getSuccessToday(), "Daily success should round trip");
+            testPassed &= assertTrue(loaded.nameChangeHintSent, "Name hint flag should round trip");
+            testPassed &= assertEquals(2, loaded.getItemNum(Game.Item.LPOTION), "Inventory should round trip");
+            testPassed &= assertEquals(1000 + Game.POTION_DURATION_SECONDS, loaded.strengthPotionExpiry, "Potion expiry should round trip");
+        }
+        testPassed &= assertTrue(storage.getClientByChatId(200) == null, "Unknown client should be null");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testGrowth() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("mappedstorage");
+
+        MappedStorage storage = new MappedStorage(dir.getPath() + "/slots");
+        for (int i = 1; i <= 3000; i++) {
+            Client c = new Client(i, "Player" + i);
+            c.exp = i;
+            storage.saveClient(c);
+        }
+        storage.close();
+
+        storage = new MappedStorage(dir.getPath() + "/slots");
+        final int[] count = {0};
+        final boolean[] consistent = {true};
+        storage.forEachClient(new ClientDo() {
+            public void run(Client c) {
+                count[0]++;
+                consistent[0] &= c.exp == c.chatId;
+            }
+        });
+        testPassed &= assertEquals(3000, count[0], "All clients should survive growing the mapping");
+        testPassed &= assertTrue(consistent[0], "Every slot should hold its own client");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testInterruptedWrite() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("mappedstorage");
+
+        MappedStorage storage = new MappedStorage(dir.getPath() + "/slots");
+        Client client = new Client(100, "Careful");
+        client.exp = 1;
+        storage.saveClient(client); // copy 0, seq 1
+        client.exp = 2;
+        storage.saveClient(client); // copy 1, seq 2
+        storage.close();
+
+        // Corrupt the payload of the newest copy as if the process died mid-write.
+        File table = new File(dir, "slots/clients.slots");
+        try (RandomAccessFile raf = new RandomAccessFile(table, "rw")) {
+            raf.seek(1024 + 512 + 40);
+            raf.writeInt(0xdeadbeef);
+        }
+
+        storage = new MappedStorage(dir.getPath() + "/slots");
+        testPassed &= assertEquals(1, storage.getClientByChatId(100).exp, "Older copy should win after a torn write");
+        client.exp = 3;
+        storage.saveClient(client);
+        storage.close();
+
+        storage = new MappedStorage(dir.getPath() + "/slots");
+        testPassed &= assertEquals(3, storage.getClientByChatId(100).exp, "Saves after recovery should persist");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testDeleteReusesSlot() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("mappedstorage");
+
+        MappedStorage storage = new MappedStorage(dir.getPath() + "/slots");
+        storage.saveClients(new Client(1, "First"), new Client(2, "Gone"), new Client(3, "Third"));
+        storage.deleteClient(2);
+        testPassed &= assertTrue(storage.getClientByChatId(2) == null, "Deleted client should be gone");
+        storage.close();
+
+        storage = new MappedStorage(dir.getPath() + "/slots");
+        testPassed &= assertTrue(storage.getClientByChatId(2) == null, "Delete should survive a restart");
+        storage.saveClient(new Client(4, "Reuser"));
+        storage.close();
+
+        storage = new MappedStorage(dir.getPath() + "/slots");
+        testPassed &= assertEquals("Reuser", storage.getClientByChatId(4).username, "Client in a reused slot should load");
+        testPassed &= assertEquals("Third", storage.getClientByChatId(3).username, "Neighbouring slots should be untouched");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+}
@@ -5,12 +5,30 @@ import java.util.Map;
 import java.util.LinkedList;
 import java.util.List;
 
+// Game updates may run on several worker threads, so the queue is only
+// touched while holding the class lock. Nothing here waits for Telegram:
+// requests go to the dispatcher, which reports back through sent() and
+// failed().
 class Messenger {
-  // chatId -> last time the message was sent
+  // chatId -> last time a message was delivered
   static Map<Integer, Integer> lastTimeSent = new HashMap<>();
   // TODO: save queue to disk to be resilient to task failurs
   static List<Message> queue = new LinkedList<>();
   static int DELAY = 1; // seconds
+  private static final int MAX_CONCURRENT_SENDS = 16;
+  private static final long METRICS_INTERVAL_MS = 5 * 60 * 1000L;
+  private static long lastMetrics = System.currentTimeMillis();
+
+  static OutboundDispatcher dispatcher = new OutboundDispatcher(MAX_CONCURRENT_SENDS,
+      new OutboundDispatcher.Listener() {
+        public void sent(int chatId) {
+          Messenger.sent(chatId);
+        }
+
+        public void failed(int chatId, Exception error) {
+          Messenger.failed(chatId, error);
+        }
+      });
 
   private static class Message {
     int chatId;
@@ -29,32 +47,30 @@ class Messenger {
     }
   }
 
-  public static void sendSheduledMessages() {
+  public static synchronized void sendSheduledMessages() {
       int curTime = (int)(System.currentTimeMillis() / 1000L);
       List<Message> newQueue = new LinkedList<>();
       for (Message msg : queue) {
         Integer lastMessageTime = lastTimeSent.get(msg.chatId);
         if (lastMessageTime == null || lastMessageTime + DELAY < curTime) {
-          TelegramApi.say(msg.chatId,
-                          msg.msg,
-                          msg.options,
-                          msg.removeOptionsIfNeeded);
+          dispatch(msg);
           lastTimeSent.put(msg.chatId, curTime);
         } else {
           newQueue.add(msg);
         }
       }
       queue = newQueue;
+      if (System.currentTimeMillis() - lastMetrics >= METRICS_INTERVAL_MS) {
+        lastMetrics = System.currentTimeMillis();
+        Logger.log(dispatcher.report());
+      }
   }
 
-  public static void flush(int chatId) {
+  public static synchronized void flush(int chatId) {
       List<Message> newQueue = new LinkedList<>();
       for (Message msg : queue) {
         if (chatId == msg.chatId) {
-          TelegramApi.say(msg.chatId,
-                          msg.msg,
-                          msg.options,
-                          msg.removeOptionsIfNeeded);
+          dispatch(msg);
         } else {
           newQueue.add(msg);
         }
@@ -64,6 +80,32 @@ class Messenger {
       queue = newQueue;
   }
 
+  public static void sendTypingEvent(int chatId) {
+    dispatcher.submit(chatId, () -> TelegramApi.sendTypingEvent(chatId));
+  }
+
+  private static void dispatch(Message msg) {
+    dispatcher.submit(msg.chatId, () -> TelegramApi.say(msg.chatId,
+                                                        msg.msg,
+                                                        msg.options,
+                                                        msg.removeOptionsIfNeeded));
+  }
+
+  // Called on a dispatcher thread once Telegram accepted a request; the
+  // delay to the next message of the chat counts from here.
+  static synchronized void sent(int chatId) {
+    lastTimeSent.put(chatId, (int)(System.currentTimeMillis() / 1000L));
+  }
+
+  // Called on a dispatcher thread; TelegramApi has already retried and
+  // logged the response, so the message is dropped as it was before.
+  static void failed(int chatId, Exception error) {
+    if (error != null) {
+      Logger.logException(error);
+    }
+    Logger.log("Could not deliver a message to " + chatId);
+  }
+
   public static void send(int chatId,
                           String msg,
                           String[] options,
@@ -71,8 +113,10 @@ class Messenger {
     if (chatId < 0) {
       return;
     }
-    TelegramApi.sendTypingEvent(chatId);
-    queue.add(new Message(chatId, msg, options, removeOptionsIfNeeded));
+    sendTypingEvent(chatId);
+    synchronized (Messenger.class) {
+      queue.add(new Message(chatId, msg, options, removeOptionsIfNeeded));
+    }
   }
 
 
@@ -0,0 +1,275 @@
+package FightLang;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Versioned record migrations, run by "Migrator db". Every client carries
+// the schema version it was last migrated to; a run brings all records
+// below LATEST up to it by applying the missing steps in order, so running it
+// again, or after a crash, only touches what is left.
+//
+// A run first collects the ids of outdated records and splits them into
+// one partition per worker. The id lists are written to migration.ids and
+// the position of each worker to migration.progress, every
+// CHECKPOINT_EVERY records, so an interrupted run resumes where it stopped
+// instead of scanning everything again. Both files are removed when the
+// run completes. A dry run applies the steps to copies, saves nothing and
+// reports the throughput.
+//
+// Runs with the bot stopped (Migrator checks its lock), so records are
+// saved without checking for concurrent changes.
+class Migrations {
+  interface Step {
+    void apply(Client client);
+  }
+
+  // Step i upgrades a record from schema version i-1 to i. Only ever append:
+  // records in the wild may be at any earlier version.
+  static final Step[] STEPS = {
+    // 1: levels from before leveling existed and missed level ups.
+    client -> {
+      if (client.level == 0) {
+        client.level = 1;
+      }
+      int neededExp = client.nextExp();
+      if (client.exp >= neededExp) {
+        System.out.println(client.username + " "
+          + "was " + client.exp + " "
+          + "needed " + neededExp
+          + "got level up");
+        client.level++;
+      }
+    },
+  };
+  static final int LATEST = STEPS.length;
+
+  private static final String IDS_FILE = "migration.ids";
+  private static final String PROGRESS_FILE = "migration.progress";
+  private static final String MAGIC = "FLM1";
+  private static final int CHECKPOINT_EVERY = 500;
+
+  static class Report {
+    long pending;
+    final AtomicLong migrated = new AtomicLong();
+    final AtomicLong skipped = new AtomicLong();
+    long elapsedMs;
+    boolean resumed;
+    boolean dryRun;
+
+    @Override
+    public String toString() {
+      return String.format("%s%s %d of %d clients in %d ms (%.0f clients/s), %d skipped",
+          dryRun ? "Dry run: would migrate" : "Migrated", resumed ? " (resumed)" : "",
+          migrated.get(), pending, elapsedMs,
+          migrated.get() * 1000.0 / Math.max(1, elapsedMs), skipped.get());
+    }
+  }
+
+  private final StorageInterface storage;
+  private final Step[] steps;
+  private final File idsFile;
+  private final File progressFile;
+  private int[] cursors;
+
+  Migrations(StorageInterface storage, Step[] steps, File stateDir) {
+    this.storage = storage;
+    this.steps = steps;
+    this.idsFile = new File(stateDir, IDS_FILE);
+    this.progressFile = new File(stateDir, PROGRESS_FILE);
+  }
+
+  Report run(int workers, boolean dryRun) throws IOException, InterruptedException {
+    Report report = new Report();
+    report.dryRun = dryRun;
+    long start = System.currentTimeMillis();
+    List<List<Integer>> partitions = dryRun ? null : loadState();
+    if (partitions != null) {
+      report.resumed = true;
+      Logger.log("Resuming migration to schema version " + steps.length);
+    } else {
+      partitions = partition(ClientScan.collectAllIds(storage,
+          c -> c.chatId > 0 && c.schemaVersion < steps.length), workers);
+      cursors = new int[partitions.size()];
+      if (!dryRun) {
+        saveIds(partitions);
+        saveProgress();
+      }
+    }
+    for (int p = 0; p < partitions.size(); p++) {
+      report.pending += partitions.get(p).size() - cursors[p];
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, partitions.size()), r -> {
+      Thread t = new Thread(r, "migration");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int p = 0; p < partitions.size(); p++) {
+        final int partition = p;
+        final List<Integer> ids = partitions.get(p);
+        results.add(pool.submit(() -> {
+          migratePartition(partition, ids, dryRun, report);
+          return null;
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } catch (ExecutionException e) {
+      // Progress so far is checkpointed; the next run resumes from it.
+      throw new IOException("Migration failed", e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    if (!dryRun) {
+      storage.flush();
+      progressFile.delete();
+      idsFile.delete();
+    }
+    report.elapsedMs = System.currentTimeMillis() - start;
+    return report;
+  }
+
+  private void migratePartition(int partition, List<Integer> ids, boolean dryRun, Report report)
+      throws IOException {
+    int since = 0;
+    for (int i = cursors[partition]; i < ids.size(); i++) {
+      if (migrate(ids.get(i), dryRun)) {
+        report.migrated.incrementAndGet();
+      } else {
+        report.skipped.incrementAndGet();
+      }
+      if (++since == CHECKPOINT_EVERY && !dryRun) {
+        since = 0;
+        // Every save so far must be durable before the cursor passes it.
+        storage.flush();
+        synchronized (this) {
+          cursors[partition] = i + 1;
+          saveProgress();
+        }
+      }
+    }
+    synchronized (this) {
+      cursors[partition] = ids.size();
+    }
+  }
+
+  // Returns false if the record is gone or already migrated.
+  private boolean migrate(int chatId, boolean dryRun) {
+    Client client = storage.getClientByChatId(chatId);
+    if (client == null || client.schemaVersion >= steps.length) {
+      return false;
+    }
+    // Steps run on a copy: stores that hand out shared instances must not
+    // see a half-migrated client if a step fails.
+    client = ClientCodec.decode(ClientCodec.encode(client));
+    client.setStorage(storage);
+    for (int v = client.schemaVersion; v < steps.length; v++) {
+      steps[v].apply(client);
+    }
+    client.schemaVersion = steps.length;
+    if (!dryRun) {
+      storage.saveClient(client);
+    }
+    return true;
+  }
+
+  private static List<List<Integer>> partition(List<Integer> ids, int workers) {
+    Collections.sort(ids);
+    int count = Math.max(1, Math.min(workers, ids.size()));
+    List<List<Integer>> partitions = new ArrayList<>(count);
+    for (int p = 0; p < count; p++) {
+      partitions.add(new ArrayList<>());
+    }
+    // Ranges of neighbouring ids, so each worker touches its own part of an
+    // ordered store.
+    for (int i = 0; i < ids.size(); i++) {
+      partitions.get((int) ((long) i * count / ids.size())).add(ids.get(i));
+    }
+    return partitions;
+  }
+
+  // Returns the partitions of an interrupted run to the same schema version,
+  // or null if there is none.
+  private List<List<Integer>> loadState() throws IOException {
+    if (!idsFile.exists() || !progressFile.exists()) {
+      return null;
+    }
+    List<String> lines = Files.readAllLines(idsFile.toPath(), StandardCharsets.UTF_8);
+    String[] header = lines.isEmpty() ? new String[0] : lines.get(0).split(" ");
+    if (header.length != 3 || !header[0].equals(MAGIC)
+        || Integer.parseInt(header[1]) != steps.length
+        || lines.size() != Integer.parseInt(header[2]) + 1) {
+      Logger.log("Ignoring migration state for another schema version");
+      return null;
+    }
+    List<List<Integer>> partitions = new ArrayList<>();
+    for (String line : lines.subList(1, lines.size())) {
+      List<Integer> ids = new ArrayList<>();
+      for (String id : line.split(",")) {
+        if (!id.isEmpty()) {
+          ids.add(Integer.parseInt(id));
+        }
+      }
+      partitions.add(ids);
+    }
+    String[] progress = new String(Files.readAllBytes(progressFile.toPath()),
+        StandardCharsets.UTF_8).trim().split(",");
+    if (progress.length != partitions.size()) {
+      return null;
+    }
+    cursors = new int[partitions.size()];
+    for (int p = 0; p < cursors.length; p++) {
+      cursors[p] = Math.min(Integer.parseInt(progress[p]), partitions.get(p).size());
+    }
+    return partitions;
+  }
+
+  private void saveIds(List<List<Integer>> partitions) throws IOException {
+    StringBuilder text = new StringBuilder();
+    text.append(MAGIC).append(' ').append(steps.length).append(' ').append(partitions.size()).append('\n');
+    for (List<Integer> ids : partitions) {
+      for (int i = 0; i < ids.size(); i++) {
+        if (i > 0) {
+          text.append(',');
+        }
+        text.append(ids.get(i));
+      }
+      text.append('\n');
+    }
+    replace(idsFile, text.toString());
+  }
+
+  private void saveProgress() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int p = 0; p < cursors.length; p++) {
+      if (p > 0) {
+        text.append(',');
+      }
+      text.append(cursors[p]);
+    }
+    replace(progressFile, text.toString());
+  }
+
+  private static void replace(File target, String text) throws IOException {
+    File tmp = new File(target.getPath() + ".tmp");
+    Files.write(tmp.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp.toPath(), target.toPath(),
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
@@ -0,0 +1,128 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests for the migration framework: ordered steps from each record's schema
+ * version, parallel workers, resuming an interrupted run, dry runs and the
+ * database lock that keeps the migrator away from a running bot.
+ */
+public class MigrationsTest {
+    private static boolean failing = false;
+
+    // exp + 1, then times ten, then copied to level.
+    private static final Migrations.Step[] STEPS = {
+        client -> client.exp += 1,
+        client -> client.exp *= 10,
+        client -> {
+            if (failing && client.chatId == 1100) {
+                throw new IllegalStateException("Simulated crash");
+            }
+            client.level = client.exp;
+        },
+    };
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testStepsFromRecordVersion();
+        allTestsPassed &= testResumeAfterFailure();
+        allTestsPassed &= testDryRun();
+        allTestsPassed &= testDbLock();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome migration tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testStepsFromRecordVersion() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("migrations");
+        Storage storage = new Storage();
+        for (int i = 1; i <= 40; i++) {
+            Client c = new Client(i, "Player" + i);
+            c.exp = 1;
+            // Every other record already went through the first two steps.
+            c.schemaVersion = i % 2 == 0 ? 2 : 0;
+            storage.saveClient(c);
+        }
+        storage.saveClient(new Client(-5, new Client(1, "Opponent")));
+
+        Migrations.Report report = new Migrations(storage, STEPS, dir).run(4, false);
+        testPassed &= assertEquals(40, (int) report.migrated.get(), "Every outdated player should be migrated");
+        testPassed &= assertEquals(20, storage.getClientByChatId(1).level, "Old record should get all steps in order");
+        testPassed &= assertEquals(1, storage.getClientByChatId(2).level, "Newer record should only get the missing step");
+        testPassed &= assertEquals(3, storage.getClientByChatId(1).schemaVersion, "Schema version should be stored");
+        testPassed &= assertTrue(!new File(dir, "migration.progress").exists(), "Progress should be removed when done");
+
+        report = new Migrations(storage, STEPS, dir).run(4, false);
+        testPassed &= assertEquals(0, (int) report.pending, "A second run should find nothing to do");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testResumeAfterFailure() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("migrations");
+        MockStorage storage = new MockStorage();
+        for (int i = 1; i <= 1200; i++) {
+            Client c = new Client(i, "Player" + i);
+            c.schemaVersion = 0;
+            storage.saveClient(c);
+        }
+
+        failing = true;
+        try {
+            new Migrations(storage, STEPS, dir).run(1, false);
+            testPassed &= assertTrue(false, "Failing step should stop the run");
+        } catch (IOException e) {
+            testPassed &= assertTrue(new File(dir, "migration.progress").exists(), "Progress should be kept after a failure");
+        }
+        failing = false;
+
+        Migrations.Report report = new Migrations(storage, STEPS, dir).run(1, false);
+        testPassed &= assertTrue(report.resumed, "Second run should resume");
+        testPassed &= assertEquals(200, (int) report.pending, "Resume should start from the last checkpoint");
+        testPassed &= assertEquals(101, (int) report.migrated.get(), "Clients done before the failure should be skipped");
+        testPassed &= assertEquals(10, storage.getClientByChatId(1100).level, "Failed client should be migrated on resume");
+        testPassed &= assertEquals(10, storage.getClientByChatId(1).level, "Clients before the failure should be migrated once");
+        testPassed &= assertTrue(!new File(dir, "migration.ids").exists(), "State should be removed when done");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testDryRun() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("migrations");
+        Storage storage = new Storage();
+        for (int i = 1; i <= 10; i++) {
+            Client c = new Client(i, "Player" + i);
+            c.schemaVersion = 0;
+            storage.saveClient(c);
+        }
+        Migrations.Report report = new Migrations(storage, STEPS, dir).run(2, true);
+        testPassed &= assertEquals(10, (int) report.migrated.get(), "Dry run should count what it would migrate");
+        testPassed &= assertEquals(0, storage.getClientByChatId(3).schemaVersion, "Dry run should not save");
+        testPassed &= assertTrue(report.toString().contains("clients/s"), "Dry run should report throughput");
+        testPassed &= assertTrue(!new File(dir, "migration.ids").exists(), "Dry run should not write state");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testDbLock() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("migrations");
+        testPassed &= assertTrue(Logger.lockDb(), "First taker should get the database");
+        testPassed &= assertFalse(Logger.lockDb(), "A second taker should be refused");
+        testPassed &= assertTrue(new File(dir, "bot.lock").exists(), "Lock file should be created");
+        deleteRecursively(dir);
+        return testPassed;
+    }
+}
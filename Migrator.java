@@ -1,44 +1,65 @@
 package FightLang;
 
+import java.io.File;
+import java.io.IOException;
+
 class Migrator {
   public static void main(String[] args) {
     if (args.length < 1) {
-      System.out.println("Usage: FightLang.jar path/to/db");
+      System.out.println("Usage: FightLang.jar path/to/db [--dry-run] [--workers=N] | shard | restore backup.fbk.gz");
       System.exit(0);
     }
     Logger.setDbPath(args[0]);
+    if (args.length > 1 && args[1].equals("shard")) {
+      // Runs next to the live bot, so it must not replay the bot's journals.
+      System.out.println("Moving clients into the sharded layout...");
+      System.out.println("Moved " + Logger.shardClients() + " clients");
+      return;
+    }
+    // Migrate and restore open the storage like the bot does: replaying
+    // journals, reopening the backend files and rewriting the stats. That
+    // is only safe with the bot stopped.
+    if (!Logger.lockDb()) {
+      System.out.println("The bot is running on " + args[0] + ", stop it first.");
+      System.exit(1);
+    }
     Logger.initialize();
-
-    System.out.println("Starting migration...");
-    Storage storage = new Storage();
-    storage.forEachClient(new ClientDo() {
-      public void run(Client client) {
-        if (client == null) {
-          return; // this shouldn't happen
-        }
-        if (client.chatId < 0) {
-          return; // bots have no async logic as of now
-        }
-        migrate(client, storage);
+    if (args.length > 2 && args[1].equals("restore")) {
+      // The archive replaces what it contains.
+      System.out.println("Restoring " + args[2] + "...");
+      StorageInterface storage = StorageConfig.load().open(args[0]);
+      try {
+        System.out.println("Restored " + BackupStorage.restore(new File(args[2]), storage) + " clients");
+      } catch (IOException e) {
+        System.out.println("Restore failed: " + e.getMessage());
+        System.exit(1);
       }
-    });
-    System.out.println("Migration finished...");
-  }
+      storage.flush();
+      Logger.flushVars();
+      return;
+    }
 
-  private static void migrate(Client client, Storage storage) {
-    client.setStorage(storage); // Set storage dependency
-    
-    if (client.level == 0) {
-      client.level = 1;
+    boolean dryRun = false;
+    int workers = Runtime.getRuntime().availableProcessors();
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--dry-run")) {
+        dryRun = true;
+      } else if (args[i].startsWith("--workers=")) {
+        workers = Integer.parseInt(args[i].substring("--workers=".length()));
+      }
     }
-    int neededExp = client.nextExp();
-    if (client.exp >= neededExp) {
-      System.out.println(client.username + " "
-        + "was " + client.exp + " "
-        + "needed " + neededExp
-        + "got level up");
-      client.level++;
+    System.out.println("Starting migration to schema version " + Migrations.LATEST + "...");
+    StorageInterface storage = StorageConfig.load().open(args[0]);
+    try {
+      Migrations.Report report = new Migrations(storage, Migrations.STEPS, new File(args[0]))
+          .run(workers, dryRun);
+      System.out.println(report);
+    } catch (IOException | InterruptedException e) {
+      Logger.logException(e);
+      System.out.println("Migration stopped, run it again to resume: " + e.getMessage());
+      System.exit(1);
     }
-    storage.saveClient(client);
+    Logger.flushVars();
+    System.out.println("Migration finished...");
   }
 }
@@ -5,9 +5,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 public class MockStorage implements StorageInterface {
-    private Map<Integer, Client> clients = new HashMap<>();
+    private Map<Integer, Client> clients = new ConcurrentHashMap<>();
     private int maxUpdateId = 0;
     
     @Override
@@ -23,10 +25,8 @@ public class MockStorage implements StorageInterface {
     }
     
     @Override
-    public void forEachClient(ClientDo doable) {
-        for (Client client : clients.values()) {
-            doable.run(client);
-        }
+    public Stream<Client> streamClients() {
+        return clients.values().stream();
     }
     
     @Override
@@ -46,6 +46,11 @@ public class MockStorage implements StorageInterface {
         return result.toArray(new Client[0]);
     }
     
+    @Override
+    public void deleteClient(int chatId) {
+        clients.remove(chatId);
+    }
+    
     @Override
     public int getMaxUpdateId() {
         return maxUpdateId;
@@ -3,6 +3,7 @@ package FightLang;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Arrays;
+import java.util.Collections;
 
 public class MockTelegram implements TelegramInterface {
     public static class SentMessage {
@@ -33,19 +34,44 @@ public class MockTelegram implements TelegramInterface {
         }
     }
     
-    private List<SentMessage> sentMessages = new ArrayList<>();
+    private List<SentMessage> sentMessages = Collections.synchronizedList(new ArrayList<>());
     private List<Telegram.Update> queuedUpdates = new ArrayList<>();
     private int nextUpdateId = 1;
+    // Like Telegram's getUpdates timeout: how long a poll waits for a new
+    // update before returning empty. 0 returns at once.
+    private long pollWaitMs = 0;
+    private int pollCount = 0;
     
     @Override
-    public Telegram.Update[] getUpdates(int offset) {
+    public synchronized Telegram.Update[] getUpdates(int offset) {
+        pollCount++;
+        long deadline = System.currentTimeMillis() + pollWaitMs;
         List<Telegram.Update> updates = new ArrayList<>();
-        for (Telegram.Update update : queuedUpdates) {
-            if (update.update_id >= offset) {
-                updates.add(update);
+        while (true) {
+            for (Telegram.Update update : queuedUpdates) {
+                if (update.update_id >= offset) {
+                    updates.add(update);
+                }
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (!updates.isEmpty() || left <= 0) {
+                return updates.toArray(new Telegram.Update[0]);
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new Telegram.Update[0];
             }
         }
-        return updates.toArray(new Telegram.Update[0]);
+    }
+    
+    public synchronized void setPollWaitMs(long pollWaitMs) {
+        this.pollWaitMs = pollWaitMs;
+    }
+    
+    public synchronized int getPollCount() {
+        return pollCount;
     }
     
     @Override
@@ -98,7 +124,7 @@ public class MockTelegram implements TelegramInterface {
     }
     
     // Simulate user sending a message
-    public void simulateUserMessage(int chatId, String username, String text) {
+    public synchronized void simulateUserMessage(int chatId, String username, String text) {
         Telegram.Update update = new Telegram.Update();
         update.update_id = nextUpdateId++;
         update.message = new Telegram.Message();
@@ -111,9 +137,10 @@ public class MockTelegram implements TelegramInterface {
         update.message.date = (int) (System.currentTimeMillis() / 1000);
         
         queuedUpdates.add(update);
+        notifyAll();
     }
     
-    public void clearUpdates() {
+    public synchronized void clearUpdates() {
         queuedUpdates.clear();
     }
     
@@ -0,0 +1,199 @@
+package FightLang;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs outbound Telegram requests off the game threads. Requests of one chat
+// are sent one after another in the order they were submitted; different
+// chats are sent in parallel, at most `maxConcurrent` at a time. The outcome
+// of every request goes to the listener, on the sending thread.
+//
+// On a JVM with virtual threads (21+) every chat with pending requests gets
+// a virtual thread; otherwise a pool of `maxConcurrent` platform threads is
+// used, which idle out when nothing is being sent.
+class OutboundDispatcher {
+  interface Request {
+    // Returns false if Telegram did not accept the request.
+    boolean send() throws Exception;
+  }
+
+  interface Listener {
+    void sent(int chatId);
+
+    // error is null when the request completed but was not accepted.
+    void failed(int chatId, Exception error);
+  }
+
+  private final ExecutorService executor;
+  private final Semaphore permits;
+  private final Listener listener;
+  // chatId -> requests not yet sent. A chat is in the map while a task is
+  // draining it, so new requests queue up behind the one in flight.
+  private final Map<Integer, ArrayDeque<Request>> chats = new HashMap<>();
+  private int pending = 0;
+
+  private final AtomicLong sentCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  OutboundDispatcher(int maxConcurrent, Listener listener) {
+    this(maxConcurrent, listener, newExecutor(maxConcurrent));
+  }
+
+  OutboundDispatcher(int maxConcurrent, Listener listener, ExecutorService executor) {
+    this.permits = new Semaphore(maxConcurrent);
+    this.listener = listener;
+    this.executor = executor;
+  }
+
+  private static ExecutorService newExecutor(int maxConcurrent) {
+    ExecutorService virtual = newVirtualThreadExecutor();
+    if (virtual != null) {
+      return virtual;
+    }
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrent, maxConcurrent,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+          Thread t = new Thread(r, "telegram-send");
+          t.setDaemon(true);
+          return t;
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  // Looked up by reflection so the bot still builds and runs on Java 17.
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  void submit(int chatId, Request request) {
+    synchronized (this) {
+      pending++;
+      ArrayDeque<Request> queue = chats.get(chatId);
+      if (queue != null) {
+        queue.add(request);
+        return;
+      }
+      queue = new ArrayDeque<>();
+      queue.add(request);
+      chats.put(chatId, queue);
+    }
+    try {
+      executor.execute(() -> drain(chatId));
+    } catch (RejectedExecutionException e) {
+      // No task will drain the chat (the executor is shut down): drop what
+      // queued up for it, or its later requests would wait behind them
+      // forever.
+      int dropped;
+      synchronized (this) {
+        dropped = chats.remove(chatId).size();
+        pending -= dropped;
+        if (pending == 0) {
+          notifyAll();
+        }
+      }
+      Logger.log("outbound: dropped " + dropped + " requests for " + chatId + ": " + e);
+      failedCount.addAndGet(dropped);
+      for (int i = 0; i < dropped; i++) {
+        try {
+          listener.failed(chatId, e);
+        } catch (Exception le) {
+          Logger.logException(le);
+        }
+      }
+    }
+  }
+
+  private void drain(int chatId) {
+    while (true) {
+      Request request;
+      synchronized (this) {
+        request = chats.get(chatId).poll();
+        if (request == null) {
+          chats.remove(chatId);
+          return;
+        }
+      }
+      send(chatId, request);
+    }
+  }
+
+  private void send(int chatId, Request request) {
+    boolean ok = false;
+    Exception error = null;
+    permits.acquireUninterruptibly();
+    long start = System.nanoTime();
+    try {
+      ok = request.send();
+    } catch (Exception e) {
+      error = e;
+    } finally {
+      latency.recordSince(start);
+      permits.release();
+    }
+    try {
+      if (ok) {
+        sentCount.incrementAndGet();
+        listener.sent(chatId);
+      } else {
+        failedCount.incrementAndGet();
+        listener.failed(chatId, error);
+      }
+    } catch (Exception e) {
+      Logger.logException(e);
+    } finally {
+      synchronized (this) {
+        if (--pending == 0) {
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  synchronized int getPending() {
+    return pending;
+  }
+
+  // Waits until every submitted request has completed; false on timeout.
+  synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (pending > 0) {
+      long left = deadline - System.currentTimeMillis();
+      if (left <= 0) {
+        return false;
+      }
+      wait(left);
+    }
+    return true;
+  }
+
+  long getSentCount() {
+    return sentCount.get();
+  }
+
+  long getFailedCount() {
+    return failedCount.get();
+  }
+
+  String report() {
+    return String.format("outbound: sent=%d failed=%d pending=%d send %s",
+        sentCount.get(), failedCount.get(), getPending(), latency.snapshot());
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,150 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the outbound Telegram dispatcher: per-chat order, the
+ * concurrency cap, slow chats not holding back others, failure reports and
+ * requests the executor rejects.
+ */
+public class OutboundDispatcherTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testPerChatOrderAndCap();
+        allTestsPassed &= testSlowChatDoesNotBlockOthers();
+        allTestsPassed &= testFailuresReported();
+        allTestsPassed &= testRejectedChatRecovers();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome outbound dispatcher tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testPerChatOrderAndCap() throws Exception {
+        boolean testPassed = true;
+        RecordingListener listener = new RecordingListener();
+        OutboundDispatcher dispatcher = new OutboundDispatcher(4, listener);
+        Map<Integer, List<Integer>> order = new ConcurrentHashMap<>();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        for (int i = 0; i < 400; i++) {
+            final int chatId = i % 20;
+            final int seq = i;
+            dispatcher.submit(chatId, () -> {
+                int now = running.incrementAndGet();
+                maxRunning.accumulateAndGet(now, Math::max);
+                order.computeIfAbsent(chatId, id -> new ArrayList<>()).add(seq);
+                Thread.sleep(1);
+                running.decrementAndGet();
+                return true;
+            });
+        }
+        testPassed &= assertTrue(dispatcher.awaitIdle(30000), "All requests should complete");
+        dispatcher.shutdown();
+
+        boolean ordered = true;
+        for (List<Integer> seqs : order.values()) {
+            for (int i = 1; i < seqs.size(); i++) {
+                ordered &= seqs.get(i - 1) < seqs.get(i);
+            }
+        }
+        testPassed &= assertTrue(ordered, "Requests of one chat should be sent in order");
+        testPassed &= assertTrue(maxRunning.get() <= 4, "No more than the cap should be in flight");
+        testPassed &= assertEquals(400, listener.sent.get(), "Every request should be reported as sent");
+        testPassed &= assertEquals(400, (int) dispatcher.getSentCount(), "Sent count should match");
+        return testPassed;
+    }
+
+    private static boolean testSlowChatDoesNotBlockOthers() throws Exception {
+        boolean testPassed = true;
+        RecordingListener listener = new RecordingListener();
+        OutboundDispatcher dispatcher = new OutboundDispatcher(4, listener);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fastDone = new CountDownLatch(10);
+        dispatcher.submit(1, () -> {
+            release.await();
+            return true;
+        });
+        for (int chatId = 2; chatId < 12; chatId++) {
+            dispatcher.submit(chatId, () -> {
+                fastDone.countDown();
+                return true;
+            });
+        }
+        testPassed &= assertTrue(fastDone.await(10, TimeUnit.SECONDS), "Other chats should not wait for a stalled one");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (dispatcher.getPending() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        testPassed &= assertEquals(1, dispatcher.getPending(), "Only the stalled request should be pending");
+        release.countDown();
+        testPassed &= assertTrue(dispatcher.awaitIdle(10000), "Stalled request should finish once released");
+        dispatcher.shutdown();
+        return testPassed;
+    }
+
+    private static boolean testFailuresReported() throws Exception {
+        boolean testPassed = true;
+        RecordingListener listener = new RecordingListener();
+        OutboundDispatcher dispatcher = new OutboundDispatcher(2, listener);
+        dispatcher.submit(1, () -> false);
+        dispatcher.submit(1, () -> {
+            throw new java.io.IOException("connection reset");
+        });
+        dispatcher.submit(1, () -> true);
+        testPassed &= assertTrue(dispatcher.awaitIdle(10000), "Requests should complete");
+        dispatcher.shutdown();
+        testPassed &= assertEquals(2, listener.failed.get(), "Rejected and thrown requests should be reported");
+        testPassed &= assertEquals(1, listener.errors.get(), "Thrown exception should be passed on");
+        testPassed &= assertEquals(1, listener.sent.get(), "A failure should not stop later requests of the chat");
+        return testPassed;
+    }
+
+    private static boolean testRejectedChatRecovers() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("outbound"); // the dropped requests are logged
+        RecordingListener listener = new RecordingListener();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown(); // rejects every task
+        OutboundDispatcher rejecting = new OutboundDispatcher(2, listener, executor);
+        rejecting.submit(1, () -> true);
+        rejecting.submit(1, () -> true);
+        testPassed &= assertEquals(0, rejecting.getPending(), "Rejected requests should not stay pending");
+        testPassed &= assertTrue(rejecting.awaitIdle(1000), "Waiting for a rejected chat should return");
+        testPassed &= assertEquals(2, listener.failed.get(), "Rejected requests should be reported as failed");
+        testPassed &= assertEquals(2, (int) rejecting.getFailedCount(), "Failed count should include rejected requests");
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static class RecordingListener implements OutboundDispatcher.Listener {
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+
+        public void sent(int chatId) {
+            sent.incrementAndGet();
+        }
+
+        public void failed(int chatId, Exception error) {
+            failed.incrementAndGet();
+            if (error != null) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@ public class PotionEffectsTest {
         allTestsPassed &= testTimeFormatting();
         allTestsPassed &= testRemainingTimeCalculation();
         allTestsPassed &= testBackgroundCleanupFix();
+        allTestsPassed &= testExpiryQueue();
         if (!allTestsPassed) {
             System.exit(1);
         }
@@ -313,4 +314,38 @@ public class PotionEffectsTest {
         
         return allTestsPassed;
     }
-}
\ No newline at end of file
+
+    public static boolean testExpiryQueue() {
+        boolean allTestsPassed = true;
+        ExpiryQueue queue = new ExpiryQueue();
+        queue.add(1, 300);
+        queue.add(2, 100);
+        queue.add(1, 200);
+        queue.add(3, 400);
+        allTestsPassed &= assertEquals(0, queue.pollDue(99).size(), "Nothing should be due before the earliest expiry");
+        allTestsPassed &= assertEquals("[2, 1]", queue.pollDue(300).toString(), "Due chats should come in expiry order, each once");
+        allTestsPassed &= assertEquals(1, queue.size(), "Later entries should stay queued");
+
+        // The engine rebuilds the queue from stored clients at startup and
+        // only touches clients whose effect has run out.
+        TestEnvironment env = createTestEnvironment();
+        int now = (int) (System.currentTimeMillis() / 1000L);
+        Client expired = createPlayer(env, 700, "Expired");
+        expired.lastActivity = now;
+        expired.strengthPotionExpiry = now - 5;
+        expired.strengthPotionBonus = Game.STRENGTH_POTION_BONUS;
+        env.storage.saveClient(expired);
+        Client active = createPlayer(env, 701, "Active");
+        active.lastActivity = now;
+        active.addLuckPotionEffect(Game.LUCK_POTION_BONUS, now);
+        env.storage.saveClient(active);
+
+        GameEngine engine = new GameEngine(env.storage, env.telegram);
+        engine.runBackgroundTasks();
+        allTestsPassed &= assertEquals(0, env.storage.getClientByChatId(700).strengthPotionExpiry, "Expired effect should be removed");
+        allTestsPassed &= assertTrue(env.telegram.hasMessageForChatContaining(700, "abgelaufen"), "Expiry should be announced");
+        allTestsPassed &= assertEquals(Game.LUCK_POTION_BONUS, env.storage.getClientByChatId(701).luckPotionBonus, "Running effect should stay");
+        allTestsPassed &= assertFalse(env.telegram.hasMessageForChatContaining(701, "abgelaufen"), "Running effect should not be announced");
+        return allTestsPassed;
+    }
+}
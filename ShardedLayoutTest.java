@@ -0,0 +1,116 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.io.FileWriter;
+
+/**
+ * Tests for the sharded client directory layout: placement of new files,
+ * reading clients left in the flat layout and moving them into shards.
+ */
+public class ShardedLayoutTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testWritesGoToShards();
+        allTestsPassed &= testFlatLayoutMigration();
+        allTestsPassed &= testFlatFileRemovedDuringMigration();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome sharded layout tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testWritesGoToShards() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("shardedlayout");
+
+        Storage storage = new Storage();
+        for (int i = 1; i <= 50; i++) {
+            storage.saveClient(new Client(i, "Player" + i));
+        }
+        String path = Logger.clientFile("42");
+        testPassed &= assertTrue(path.matches(".*/clients/[0-9a-f]{2}/[0-9a-f]{2}/42\\.db"), "Client file should be two shard levels deep");
+        testPassed &= assertTrue(new File(path).exists(), "Saved client should be in its shard");
+        testPassed &= assertEquals(50, Logger.getAllClientNames().size(), "Scan should find clients in every shard");
+        testPassed &= assertEquals("Player42", storage.getClientByChatId(42).username, "Sharded client should be readable");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testFlatLayoutMigration() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("shardedlayout");
+
+        for (int i = 1; i <= 20; i++) {
+            writeFlat(dir, i, "Flat" + i);
+        }
+        Logger.setDbPath(dir.getPath()); // as on startup, notices the flat files
+        Storage storage = new Storage();
+        testPassed &= assertEquals("Flat7", storage.getClientByChatId(7).username, "Flat client should still be readable");
+
+        Client updated = storage.getClientByChatId(7);
+        updated.exp = 70;
+        storage.saveClient(updated);
+        testPassed &= assertTrue(!new File(dir, "clients/7.db").exists(), "Saving should drop the flat copy");
+        testPassed &= assertEquals(20, Logger.getAllClientNames().size(), "Mixed layouts should not produce duplicates");
+
+        // A stale flat copy next to a newer sharded file must not win.
+        writeFlat(dir, 8, "Stale");
+        Client eight = new Client(8, "Fresh");
+        storage.saveClient(eight);
+        writeFlat(dir, 8, "Stale");
+
+        testPassed &= assertEquals(19, Logger.shardClients(), "Migration should handle every remaining flat file");
+        testPassed &= assertEquals(0, new File(dir, "clients").listFiles(f -> f.getName().endsWith(".db")).length,
+            "No flat client files should remain");
+        testPassed &= assertEquals(20, Logger.getAllClientNames().size(), "All clients should be in shards");
+        testPassed &= assertEquals(70, storage.getClientByChatId(7).exp, "Updated client should keep its value");
+        testPassed &= assertEquals("Fresh", storage.getClientByChatId(8).username, "Sharded copy should win over a stale flat one");
+        testPassed &= assertEquals("Flat20", storage.getClientByChatId(20).username, "Moved client should be readable");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testFlatFileRemovedDuringMigration() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("shardedlayout");
+
+        for (int i = 1; i <= 10; i++) {
+            writeFlat(dir, i, "Flat" + i);
+        }
+        Logger.setDbPath(dir.getPath());
+        Storage storage = new Storage();
+        final int[] seen = {0};
+        final int[] removed = {0};
+        int moved = Logger.shardClients(p -> {
+            if (++seen[0] == 3) {
+                // The bot re-saves this client after the listing.
+                String name = p.getFileName().toString();
+                removed[0] = Integer.parseInt(name.substring(0, name.length() - 3));
+                storage.saveClient(new Client(removed[0], "Resaved"));
+            }
+        });
+
+        testPassed &= assertEquals(10, seen[0], "Migration should go on after a vanished file");
+        testPassed &= assertEquals(9, moved, "Vanished file should not count as moved");
+        testPassed &= assertEquals(0, new File(dir, "clients").listFiles(f -> f.getName().endsWith(".db")).length,
+            "No flat client files should remain");
+        testPassed &= assertEquals(10, Logger.getAllClientNames().size(), "All clients should be in shards");
+        testPassed &= assertEquals("Resaved", storage.getClientByChatId(removed[0]).username, "Re-saved client should keep the bot's copy");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static void writeFlat(File dir, int chatId, String name) throws Exception {
+        try (FileWriter fw = new FileWriter(new File(dir, "clients/" + chatId + ".db"))) {
+            fw.write("{\"chatId\":" + chatId + ",\"username\":\"" + name + "\"}");
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package FightLang;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Stream;
+
+// Client store that keeps every encoded client in memory and persists it as
+// a periodic snapshot plus a delta journal. Startup maps the latest snapshot
+// and reads it in one sequential pass, then replays the deltas written
+// since, instead of opening one file per client.
+//
+// Generation N consists of N.snap (all clients as of the checkpoint) and
+// N.log (every save after it). A checkpoint switches saves to (N+1).log,
+// writes (N+1).snap to a temp file, renames it into place and only then
+// deletes generation N. A crash during a
+// checkpoint therefore leaves snapshot N and both deltas, which replay to
+// the same state.
+//
+// Records use the LogStorage layout and checksum; a record with an empty
+// payload in a delta deletes the client. A torn tail of the delta is
+// truncated on startup. A snapshot ends with a footer, so a snapshot
+// without one is ignored.
+class SnapshotStorage implements StorageInterface {
+  private static final int MAGIC = 0x464c534e; // "FLSN"
+  private static final int VERSION = 1;
+  private static final String SNAPSHOT_EXT = ".snap";
+  private static final String DELTA_EXT = ".log";
+  private static final long DEFAULT_INTERVAL_MS = 5 * 60 * 1000L;
+
+  private final File dir;
+  private final boolean fsync;
+  private final long intervalMs;
+  private final Map<Integer, byte[]> records = new HashMap<>();
+  private int generation;
+  private FileChannel delta;
+  // Records saved since the newest snapshot.
+  private long deltaRecords = 0;
+  private Thread checkpointer;
+
+  SnapshotStorage(String path) {
+    this(path, false, DEFAULT_INTERVAL_MS);
+  }
+
+  SnapshotStorage(String path, boolean fsync, long intervalMs) {
+    this.dir = new File(path);
+    this.fsync = fsync;
+    this.intervalMs = intervalMs;
+    dir.mkdirs();
+    try {
+      load();
+    } catch (IOException e) {
+      Logger.logException(e);
+      throw new IllegalStateException("Could not open client snapshot " + path, e);
+    }
+  }
+
+  // Copies clients from the one-file-per-client layout, used the first time
+  // the bot starts without a snapshot.
+  synchronized void importFromFiles() {
+    if (!records.isEmpty()) {
+      return;
+    }
+    for (String name : Logger.getAllClientNames()) {
+      String json = Logger.getClient(name);
+      if (json == null || json.isEmpty()) {
+        continue;
+      }
+      try {
+        append(new int[] {Integer.parseInt(name)},
+            new byte[][] {json.getBytes(StandardCharsets.UTF_8)});
+      } catch (NumberFormatException | IOException e) {
+        Logger.logException(e);
+      }
+    }
+    Logger.log("Imported " + records.size() + " clients into " + dir);
+  }
+
+  // Starts the background thread that writes a snapshot every interval.
+  synchronized void startCheckpoints() {
+    if (checkpointer != null) {
+      return;
+    }
+    checkpointer = new Thread(new Runnable() {
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            Thread.sleep(intervalMs);
+            checkpoint();
+          } catch (InterruptedException e) {
+            return;
+          } catch (Exception e) {
+            Logger.logException(e);
+          }
+        }
+      }
+    }, "snapshot-checkpoint");
+    checkpointer.setDaemon(true);
+    checkpointer.start();
+  }
+
+  @Override
+  public void saveClients(Client... clients) {
+    int[] chatIds = new int[clients.length];
+    byte[][] payloads = new byte[clients.length][];
+    for (int i = 0; i < clients.length; i++) {
+      chatIds[i] = clients[i].chatId;
+      payloads[i] = ClientCodec.encode(clients[i]);
+    }
+    try {
+      append(chatIds, payloads);
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+  }
+
+  @Override
+  public void saveClient(Client client) {
+    saveClients(client);
+  }
+
+  @Override
+  public Stream<Client> streamClients() {
+    List<Integer> chatIds;
+    synchronized (this) {
+      chatIds = new ArrayList<>(records.keySet());
+    }
+    return chatIds.stream()
+        .map(this::getClientByChatId)
+        .filter(Objects::nonNull);
+  }
+
+  @Override
+  public Client getClientByChatId(int chatId) {
+    byte[] payload;
+    synchronized (this) {
+      payload = records.get(chatId);
+    }
+    if (payload == null) {
+      return null;
+    }
+    try {
+      return ClientCodec.decode(payload);
+    } catch (RuntimeException e) {
+      Logger.logException(new Exception("Undecodable record of " + chatId, e));
+      return null;
+    }
+  }
+
+  @Override
+  public Client[] getClientsByChatIds(Set<Integer> chatIds) {
+    Client[] result = new Client[chatIds.size()];
+    int i = 0;
+    for (int chatId : chatIds) {
+      result[i] = getClientByChatId(chatId);
+      i++;
+    }
+    return result;
+  }
+
+  @Override
+  public void deleteClient(int chatId) {
+    synchronized (this) {
+      if (!records.containsKey(chatId)) {
+        return;
+      }
+    }
+    try {
+      append(new int[] {chatId}, new byte[][] {new byte[0]});
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+  }
+
+  @Override
+  public int getMaxUpdateId() {
+    Integer result = Logger.getIntVar("maxUpdateId");
+    if (result == null) {
+      result = 0;
+    }
+    return result;
+  }
+
+  @Override
+  public void saveMaxUpdateId(int id) {
+    Logger.saveIntVar("maxUpdateId", id);
+  }
+
+  // Writes all clients to a new snapshot and drops the previous generation.
+  // Only switching the delta happens under the lock; the snapshot itself is
+  // written from a copy while saves go on.
+  void checkpoint() throws IOException {
+    Map<Integer, byte[]> copy;
+    int next;
+    synchronized (this) {
+      if (deltaRecords == 0) {
+        return;
+      }
+      copy = new HashMap<>(records);
+      next = generation + 1;
+      FileChannel old = delta;
+      delta = open(file(next, DELTA_EXT));
+      deltaRecords = 0;
+      old.close();
+      generation = next;
+    }
+    writeSnapshot(next, copy);
+    deleteGenerationsBefore(next);
+  }
+
+  synchronized void close() {
+    if (checkpointer != null) {
+      checkpointer.interrupt();
+      checkpointer = null;
+    }
+    try {
+      delta.close();
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+  }
+
+  synchronized int getGeneration() {
+    return generation;
+  }
+
+  private synchronized void append(int[] chatIds, byte[][] payloads) throws IOException {
+    int total = 0;
+    for (byte[] payload : payloads) {
+      total += LogStorage.HEADER_SIZE + payload.length;
+    }
+    ByteBuffer buf = ByteBuffer.allocate(total);
+    for (int i = 0; i < payloads.length; i++) {
+      putRecord(buf, chatIds[i], payloads[i]);
+    }
+    buf.flip();
+    while (buf.hasRemaining()) {
+      delta.write(buf, delta.size());
+    }
+    StorageStats.written(total);
+    if (fsync) {
+      delta.force(false);
+      StorageStats.fsynced();
+    }
+    for (int i = 0; i < payloads.length; i++) {
+      if (payloads[i].length == 0) {
+        records.remove(chatIds[i]);
+      } else {
+        records.put(chatIds[i], payloads[i]);
+      }
+    }
+    deltaRecords += payloads.length;
+  }
+
+  private void writeSnapshot(int gen, Map<Integer, byte[]> copy) throws IOException {
+    long total = 12 + 4;
+    for (byte[] payload : copy.values()) {
+      total += LogStorage.HEADER_SIZE + payload.length;
+    }
+    File target = file(gen, SNAPSHOT_EXT);
+    File tmp = new File(target.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp);
+         FileChannel ch = out.getChannel()) {
+      ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+      buf.putInt(MAGIC).putInt(VERSION).putInt(copy.size());
+      for (Map.Entry<Integer, byte[]> e : copy.entrySet()) {
+        if (buf.remaining() < LogStorage.HEADER_SIZE + e.getValue().length) {
+          drain(ch, buf);
+          if (buf.capacity() < LogStorage.HEADER_SIZE + e.getValue().length) {
+            buf = ByteBuffer.allocate(LogStorage.HEADER_SIZE + e.getValue().length);
+          }
+        }
+        putRecord(buf, e.getKey(), e.getValue());
+      }
+      if (buf.remaining() < 4) {
+        drain(ch, buf);
+      }
+      buf.putInt(MAGIC);
+      drain(ch, buf);
+      ch.force(true);
+      StorageStats.opened();
+      StorageStats.written(total);
+      StorageStats.fsynced();
+    }
+    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    Logger.log("Wrote client snapshot " + gen + ": " + copy.size() + " clients, " + total + " bytes");
+  }
+
+  // Loads the newest complete snapshot and replays every delta from its
+  // generation on.
+  private void load() throws IOException {
+    List<Integer> snapshots = generations(SNAPSHOT_EXT);
+    List<Integer> deltas = generations(DELTA_EXT);
+    int base = 0;
+    for (int i = snapshots.size() - 1; i >= 0; i--) {
+      if (readSnapshot(file(snapshots.get(i), SNAPSHOT_EXT))) {
+        base = snapshots.get(i);
+        break;
+      }
+      records.clear();
+      Logger.log("Deleting incomplete snapshot " + snapshots.get(i));
+      file(snapshots.get(i), SNAPSHOT_EXT).delete();
+    }
+    generation = base;
+    for (int gen : deltas) {
+      if (gen < base) {
+        continue;
+      }
+      try (FileChannel ch = open(file(gen, DELTA_EXT))) {
+        long valid = replayDelta(ch);
+        if (valid > 0) {
+          deltaRecords++;
+        }
+        if (valid < ch.size()) {
+          Logger.log("Truncating delta " + gen + " from " + ch.size() + " to " + valid
+              + " bytes after an incomplete write");
+          ch.truncate(valid);
+        }
+      }
+      generation = gen;
+    }
+    delta = open(file(generation, DELTA_EXT));
+    deleteGenerationsBefore(base);
+    for (File f : dir.listFiles()) {
+      if (f.getName().endsWith(".tmp")) {
+        f.delete();
+      }
+    }
+  }
+
+  private boolean readSnapshot(File f) throws IOException {
+    try (FileChannel ch = new RandomAccessFile(f, "r").getChannel()) {
+      if (ch.size() < 16) {
+        return false;
+      }
+      MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+        return false;
+      }
+      int count = map.getInt();
+      for (int i = 0; i < count; i++) {
+        if (map.remaining() < LogStorage.HEADER_SIZE) {
+          return false;
+        }
+        int length = map.getInt();
+        int crc = map.getInt();
+        int chatId = map.getInt();
+        if (length < 0 || length > map.remaining()) {
+          return false;
+        }
+        byte[] payload = new byte[length];
+        map.get(payload);
+        if (LogStorage.checksum(chatId, payload) != crc) {
+          return false;
+        }
+        records.put(chatId, payload);
+      }
+      return map.remaining() == 4 && map.getInt() == MAGIC;
+    }
+  }
+
+  private long replayDelta(FileChannel ch) throws IOException {
+    long size = ch.size();
+    ByteBuffer data = ByteBuffer.allocate((int) size);
+    while (data.hasRemaining()) {
+      if (ch.read(data, data.position()) < 0) {
+        break;
+      }
+    }
+    data.flip();
+    long pos = 0;
+    while (data.remaining() >= LogStorage.HEADER_SIZE) {
+      int length = data.getInt();
+      int crc = data.getInt();
+      int chatId = data.getInt();
+      if (length < 0 || length > LogStorage.MAX_RECORD_SIZE || length > data.remaining()) {
+        return pos;
+      }
+      byte[] payload = new byte[length];
+      data.get(payload);
+      if (LogStorage.checksum(chatId, payload) != crc) {
+        return pos;
+      }
+      if (length == 0) {
+        records.remove(chatId);
+      } else {
+        records.put(chatId, payload);
+      }
+      pos += LogStorage.HEADER_SIZE + length;
+    }
+    return pos;
+  }
+
+  private void deleteGenerationsBefore(int gen) {
+    for (String ext : new String[] {SNAPSHOT_EXT, DELTA_EXT}) {
+      for (int old : generations(ext)) {
+        if (old < gen && !file(old, ext).delete()) {
+          Logger.log("Could not delete " + file(old, ext));
+        }
+      }
+    }
+  }
+
+  private List<Integer> generations(String ext) {
+    List<Integer> result = new ArrayList<>();
+    for (File f : dir.listFiles()) {
+      String name = f.getName();
+      if (f.isFile() && name.endsWith(ext)) {
+        result.add(Integer.parseInt(name.substring(0, name.length() - ext.length())));
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  private File file(int gen, String ext) {
+    return new File(dir, String.format("%08d", gen) + ext);
+  }
+
+  private static FileChannel open(File f) throws IOException {
+    return new RandomAccessFile(f, "rw").getChannel();
+  }
+
+  private static void putRecord(ByteBuffer buf, int chatId, byte[] payload) {
+    buf.putInt(payload.length);
+    buf.putInt(LogStorage.checksum(chatId, payload));
+    buf.putInt(chatId);
+    buf.put(payload);
+  }
+
+  private static void drain(FileChannel ch, ByteBuffer buf) throws IOException {
+    buf.flip();
+    while (buf.hasRemaining()) {
+      ch.write(buf);
+    }
+    buf.clear();
+  }
+}
@@ -0,0 +1,162 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+/**
+ * Tests for snapshot persistence: reload from delta only, checkpoint plus
+ * delta replay, a torn delta tail, an interrupted checkpoint and deletes.
+ */
+public class SnapshotStorageTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testReloadFromDelta();
+        allTestsPassed &= testSnapshotPlusDelta();
+        allTestsPassed &= testTornDeltaTail();
+        allTestsPassed &= testIncompleteSnapshotIgnored();
+        allTestsPassed &= testDeleteClient();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome snapshot storage tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testReloadFromDelta() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("snapshotstorage");
+
+        SnapshotStorage storage = new SnapshotStorage(dir.getPath() + "/snapshot");
+        Client alice = new Client(100, "Alice");
+        storage.saveClients(alice, new Client(200, "Bob"));
+        alice.exp = 42;
+        storage.saveClient(alice);
+        storage.close();
+
+        storage = new SnapshotStorage(dir.getPath() + "/snapshot");
+        testPassed &= assertEquals(42, storage.getClientByChatId(100).exp, "Latest delta record should win");
+        testPassed &= assertEquals("Bob", storage.getClientByChatId(200).username, "All clients should be replayed");
+        testPassed &= assertTrue(storage.getClientByChatId(300) == null, "Unknown client should be null");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testSnapshotPlusDelta() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("snapshotstorage");
+
+        SnapshotStorage storage = new SnapshotStorage(dir.getPath() + "/snapshot");
+        for (int i = 1; i <= 1000; i++) {
+            storage.saveClient(new Client(i, "Player" + i));
+        }
+        storage.checkpoint();
+        testPassed &= assertEquals(1, storage.getGeneration(), "Checkpoint should start a new generation");
+        Client changed = storage.getClientByChatId(500);
+        changed.exp = 77;
+        storage.saveClient(changed);
+        storage.close();
+
+        testPassed &= assertTrue(!new File(dir, "snapshot/00000000.log").exists(), "Old delta should be deleted");
+        testPassed &= assertTrue(new File(dir, "snapshot/00000001.snap").exists(), "Snapshot should be written");
+
+        storage = new SnapshotStorage(dir.getPath() + "/snapshot");
+        final int[] seen = {0};
+        storage.forEachClient(new ClientDo() {
+            public void run(Client c) {
+                seen[0]++;
+            }
+        });
+        testPassed &= assertEquals(1000, seen[0], "Snapshot should hold every client");
+        testPassed &= assertEquals(77, storage.getClientByChatId(500).exp, "Delta should be applied over the snapshot");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testTornDeltaTail() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("snapshotstorage");
+
+        SnapshotStorage storage = new SnapshotStorage(dir.getPath() + "/snapshot");
+        Client client = new Client(100, "Survivor");
+        client.exp = 7;
+        storage.saveClient(client);
+        storage.close();
+
+        File delta = new File(dir, "snapshot/00000000.log");
+        long validLength = delta.length();
+        try (FileOutputStream out = new FileOutputStream(delta, true)) {
+            out.write(new byte[] {0, 0, 1, 0, 1, 2, 3, 4, 0, 0, 0, 100, 1});
+        }
+
+        storage = new SnapshotStorage(dir.getPath() + "/snapshot");
+        testPassed &= assertEquals(7, storage.getClientByChatId(100).exp, "Valid records should survive a torn tail");
+        testPassed &= assertTrue(delta.length() == validLength, "Torn tail should be truncated");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testIncompleteSnapshotIgnored() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("snapshotstorage");
+
+        SnapshotStorage storage = new SnapshotStorage(dir.getPath() + "/snapshot");
+        Client client = new Client(100, "Kept");
+        storage.saveClient(client);
+        storage.checkpoint();
+        client.exp = 9;
+        storage.saveClient(client);
+        storage.close();
+
+        // A crash while writing the next snapshot, after saves moved to the
+        // next delta: the snapshot has no footer and must be skipped.
+        File broken = new File(dir, "snapshot/00000002.snap");
+        Files.copy(new File(dir, "snapshot/00000001.snap").toPath(), broken.toPath());
+        try (RandomAccessFile raf = new RandomAccessFile(broken, "rw")) {
+            raf.setLength(raf.length() - 4);
+        }
+
+        storage = new SnapshotStorage(dir.getPath() + "/snapshot");
+        testPassed &= assertEquals(9, storage.getClientByChatId(100).exp, "Older snapshot and delta should be used");
+        testPassed &= assertTrue(!broken.exists(), "Incomplete snapshot should be removed");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testDeleteClient() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("snapshotstorage");
+        String path = dir.getPath() + "/snapshot";
+        SnapshotStorage snapshot = new SnapshotStorage(path);
+        snapshot.saveClients(new Client(1, "Kept"), new Client(2, "Deleted"));
+        snapshot.deleteClient(2);
+        testPassed &= assertTrue(snapshot.getClientByChatId(2) == null, "Deleted client should be gone");
+        snapshot.close();
+
+        snapshot = new SnapshotStorage(path);
+        testPassed &= assertTrue(snapshot.getClientByChatId(2) == null, "Delete should survive delta replay");
+        snapshot.checkpoint();
+        snapshot.close();
+
+        snapshot = new SnapshotStorage(path);
+        testPassed &= assertTrue(snapshot.getClientByChatId(2) == null, "Delete should survive a checkpoint");
+        testPassed &= assertEquals("Kept", snapshot.getClientByChatId(1).username, "Other clients should stay");
+        snapshot.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+}
@@ -2,9 +2,9 @@ package FightLang;
 
 import com.google.gson.Gson;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.stream.Stream;
 
 class Storage implements StorageInterface {
   private Gson g = new Gson();
@@ -26,18 +26,20 @@ class Storage implements StorageInterface {
     Logger.saveClient(chatId, g.toJson(client));
   }
 
+  // Reading and parsing happen per element, so a parallel stream spreads
+  // them across the scan pool while the directory is listed incrementally.
   @Override
-  public void forEachClient(ClientDo doable) {
-    List<String> chatIds = Logger.getAllClientNames();
-    for (String chatId : chatIds) {
-      String clientJson = Logger.getClient(chatId);
-      Client c = g.fromJson(clientJson, Client.class);
-      if (c == null) {
-        Logger.logException(new Exception(clientJson + " - " + chatId));
-        continue;
-      }
-      doable.run(c);
-    }
+  public Stream<Client> streamClients() {
+    return Logger.streamClientNames()
+        .map(chatId -> {
+          String clientJson = Logger.getClient(chatId);
+          Client c = g.fromJson(clientJson, Client.class);
+          if (c == null) {
+            Logger.logException(new Exception(clientJson + " - " + chatId));
+          }
+          return c;
+        })
+        .filter(Objects::nonNull);
   }
 
   @Override
@@ -60,6 +62,16 @@ class Storage implements StorageInterface {
     return result;
   }
 
+  @Override
+  public void deleteClient(int chatId) {
+    Logger.deleteClient(Integer.toString(chatId));
+  }
+
+  @Override
+  public void flush() {
+    Logger.checkpointClients();
+  }
+
   @Override
   public int getMaxUpdateId() {
     Integer result = Logger.getIntVar("maxUpdateId");
@@ -0,0 +1,120 @@
+package FightLang;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+
+// Optional "storage" section of config.json, for example
+//   {"token": "...", "storage": {"backend": "log", "fsync": false}}
+// Without it the bot keeps one file per client under db/clients.
+class StorageConfig {
+  private static Gson g = new Gson();
+
+  private class Config {
+    StorageConfig storage;
+  }
+
+  // "files" (one file per client), "log" (append-only segments), "mmap"
+  // (fixed-size slots in a memory-mapped file) or "snapshot" (in memory,
+  // persisted as periodic snapshots plus a delta journal).
+  String backend = "files";
+  // Force writes to disk: every append for "log" and "snapshot", every
+  // flush for "mmap" and for the vars such as maxUpdateId.
+  boolean fsync = false;
+  int segment_mb = 16;
+  int snapshot_interval_s = 300;
+  // Keep hot clients in memory and write dirty ones once per loop cycle.
+  boolean write_behind = false;
+  int cache_size = 10000;
+  int max_dirty = 500;
+  int flush_interval_ms = 1000;
+  // Persist the set of chats the engine loads at startup.
+  boolean index = true;
+  // Keep bots in memory for the length of their fight instead of storing
+  // them; with bot_snapshot they are also saved to db/bots.snap per cycle.
+  boolean bot_table = true;
+  int max_bots = 10000;
+  boolean bot_snapshot = false;
+  // Move players idle for this many days to a compressed archive in db/cold;
+  // 0 keeps everyone in the main store.
+  int cold_after_days = 0;
+  // Time storage operations and count I/O (see StorageStats); a summary is
+  // logged every stats_interval_s seconds, 0 turns the dumps off.
+  boolean stats = true;
+  int stats_interval_s = 300;
+  // Write a compressed archive of all clients and vars to db/backups every
+  // backup_interval_h hours while the bot runs, keeping the newest
+  // backup_keep; 0 turns backups off.
+  int backup_interval_h = 0;
+  int backup_keep = 3;
+  // Keep player counts by level, status, win rate and daily success up to
+  // date (db/stats.txt, /stats42).
+  boolean game_stats = true;
+
+  static StorageConfig load() {
+    Config c = g.fromJson(Logger.getConfigText(), Config.class);
+    if (c == null || c.storage == null) {
+      return new StorageConfig();
+    }
+    return c.storage;
+  }
+
+  StorageInterface open(String dbPath) {
+    Logger.setVarsFsync(fsync);
+    StorageInterface storage = openBackend(dbPath);
+    if (cold_after_days > 0) {
+      storage = new TieredStorage(storage, dbPath + "/cold", cold_after_days * 24 * 60 * 60);
+    }
+    if (backup_interval_h > 0) {
+      BackupStorage backups = new BackupStorage(storage);
+      backups.startBackups(new File(dbPath, "backups"), backup_interval_h * 60 * 60 * 1000L, backup_keep);
+      storage = backups;
+    }
+    if (write_behind) {
+      storage = new WriteBehindStorage(storage, cache_size, max_dirty, flush_interval_ms);
+    }
+    if (index) {
+      storage = new IndexedStorage(storage, GameEngine.CHAT_TIMEOUT);
+    }
+    if (bot_table) {
+      storage = new BotStorage(storage, max_bots,
+          bot_snapshot ? new File(dbPath, "bots.snap") : null);
+    }
+    storage = new VersionedStorage(storage);
+    if (game_stats) {
+      GameStats.active = new GameStats();
+      storage = new GameStatsStorage(storage, GameStats.active, dbPath);
+    }
+    if (stats) {
+      storage = new InstrumentedStorage(storage);
+      StorageStats.startDumps(stats_interval_s * 1000L);
+    }
+    return storage;
+  }
+
+  private StorageInterface openBackend(String dbPath) {
+    switch (backend) {
+      case "files":
+        return new Storage();
+      case "log":
+        LogStorage log = new LogStorage(dbPath + "/log", segment_mb * 1024L * 1024L, fsync);
+        log.importFromFiles();
+        log.startCompaction();
+        return log;
+      case "mmap":
+        MappedStorage slots = new MappedStorage(dbPath + "/slots", fsync);
+        slots.importFromFiles();
+        return slots;
+      case "snapshot":
+        SnapshotStorage snapshot = new SnapshotStorage(dbPath + "/snapshot", fsync,
+            snapshot_interval_s * 1000L);
+        snapshot.importFromFiles();
+        snapshot.startCheckpoints();
+        return snapshot;
+      default:
+        Logger.log("Unknown storage backend: " + backend);
+        System.exit(5);
+        return null;
+    }
+  }
+}
@@ -2,13 +2,60 @@ package FightLang;
 
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Stream;
 
 interface StorageInterface {
     void saveClients(Client... clients);
     void saveClient(Client client);
-    void forEachClient(ClientDo doable);
+    // Lazily reads every client. The stream may be made parallel (see
+    // ClientScan) and must be closed if it is not consumed to the end.
+    Stream<Client> streamClients();
+    // Like streamClients(), but also reads clients kept in a cold tier (see
+    // TieredStorage). For tools that really need every record.
+    default Stream<Client> streamAllClients() {
+        return streamClients();
+    }
     Client getClientByChatId(int chatId);
     Client[] getClientsByChatIds(Set<Integer> chatIds);
     int getMaxUpdateId();
     void saveMaxUpdateId(int id);
-}
\ No newline at end of file
+
+    // Compare-and-set save: stores the client only if the stored record still
+    // has expectedVersion, the version the client had when it was loaded, and
+    // returns false if someone saved it in between. Plain saves stay last
+    // writer wins; VersionedStorage bumps the version on every save, stores
+    // without it only see the bumps made here.
+    default boolean saveIfVersion(Client client, int expectedVersion) {
+        synchronized (this) {
+            Client stored = getClientByChatId(client.chatId);
+            int current = stored == null ? 0 : stored.version;
+            // A store that hands out shared instances cannot lose an update.
+            if (stored != client && current != expectedVersion) {
+                return false;
+            }
+            client.version = current + 1;
+            saveClient(client);
+            return true;
+        }
+    }
+
+    // Sequential adapter over streamClients().
+    default void forEachClient(ClientDo doable) {
+        try (Stream<Client> clients = streamClients()) {
+            clients.forEachOrdered(doable::run);
+        }
+    }
+
+    // Visits the clients the engine tracks between updates (not idle, injured
+    // or recently active). Stores without an index visit every client.
+    default void forEachIndexedClient(ClientDo doable) {
+        forEachClient(doable);
+    }
+
+    // Removes a client record. Used to move clients between tiers.
+    void deleteClient(int chatId);
+
+    // Called once per main loop cycle; stores that buffer writes persist them here.
+    default void flush() {
+    }
+}
@@ -0,0 +1,128 @@
+package FightLang;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide storage metrics. InstrumentedStorage records the latency of
+// client operations, Logger the latency of var reads and writes, and the
+// file-level code counts its I/O here. snapshot() is cheap enough to call
+// from a command handler; startDumps() writes one to the log periodically.
+//
+// Byte counts cover the client and var files, the journals and the append
+// logs of the log, snapshot and cold stores. Writes into memory mappings are
+// not I/O until the next force, which is counted as an fsync.
+class StorageStats {
+  static final LatencyHistogram getClient = new LatencyHistogram();
+  static final LatencyHistogram getClients = new LatencyHistogram();
+  static final LatencyHistogram saveClient = new LatencyHistogram();
+  static final LatencyHistogram saveClients = new LatencyHistogram();
+  static final LatencyHistogram scan = new LatencyHistogram();
+  static final LatencyHistogram varRead = new LatencyHistogram();
+  static final LatencyHistogram varWrite = new LatencyHistogram();
+
+  private static final LongAdder bytesRead = new LongAdder();
+  private static final LongAdder bytesWritten = new LongAdder();
+  private static final LongAdder fileOpens = new LongAdder();
+  private static final LongAdder fsyncs = new LongAdder();
+  private static final LongAdder backupOps = new LongAdder();
+  private static Thread dumper;
+
+  static class Snapshot {
+    final long bytesRead;
+    final long bytesWritten;
+    final long fileOpens;
+    final long fsyncs;
+    final long backupOps;
+    final Map<String, LatencyHistogram.Snapshot> latencies = new LinkedHashMap<>();
+
+    private Snapshot() {
+      this.bytesRead = StorageStats.bytesRead.sum();
+      this.bytesWritten = StorageStats.bytesWritten.sum();
+      this.fileOpens = StorageStats.fileOpens.sum();
+      this.fsyncs = StorageStats.fsyncs.sum();
+      this.backupOps = StorageStats.backupOps.sum();
+      latencies.put("getClient", getClient.snapshot());
+      latencies.put("getClients", getClients.snapshot());
+      latencies.put("saveClient", saveClient.snapshot());
+      latencies.put("saveClients", saveClients.snapshot());
+      latencies.put("scan", scan.snapshot());
+      latencies.put("varRead", varRead.snapshot());
+      latencies.put("varWrite", varWrite.snapshot());
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder result = new StringBuilder(String.format(
+          "storage: read=%dB written=%dB opens=%d fsyncs=%d backupOps=%d",
+          bytesRead, bytesWritten, fileOpens, fsyncs, backupOps));
+      for (Map.Entry<String, LatencyHistogram.Snapshot> e : latencies.entrySet()) {
+        if (e.getValue().count > 0) {
+          result.append("\n  ").append(e.getKey()).append(": ").append(e.getValue());
+        }
+      }
+      return result.toString();
+    }
+  }
+
+  static Snapshot snapshot() {
+    return new Snapshot();
+  }
+
+  static void read(long bytes) {
+    bytesRead.add(bytes);
+  }
+
+  static void written(long bytes) {
+    bytesWritten.add(bytes);
+  }
+
+  static void opened() {
+    fileOpens.increment();
+  }
+
+  static void fsynced() {
+    fsyncs.increment();
+  }
+
+  // Journal writes, replays and deletions, and the legacy .backup file.
+  static void backupOp() {
+    backupOps.increment();
+  }
+
+  static void reset() {
+    for (LatencyHistogram h : new LatencyHistogram[] {
+        getClient, getClients, saveClient, saveClients, scan, varRead, varWrite}) {
+      h.reset();
+    }
+    bytesRead.reset();
+    bytesWritten.reset();
+    fileOpens.reset();
+    fsyncs.reset();
+    backupOps.reset();
+  }
+
+  // Logs a snapshot every interval. The numbers are totals since start, so
+  // two consecutive dumps give the rates in between.
+  static synchronized void startDumps(long intervalMs) {
+    if (dumper != null || intervalMs <= 0) {
+      return;
+    }
+    dumper = new Thread(new Runnable() {
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            Thread.sleep(intervalMs);
+            Logger.log(snapshot().toString());
+          } catch (InterruptedException e) {
+            return;
+          } catch (Exception e) {
+            Logger.logException(e);
+          }
+        }
+      }
+    }, "storage-stats");
+    dumper.setDaemon(true);
+    dumper.start();
+  }
+}
@@ -0,0 +1,101 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+
+/**
+ * Tests for storage instrumentation: histogram buckets and percentiles,
+ * operation timing by InstrumentedStorage and the file I/O counters.
+ */
+public class StorageStatsTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testBuckets();
+        allTestsPassed &= testPercentiles();
+        allTestsPassed &= testOperationsTimed();
+        allTestsPassed &= testIoCounters();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome storage stats tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testBuckets() {
+        boolean testPassed = true;
+        for (long v : new long[] {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE}) {
+            int b = LatencyHistogram.bucket(v);
+            testPassed &= assertTrue(LatencyHistogram.lowerBound(b) <= v, "Bucket of " + v + " should start at or below it");
+            if (v < Long.MAX_VALUE) {
+                testPassed &= assertTrue(LatencyHistogram.lowerBound(b + 1) > v, "Next bucket of " + v + " should start above it");
+            }
+        }
+        return testPassed;
+    }
+
+    private static boolean testPercentiles() {
+        boolean testPassed = true;
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot s = h.snapshot();
+        testPassed &= assertEquals(1000, (int) s.count, "Every value should be counted");
+        testPassed &= assertEquals(1000000, (int) s.maxNanos, "Max should be exact");
+        testPassed &= assertTrue(Math.abs(s.p50Nanos - 500000) <= 500000 / 8, "p50 should be within a bucket of the true value");
+        testPassed &= assertTrue(Math.abs(s.p99Nanos - 990000) <= 990000 / 8, "p99 should be within a bucket of the true value");
+        testPassed &= assertEquals(500500, (int) s.meanNanos, "Mean should be exact");
+        h.reset();
+        testPassed &= assertEquals(0, (int) h.snapshot().count, "Reset should clear the histogram");
+        return testPassed;
+    }
+
+    private static boolean testOperationsTimed() {
+        boolean testPassed = true;
+        StorageStats.reset();
+        InstrumentedStorage storage = new InstrumentedStorage(new MockStorage());
+        storage.saveClient(new Client(1, "Timed"));
+        storage.saveClients(new Client(2, "A"), new Client(3, "B"));
+        storage.getClientByChatId(1);
+        storage.getClientByChatId(2);
+        storage.forEachClient(new ClientDo() {
+            public void run(Client c) {
+            }
+        });
+        StorageStats.Snapshot s = StorageStats.snapshot();
+        testPassed &= assertEquals(1, (int) s.latencies.get("saveClient").count, "saveClient should be timed");
+        testPassed &= assertEquals(1, (int) s.latencies.get("saveClients").count, "saveClients should be timed");
+        testPassed &= assertEquals(2, (int) s.latencies.get("getClient").count, "Reads should be timed");
+        testPassed &= assertEquals(1, (int) s.latencies.get("scan").count, "Scans should be timed");
+        testPassed &= assertTrue(s.toString().contains("getClient: n=2"), "Dump should list the latencies");
+        return testPassed;
+    }
+
+    private static boolean testIoCounters() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("storagestats");
+        StorageStats.reset();
+
+        Storage storage = new Storage();
+        storage.saveClients(new Client(1, "Journaled"), new Client(2, "Too"));
+        storage.flush();
+        storage.getClientByChatId(1);
+        Logger.saveVar("someVar", "value");
+        Logger.getVar("someVar");
+
+        StorageStats.Snapshot s = StorageStats.snapshot();
+        testPassed &= assertTrue(s.bytesWritten > 0, "Client writes should be counted");
+        testPassed &= assertTrue(s.bytesRead > 0, "Client reads should be counted");
+        testPassed &= assertTrue(s.fsyncs >= 3, "Journal, file and directory fsyncs should be counted");
+        testPassed &= assertEquals(2, (int) s.backupOps, "Journal write and delete should be counted");
+        testPassed &= assertTrue(s.fileOpens >= 5, "File opens should be counted");
+        testPassed &= assertEquals(1, (int) s.latencies.get("varWrite").count, "Var writes should be timed");
+        testPassed &= assertEquals(1, (int) s.latencies.get("varRead").count, "Var reads should be timed");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+}
@@ -19,23 +19,36 @@ import com.google.gson.Gson;
 
 class TelegramApi {
   static String token;
-  private static final String BASE_URL = "https://api.telegram.org/bot";
+  static String baseUrl = "https://api.telegram.org/bot";
+  // Most updates Telegram returns for one getUpdates call.
+  static final int UPDATES_LIMIT = 100;
+  // The game only reads messages, so other update types are not sent.
+  private static final String ALLOWED_UPDATES = "[\"message\"]";
+  // Slack on top of a long poll's wait before the read gives up.
+  private static final int READ_TIMEOUT_SLACK_MS = 10000;
   private final String method;
   private final String params;
+  private int readTimeoutMs = 0;
   HttpURLConnection connection;
   private static Gson g = new Gson();
 
   private class Config {
     String token;
+    // e.g. a local Bot API server, "http://localhost:8081/bot"
+    String api_url;
   }
 
   public static void initialize() {
     String configText = Logger.getConfigText();
     Config c = g.fromJson(configText, Config.class);
     token = c.token;
+    if (c.api_url != null) {
+      baseUrl = c.api_url;
+    }
   }
 
-  public static void say(int chatId,
+  // Returns false if Telegram did not accept the message.
+  public static boolean say(int chatId,
       String text,
       String[] buttonTexts,
       boolean removeButtonsIfNeeded) {
@@ -66,31 +79,54 @@ class TelegramApi {
       params += "&reply_markup={\"remove_keyboard\":true}";
     }
     TelegramApi req = new TelegramApi("sendMessage", params);
-    req.execute();
+    return !req.execute().isEmpty();
   }
 
-  public static void sendTypingEvent(int chatId) {
+  public static boolean sendTypingEvent(int chatId) {
     try {
       String params = "chat_id=" + chatId + "&action=typing";
       TelegramApi req = new TelegramApi("sendChatAction", params);
-      req.execute();
+      return !req.execute().isEmpty();
     }  catch (Exception e) {
       Logger.logException(e);
+      return false;
     }
   }
 
   public static Telegram.Update[] getUpdates(int offset) {
-    TelegramApi req = new TelegramApi(
-        "getUpdates",
-        "offset=" + offset);
+    return getUpdates(offset, 0);
+  }
+
+  // With timeoutSeconds > 0 Telegram holds the request open until an update
+  // arrives or the time is up, so an idle bot makes one call per window and
+  // a new message is returned at once.
+  public static Telegram.Update[] getUpdates(int offset, int timeoutSeconds) {
+    TelegramApi req = new TelegramApi("getUpdates", getUpdatesParams(offset, timeoutSeconds));
+    req.readTimeoutMs = timeoutSeconds * 1000 + READ_TIMEOUT_SLACK_MS;
     String resp = req.execute();
     if (resp.isEmpty()) {
       return new Telegram.Update[0];
     }
     Telegram.GetUpdatesResult updates = g.fromJson(resp, Telegram.GetUpdatesResult.class);
+    if (updates == null || updates.result == null) {
+      return new Telegram.Update[0];
+    }
     return updates.result;
   }
 
+  static String getUpdatesParams(int offset, int timeoutSeconds) {
+    String params = "offset=" + offset + "&limit=" + UPDATES_LIMIT;
+    try {
+      params += "&allowed_updates=" + URLEncoder.encode(ALLOWED_UPDATES, "UTF-8");
+    } catch (Exception e) {
+      Logger.logException(e);
+    }
+    if (timeoutSeconds > 0) {
+      params += "&timeout=" + timeoutSeconds;
+    }
+    return params;
+  }
+
   private TelegramApi(String method) {
     this(method, "");
   }
@@ -166,7 +202,7 @@ class TelegramApi {
 
   private HttpURLConnection getConnection()
       throws MalformedURLException, IOException, ProtocolException, URISyntaxException {
-    URI uri = new URI(BASE_URL + token + "/" + method);
+    URI uri = new URI(baseUrl + token + "/" + method);
     URL url = uri.toURL();
     connection = (HttpURLConnection) url.openConnection();
     connection.setRequestMethod("POST");
@@ -177,6 +213,9 @@ class TelegramApi {
     connection.setRequestProperty("Content-Language", "en-US");
     connection.setUseCaches(false);
     connection.setDoOutput(true);
+    if (readTimeoutMs > 0) {
+      connection.setReadTimeout(readTimeoutMs);
+    }
     return connection;
   }
 }
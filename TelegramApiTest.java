@@ -0,0 +1,188 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for getUpdates against a local fake Bot API server: the long poll
+ * parameters, a poll held open until an update arrives and the idle request
+ * rate of the poller.
+ */
+public class TelegramApiTest {
+
+    // Answers getUpdates like Telegram: with the pending updates at or above
+    // the offset, or after `timeout` seconds with none.
+    private static class FakeServer {
+        final HttpServer server;
+        final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> pending = new ArrayList<>();
+        final CountDownLatch firstRequest = new CountDownLatch(1);
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        FakeServer() throws Exception {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/botTEST/getUpdates", exchange -> {
+                inFlight.incrementAndGet();
+                String body = readBody(exchange.getRequestBody());
+                requests.add(body);
+                firstRequest.countDown();
+                int offset = Integer.parseInt(param(body, "offset"));
+                String timeout = param(body, "timeout");
+                long deadline = System.currentTimeMillis() + (timeout == null ? 0 : Integer.parseInt(timeout) * 1000L);
+                StringBuilder result = new StringBuilder();
+                synchronized (this) {
+                    while (true) {
+                        for (int id : pending) {
+                            if (id >= offset) {
+                                if (result.length() > 0) {
+                                    result.append(',');
+                                }
+                                result.append("{\"update_id\":").append(id)
+                                    .append(",\"message\":{\"text\":\"hi\",\"chat\":{\"id\":7}}}");
+                            }
+                        }
+                        long left = deadline - System.currentTimeMillis();
+                        if (result.length() > 0 || left <= 0) {
+                            break;
+                        }
+                        try {
+                            wait(left);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                byte[] resp = ("{\"ok\":true,\"result\":[" + result + "]}").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, resp.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(resp);
+                }
+                inFlight.decrementAndGet();
+            });
+            server.start();
+        }
+
+        synchronized void add(int updateId) {
+            pending.add(updateId);
+            notifyAll();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/bot";
+        }
+
+        void stop() {
+            server.stop(0);
+            ((java.util.concurrent.ExecutorService) server.getExecutor()).shutdownNow();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        FakeServer server = new FakeServer();
+        String baseUrl = TelegramApi.baseUrl;
+        TelegramApi.baseUrl = server.url();
+        TelegramApi.token = "TEST";
+        try {
+            allTestsPassed &= testLongPollParameters(server);
+            allTestsPassed &= testPollerWithLongPoll(server);
+        } finally {
+            TelegramApi.baseUrl = baseUrl;
+            server.stop();
+        }
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome Telegram API tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testLongPollParameters(FakeServer server) throws Exception {
+        boolean testPassed = true;
+        server.add(5);
+        Telegram.Update[] updates = TelegramApi.getUpdates(5, 2);
+        testPassed &= assertEquals(1, updates.length, "Pending update should be returned");
+        testPassed &= assertEquals("hi", updates[0].message.text, "Update should be parsed");
+        String body = server.requests.get(0);
+        testPassed &= assertEquals("5", param(body, "offset"), "Offset should be sent");
+        testPassed &= assertEquals("2", param(body, "timeout"), "Server-side wait should be sent");
+        testPassed &= assertEquals(String.valueOf(TelegramApi.UPDATES_LIMIT), param(body, "limit"), "Limit should be sent");
+        testPassed &= assertEquals("[\"message\"]", param(body, "allowed_updates"), "Only messages should be asked for");
+
+        long start = System.currentTimeMillis();
+        updates = TelegramApi.getUpdates(6, 1);
+        long waited = System.currentTimeMillis() - start;
+        testPassed &= assertEquals(0, updates.length, "Poll without news should come back empty");
+        testPassed &= assertTrue(waited >= 900, "Server should hold an idle poll for the timeout, held " + waited + "ms");
+        testPassed &= assertTrue(param(TelegramApi.getUpdatesParams(6, 0), "timeout") == null,
+            "Short polls should not send a timeout");
+        return testPassed;
+    }
+
+    private static boolean testPollerWithLongPoll(FakeServer server) throws Exception {
+        boolean testPassed = true;
+        int before = server.requests.size();
+        UpdatePoller poller = new UpdatePoller(new TelegramService(2), 6, 10, 500);
+        poller.start();
+        Thread.sleep(1500);
+        testPassed &= assertEquals(1, server.requests.size() - before, "An idle long poll should be one request");
+
+        List<Telegram.Update> batch = new ArrayList<>();
+        long sent = System.currentTimeMillis();
+        server.add(6);
+        testPassed &= assertEquals(1, poller.drainTo(batch, 10, 3000), "Update should be delivered");
+        long latency = System.currentTimeMillis() - sent;
+        testPassed &= assertTrue(latency < 300, "Update should arrive at once, took " + latency + "ms");
+        testPassed &= assertEquals(6, batch.get(0).update_id, "Update id should be passed on");
+        poller.stop();
+        // Answer the poll still open and wait until the poller has seen the
+        // answer, so the server does not go away under a request.
+        server.add(7);
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((poller.getReceivedCount() < 2 || server.inFlight.get() > 0)
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return testPassed;
+    }
+
+    private static String readBody(InputStream in) throws java.io.IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            buf.write(chunk, 0, n);
+        }
+        return buf.toString("UTF-8");
+    }
+
+    private static String param(String body, String name) {
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                try {
+                    return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+                } catch (java.io.UnsupportedEncodingException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+}
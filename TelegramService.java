@@ -1,9 +1,20 @@
 package FightLang;
 
 public class TelegramService implements TelegramInterface {
+    // Server-side wait of each getUpdates call; 0 polls without waiting.
+    private final int pollTimeoutSeconds;
+
+    public TelegramService() {
+        this(0);
+    }
+
+    public TelegramService(int pollTimeoutSeconds) {
+        this.pollTimeoutSeconds = pollTimeoutSeconds;
+    }
+
     @Override
     public Telegram.Update[] getUpdates(int offset) {
-        return TelegramApi.getUpdates(offset);
+        return TelegramApi.getUpdates(offset, pollTimeoutSeconds);
     }
     
     @Override
@@ -18,6 +29,6 @@ public class TelegramService implements TelegramInterface {
     
     @Override
     public void sendTypingEvent(int chatId) {
-        TelegramApi.sendTypingEvent(chatId);
+        Messenger.sendTypingEvent(chatId);
     }
 }
\ No newline at end of file
@@ -1,5 +1,8 @@
 package FightLang;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -318,4 +321,31 @@ public class TestHelper {
             return false;
         }
     }
-}
\ No newline at end of file
+    
+    // ========== FILE STORAGE UTILITIES ==========
+    
+    /**
+     * Creates an empty database directory with clients/ and vars/ and points
+     * the Logger at it. Remove it with deleteRecursively when done.
+     */
+    public static File createTempDb(String prefix) throws IOException {
+        File dir = Files.createTempDirectory(prefix).toFile();
+        new File(dir, "clients").mkdirs();
+        new File(dir, "vars").mkdirs();
+        Logger.setDbPath(dir.getPath());
+        return dir;
+    }
+    
+    /**
+     * Deletes a file or a directory with everything in it.
+     */
+    public static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursively(c);
+            }
+        }
+        f.delete();
+    }
+}
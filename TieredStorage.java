@@ -0,0 +1,441 @@
+package FightLang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Decorator that moves dormant players out of the underlying (hot) store
+// into a compressed cold archive. Scans only see the hot tier, so the
+// background tasks no longer pay for players who left months ago;
+// streamAllClients() includes the cold tier. A cold client is moved back
+// transparently the first time it is read.
+//
+// The archive is one append-only file of blocks:
+//   [int type][int length][int crc32 of body][length bytes body]
+// A DATA block holds a deflated run of (chatId, length, ClientCodec record)
+// entries, one block per demotion batch so small records compress well
+// together. A DROP block lists chat ids that were moved back to the hot
+// tier. The in-memory index maps chat ids to the offset of their block and is
+// rebuilt by scanning the file on start; a torn block at the end is cut off.
+// When most of the file is dead, it is rewritten.
+class TieredStorage implements StorageInterface {
+  private static final int DATA = 1;
+  private static final int DROP = 2;
+  private static final int HEADER_SIZE = 12;
+  private static final int BLOCK_CLIENTS = 512;
+  private static final int MAX_DEMOTIONS_PER_RUN = 10000;
+  private static final long DEMOTION_INTERVAL_MS = 60 * 60 * 1000L;
+
+  private final StorageInterface hot;
+  private final File archive;
+  private final int coldAfterSeconds;
+  private final Map<Integer, Long> cold = new HashMap<>();
+  private FileChannel channel;
+  private long deadRecords = 0;
+  private long lastDemotion = 0;
+
+  TieredStorage(StorageInterface hot, String path, int coldAfterSeconds) {
+    this.hot = hot;
+    this.coldAfterSeconds = coldAfterSeconds;
+    File dir = new File(path);
+    dir.mkdirs();
+    this.archive = new File(dir, "clients.cold");
+    try {
+      channel = new RandomAccessFile(archive, "rw").getChannel();
+      load();
+    } catch (IOException e) {
+      Logger.logException(e);
+      throw new IllegalStateException("Could not open cold archive " + path, e);
+    }
+  }
+
+  @Override
+  public synchronized void saveClients(Client... clients) {
+    for (Client client : clients) {
+      forgetCold(client.chatId);
+    }
+    hot.saveClients(clients);
+  }
+
+  @Override
+  public synchronized void saveClient(Client client) {
+    forgetCold(client.chatId);
+    hot.saveClient(client);
+  }
+
+  @Override
+  public Stream<Client> streamClients() {
+    return hot.streamClients();
+  }
+
+  // The cold ids are listed only once the hot tier has been read, so a
+  // client demoted in the middle of the scan is still seen (at worst twice).
+  @Override
+  public Stream<Client> streamAllClients() {
+    return Stream.concat(hot.streamAllClients(),
+        Stream.of(this).flatMap(TieredStorage::streamColdClients));
+  }
+
+  @Override
+  public void forEachIndexedClient(ClientDo doable) {
+    hot.forEachIndexedClient(doable);
+  }
+
+  @Override
+  public synchronized Client getClientByChatId(int chatId) {
+    Client client = hot.getClientByChatId(chatId);
+    if (client != null) {
+      return client;
+    }
+    Long offset = cold.get(chatId);
+    if (offset == null) {
+      return null;
+    }
+    client = readCold(offset, chatId);
+    if (client != null) {
+      hot.saveClient(client);
+      forgetCold(chatId);
+      Logger.log("Rehydrated " + chatId + " from the cold archive");
+    }
+    return client;
+  }
+
+  @Override
+  public Client[] getClientsByChatIds(Set<Integer> chatIds) {
+    Client[] result = new Client[chatIds.size()];
+    int i = 0;
+    for (int chatId : chatIds) {
+      result[i] = getClientByChatId(chatId);
+      i++;
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized void deleteClient(int chatId) {
+    forgetCold(chatId);
+    hot.deleteClient(chatId);
+  }
+
+  @Override
+  public int getMaxUpdateId() {
+    return hot.getMaxUpdateId();
+  }
+
+  @Override
+  public void saveMaxUpdateId(int id) {
+    hot.saveMaxUpdateId(id);
+  }
+
+  // Demotion piggybacks on the end-of-cycle flush, at most once an hour.
+  @Override
+  public void flush() {
+    hot.flush();
+    if (System.currentTimeMillis() - lastDemotion >= DEMOTION_INTERVAL_MS) {
+      demote();
+    }
+  }
+
+  // Moves players idle for longer than the threshold to the archive and
+  // returns how many were moved. Bots and players in the middle of something
+  // stay hot.
+  int demote() {
+    lastDemotion = System.currentTimeMillis();
+    int cutoff = (int) (lastDemotion / 1000L) - coldAfterSeconds;
+    List<Client> dormant;
+    try (Stream<Client> clients = hot.streamClients()) {
+      dormant = clients
+          .filter(c -> c.chatId > 0
+              && c.status == Client.Status.IDLE
+              && c.lastActivity < cutoff
+              && c.hp >= c.getMaxHp())
+          .limit(MAX_DEMOTIONS_PER_RUN)
+          .collect(Collectors.toList());
+    }
+    if (dormant.isEmpty()) {
+      return 0;
+    }
+    synchronized (this) {
+      try {
+        for (int from = 0; from < dormant.size(); from += BLOCK_CLIENTS) {
+          List<Client> batch = dormant.subList(from, Math.min(from + BLOCK_CLIENTS, dormant.size()));
+          long offset = appendBlock(DATA, deflate(encodeEntries(batch)));
+          for (Client c : batch) {
+            if (cold.put(c.chatId, offset) != null) {
+              deadRecords++;
+            }
+          }
+        }
+        // The archive must be on disk before the hot copies go away.
+        channel.force(false);
+        StorageStats.fsynced();
+      } catch (IOException e) {
+        Logger.logException(e);
+        return 0;
+      }
+      for (Client c : dormant) {
+        hot.deleteClient(c.chatId);
+      }
+      Logger.log("Moved " + dormant.size() + " dormant clients to the cold archive");
+      compactIfNeeded();
+    }
+    return dormant.size();
+  }
+
+  synchronized int getColdCount() {
+    return cold.size();
+  }
+
+  synchronized long getArchiveBytes() throws IOException {
+    return channel.size();
+  }
+
+  synchronized void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+  }
+
+  private Stream<Client> streamColdClients() {
+    List<Integer> coldIds;
+    synchronized (this) {
+      coldIds = new ArrayList<>(cold.keySet());
+    }
+    return coldIds.stream()
+        .map(chatId -> {
+          synchronized (TieredStorage.this) {
+            Long offset = cold.get(chatId);
+            return offset == null ? null : readCold(offset, chatId);
+          }
+        })
+        .filter(c -> c != null);
+  }
+
+  private void forgetCold(int chatId) {
+    if (cold.remove(chatId) == null) {
+      return;
+    }
+    deadRecords++;
+    try {
+      appendBlock(DROP, ByteBuffer.allocate(4).putInt(chatId).array());
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+  }
+
+  private Client readCold(long offset, int chatId) {
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      readFully(header, offset);
+      header.flip();
+      header.getInt();
+      ByteBuffer body = ByteBuffer.allocate(header.getInt());
+      readFully(body, offset + HEADER_SIZE);
+      StorageStats.read(HEADER_SIZE + body.capacity());
+      ByteBuffer entries = ByteBuffer.wrap(inflate(body.array()));
+      while (entries.hasRemaining()) {
+        int id = entries.getInt();
+        int length = entries.getInt();
+        if (id == chatId) {
+          return ClientCodec.decode(entries.array(), entries.position(), length);
+        }
+        entries.position(entries.position() + length);
+      }
+    } catch (IOException | DataFormatException | RuntimeException e) {
+      Logger.logException(new Exception("Could not read cold client " + chatId, e));
+    }
+    return null;
+  }
+
+  private long appendBlock(int type, byte[] body) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + body.length);
+    buf.putInt(type).putInt(body.length).putInt((int) crc.getValue()).put(body);
+    buf.flip();
+    long offset = channel.size();
+    while (buf.hasRemaining()) {
+      channel.write(buf, offset + buf.position());
+    }
+    StorageStats.written(HEADER_SIZE + body.length);
+    return offset;
+  }
+
+  private void load() throws IOException {
+    long size = channel.size();
+    long pos = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (pos + HEADER_SIZE <= size) {
+      header.clear();
+      readFully(header, pos);
+      header.flip();
+      int type = header.getInt();
+      int length = header.getInt();
+      int crc = header.getInt();
+      if ((type != DATA && type != DROP) || length < 0 || pos + HEADER_SIZE + length > size) {
+        break;
+      }
+      ByteBuffer body = ByteBuffer.allocate(length);
+      readFully(body, pos + HEADER_SIZE);
+      CRC32 check = new CRC32();
+      check.update(body.array());
+      if ((int) check.getValue() != crc) {
+        break;
+      }
+      body.flip();
+      if (type == DATA) {
+        try {
+          ByteBuffer entries = ByteBuffer.wrap(inflate(body.array()));
+          while (entries.hasRemaining()) {
+            int chatId = entries.getInt();
+            int entryLength = entries.getInt();
+            entries.position(entries.position() + entryLength);
+            if (cold.put(chatId, pos) != null) {
+              deadRecords++;
+            }
+          }
+        } catch (DataFormatException e) {
+          break;
+        }
+      } else {
+        while (body.remaining() >= 4) {
+          if (cold.remove(body.getInt()) != null) {
+            deadRecords++;
+          }
+        }
+      }
+      pos += HEADER_SIZE + length;
+    }
+    if (pos < size) {
+      Logger.log("Truncating cold archive from " + size + " to " + pos
+          + " bytes after an incomplete write");
+      channel.truncate(pos);
+    }
+  }
+
+  // Rewrites the archive with live entries only once it is mostly dead.
+  private void compactIfNeeded() {
+    if (deadRecords < 1000 || deadRecords < cold.size()) {
+      return;
+    }
+    File tmp = new File(archive.getPath() + ".tmp");
+    Map<Integer, Long> moved = new HashMap<>();
+    try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+      out.truncate(0);
+      List<Integer> ids = new ArrayList<>(cold.keySet());
+      for (int from = 0; from < ids.size(); from += BLOCK_CLIENTS) {
+        List<Client> batch = new ArrayList<>();
+        for (int chatId : ids.subList(from, Math.min(from + BLOCK_CLIENTS, ids.size()))) {
+          Client c = readCold(cold.get(chatId), chatId);
+          if (c != null) {
+            batch.add(c);
+          }
+        }
+        byte[] body = deflate(encodeEntries(batch));
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        long offset = out.size();
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + body.length);
+        buf.putInt(DATA).putInt(body.length).putInt((int) crc.getValue()).put(body);
+        buf.flip();
+        while (buf.hasRemaining()) {
+          out.write(buf, offset + buf.position());
+        }
+        for (Client c : batch) {
+          moved.put(c.chatId, offset);
+        }
+      }
+      out.force(true);
+    } catch (IOException e) {
+      Logger.logException(e);
+      tmp.delete();
+      return;
+    }
+    try {
+      channel.close();
+      Files.move(tmp.toPath(), archive.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      channel = new RandomAccessFile(archive, "rw").getChannel();
+    } catch (IOException e) {
+      Logger.logException(e);
+      throw new IllegalStateException("Could not reopen cold archive", e);
+    }
+    cold.clear();
+    cold.putAll(moved);
+    deadRecords = 0;
+  }
+
+  private static byte[] encodeEntries(List<Client> clients) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (Client c : clients) {
+      byte[] payload = ClientCodec.encode(c);
+      out.write(c.chatId >>> 24);
+      out.write(c.chatId >>> 16);
+      out.write(c.chatId >>> 8);
+      out.write(c.chatId);
+      out.write(payload.length >>> 24);
+      out.write(payload.length >>> 16);
+      out.write(payload.length >>> 8);
+      out.write(payload.length);
+      out.write(payload, 0, payload.length);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    deflater.setInput(data);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+    byte[] chunk = new byte[8192];
+    while (!deflater.finished()) {
+      out.write(chunk, 0, deflater.deflate(chunk));
+    }
+    deflater.end();
+    return out.toByteArray();
+  }
+
+  private static byte[] inflate(byte[] data) throws DataFormatException {
+    Inflater inflater = new Inflater();
+    inflater.setInput(data);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+    byte[] chunk = new byte[8192];
+    while (!inflater.finished()) {
+      int n = inflater.inflate(chunk);
+      if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+        throw new DataFormatException("Truncated cold block");
+      }
+      out.write(chunk, 0, n);
+    }
+    inflater.end();
+    return out.toByteArray();
+  }
+
+  private void readFully(ByteBuffer buf, long pos) throws IOException {
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, pos + buf.position()) < 0) {
+        throw new IOException("Unexpected end of cold archive");
+      }
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.stream.Stream;
+
+/**
+ * Tests for the cold tier: demotion of dormant players, rehydration on read,
+ * scans that skip the archive and recovery of the archive file.
+ */
+public class TieredStorageTest {
+    private static final int DAY = 24 * 60 * 60;
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testDemoteAndRehydrate();
+        allTestsPassed &= testScansSkipColdTier();
+        allTestsPassed &= testReopenArchive();
+        allTestsPassed &= testLogBackend();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome tiered storage tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testDemoteAndRehydrate() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("tiered");
+        MockStorage hot = new MockStorage();
+        TieredStorage storage = new TieredStorage(hot, dir.getPath() + "/cold", 30 * DAY);
+        int now = (int) (System.currentTimeMillis() / 1000L);
+
+        Client dormant = new Client(100, "Dormant");
+        dormant.lastActivity = now - 40 * DAY;
+        dormant.exp = 1234;
+        dormant.giveItem(Game.Item.GOLD);
+        Client active = new Client(200, "Active");
+        active.lastActivity = now;
+        Client fighting = new Client(300, "Fighting");
+        fighting.lastActivity = now - 40 * DAY;
+        fighting.status = Client.Status.FIGHTING;
+        storage.saveClients(dormant, active, fighting);
+
+        testPassed &= assertEquals(1, storage.demote(), "Only the idle dormant player should move");
+        testPassed &= assertEquals(1, storage.getColdCount(), "Archive should hold the dormant player");
+        testPassed &= assertTrue(hot.getClientByChatId(100) == null, "Dormant player should leave the hot tier");
+        testPassed &= assertTrue(hot.getClientByChatId(300) != null, "Players in a fight stay hot");
+
+        Client loaded = storage.getClientByChatId(100);
+        testPassed &= assertTrue(loaded != null, "Cold player should be found by chat id");
+        if (loaded != null) {
+            testPassed &= assertEquals(1234, loaded.exp, "Cold record should keep its fields");
+            testPassed &= assertEquals(1, loaded.getItemNum(Game.Item.GOLD), "Cold record should keep its inventory");
+        }
+        testPassed &= assertTrue(hot.getClientByChatId(100) != null, "Read should move the player back to the hot tier");
+        testPassed &= assertEquals(0, storage.getColdCount(), "Rehydrated player should leave the archive");
+
+        storage.close();
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testScansSkipColdTier() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("tiered");
+        MockStorage hot = new MockStorage();
+        TieredStorage storage = new TieredStorage(hot, dir.getPath() + "/cold", DAY);
+        int now = (int) (System.currentTimeMillis() / 1000L);
+        for (int i = 1; i <= 20; i++) {
+            Client c = new Client(i, "Player" + i);
+            c.lastActivity = i <= 15 ? now - 2 * DAY : now;
+            storage.saveClient(c);
+        }
+        storage.demote();
+
+        final int[] scanned = {0};
+        storage.forEachClient(new ClientDo() {
+            public void run(Client c) {
+                scanned[0]++;
+            }
+        });
+        testPassed &= assertEquals(5, scanned[0], "Regular scans should only see the hot tier");
+        try (Stream<Client> all = storage.streamAllClients()) {
+            testPassed &= assertEquals(20, (int) all.count(), "Full scans should include the cold tier");
+        }
+        testPassed &= assertEquals(15, storage.getColdCount(), "Full scans should not rehydrate");
+
+        storage.close();
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testReopenArchive() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("tiered");
+        String path = dir.getPath() + "/cold";
+        MockStorage hot = new MockStorage();
+        TieredStorage storage = new TieredStorage(hot, path, DAY);
+        int now = (int) (System.currentTimeMillis() / 1000L);
+        for (int i = 1; i <= 3; i++) {
+            Client c = new Client(i, "Sleeper" + i);
+            c.lastActivity = now - 2 * DAY;
+            storage.saveClient(c);
+        }
+        storage.demote();
+        storage.getClientByChatId(2);
+        storage.close();
+
+        // A crash in the middle of the next append.
+        File archive = new File(path, "clients.cold");
+        long validLength = archive.length();
+        try (FileOutputStream out = new FileOutputStream(archive, true)) {
+            out.write(new byte[] {0, 0, 0, 1, 0, 0, 1, 0, 1, 2});
+        }
+
+        storage = new TieredStorage(hot, path, DAY);
+        testPassed &= assertEquals(2, storage.getColdCount(), "Archive index should be rebuilt, without the rehydrated player");
+        testPassed &= assertTrue(archive.length() == validLength, "Torn block should be truncated");
+        testPassed &= assertEquals("Sleeper3", storage.getClientByChatId(3).username, "Cold record should survive a restart");
+        storage.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testLogBackend() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("tiered");
+        int now = (int) (System.currentTimeMillis() / 1000L);
+
+        LogStorage hot = new LogStorage(dir.getPath() + "/log");
+        TieredStorage storage = new TieredStorage(hot, dir.getPath() + "/cold", DAY);
+        Client dormant = new Client(100, "Dormant");
+        dormant.lastActivity = now - 2 * DAY;
+        Client active = new Client(200, "Active");
+        active.lastActivity = now;
+        storage.saveClients(dormant, active);
+        testPassed &= assertEquals(1, storage.demote(), "Dormant player should move out of the log");
+        storage.close();
+        hot.close();
+
+        hot = new LogStorage(dir.getPath() + "/log");
+        testPassed &= assertTrue(hot.getClientByChatId(100) == null, "Demoted player should stay out of the log after replay");
+        storage = new TieredStorage(hot, dir.getPath() + "/cold", DAY);
+        Client loaded = storage.getClientByChatId(100);
+        testPassed &= assertTrue(loaded != null && loaded.username.equals("Dormant"), "Cold player should be found after reopening");
+        testPassed &= assertTrue(hot.getClientByChatId(100) != null, "Read should move the player back into the log");
+        storage.close();
+        hot.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+}
@@ -0,0 +1,172 @@
+package FightLang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Hierarchical timer wheel with one-second ticks, for game deadlines such as
+// the next HP regen, the bot assignment delay and fight timeouts.
+//
+// Four levels of 64 slots cover 64 seconds, about 68 minutes, 3 days and 194
+// days. A timer goes into the coarsest level its delay needs and moves down
+// a level each time the finer wheel wraps, so a tick touches only the timers
+// due in that second plus, once per wrap, one slot of the next level.
+//
+// A chat has at most one timer of each kind: scheduling again replaces the
+// deadline and cancel() removes it.
+class TimerWheel {
+  interface Handler {
+    void fire(int kind, int chatId);
+  }
+
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int LEVELS = 4;
+  private static final long MAX_DELAY = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+  private static class Timer {
+    final long key;
+    int deadline;
+    Timer prev;
+    Timer next;
+    int level;
+    int slot;
+
+    Timer(long key) {
+      this.key = key;
+    }
+
+    int kind() {
+      return (int) (key >>> 32);
+    }
+
+    int chatId() {
+      return (int) key;
+    }
+  }
+
+  // Each slot is the head of a doubly linked list, so cancelling is O(1).
+  private final Timer[][] wheels = new Timer[LEVELS][SLOTS];
+  private final Map<Long, Timer> timers = new HashMap<>();
+  private int now;
+
+  TimerWheel(int now) {
+    this.now = now;
+  }
+
+  synchronized void schedule(int kind, int chatId, int deadline) {
+    long key = ((long) kind << 32) | (chatId & 0xFFFFFFFFL);
+    Timer t = timers.get(key);
+    if (t == null) {
+      t = new Timer(key);
+      timers.put(key, t);
+    } else {
+      unlink(t);
+    }
+    t.deadline = deadline;
+    place(t, 1);
+  }
+
+  synchronized void cancel(int kind, int chatId) {
+    Timer t = timers.remove(((long) kind << 32) | (chatId & 0xFFFFFFFFL));
+    if (t != null) {
+      unlink(t);
+    }
+  }
+
+  synchronized boolean isScheduled(int kind, int chatId) {
+    return timers.containsKey(((long) kind << 32) | (chatId & 0xFFFFFFFFL));
+  }
+
+  synchronized int size() {
+    return timers.size();
+  }
+
+  // Moves the wheel to `time` and passes every timer that came due to the
+  // handler, in deadline order. Handlers run outside the lock and may
+  // schedule again.
+  void advance(int time, Handler handler) {
+    List<Timer> due = new ArrayList<>();
+    synchronized (this) {
+      while (now < time) {
+        tick(due);
+      }
+    }
+    for (Timer t : due) {
+      try {
+        handler.fire(t.kind(), t.chatId());
+      } catch (Exception e) {
+        Logger.logException(e);
+      }
+    }
+  }
+
+  private void tick(List<Timer> due) {
+    now++;
+    for (int level = 1; level < LEVELS; level++) {
+      if (index(now, level - 1) != 0) {
+        break;
+      }
+      // The finer wheel wrapped: spread the next slot of this level over it.
+      Timer t = wheels[level][index(now, level)];
+      wheels[level][index(now, level)] = null;
+      while (t != null) {
+        Timer next = t.next;
+        t.prev = t.next = null;
+        place(t, 0);
+        t = next;
+      }
+    }
+    int slot = index(now, 0);
+    Timer t = wheels[0][slot];
+    wheels[0][slot] = null;
+    while (t != null) {
+      Timer next = t.next;
+      t.prev = t.next = null;
+      if (t.deadline > now) {
+        place(t, 1); // only timers beyond the top level's reach get here early
+      } else {
+        timers.remove(t.key);
+        due.add(t);
+      }
+      t = next;
+    }
+  }
+
+  // Timers moving down during a tick may land in the current slot, which is
+  // handled right after; new timers go at least one tick ahead, so a
+  // deadline in the past fires on the next tick.
+  private void place(Timer t, int minDelay) {
+    long delay = Math.max(minDelay, (long) t.deadline - now);
+    long at = now + Math.min(delay, MAX_DELAY);
+    int level = 0;
+    while (level < LEVELS - 1 && delay >= 1L << (SLOT_BITS * (level + 1))) {
+      level++;
+    }
+    t.level = level;
+    t.slot = (int) ((at >>> (SLOT_BITS * level)) & (SLOTS - 1));
+    Timer head = wheels[level][t.slot];
+    t.next = head;
+    if (head != null) {
+      head.prev = t;
+    }
+    wheels[level][t.slot] = t;
+  }
+
+  private void unlink(Timer t) {
+    if (t.prev != null) {
+      t.prev.next = t.next;
+    } else if (wheels[t.level][t.slot] == t) {
+      wheels[t.level][t.slot] = t.next;
+    }
+    if (t.next != null) {
+      t.next.prev = t.prev;
+    }
+    t.prev = t.next = null;
+  }
+
+  private static int index(long time, int level) {
+    return (int) ((time >>> (SLOT_BITS * level)) & (SLOTS - 1));
+  }
+}
@@ -0,0 +1,184 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for the hierarchical timer wheel: exact firing across all levels,
+ * replacement, cancellation and deadlines that are already past.
+ */
+public class TimerWheelTest {
+
+    public static void main(String[] args) {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testFiresAtDeadline();
+        allTestsPassed &= testRescheduleAndCancel();
+        allTestsPassed &= testPastDeadline();
+        allTestsPassed &= testRandomDeadlines();
+        allTestsPassed &= testEngineTimers();
+        allTestsPassed &= testNoRecoveryMessageWhenAlreadyFull();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome timer wheel tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testFiresAtDeadline() {
+        boolean testPassed = true;
+        int start = 1700000000;
+        TimerWheel wheel = new TimerWheel(start);
+        int[] delays = {1, 63, 64, 65, 4095, 4096, 4097, 300000, 20000000};
+        for (int i = 0; i < delays.length; i++) {
+            wheel.schedule(0, i, start + delays[i]);
+        }
+        final int[] firedAt = new int[delays.length];
+        final int[] now = {start};
+        // Advance in uneven steps, like a main loop that sometimes stalls.
+        while (now[0] < start + 20000001) {
+            now[0] += now[0] % 7 == 0 ? 1 : 997;
+            if (now[0] > start + 20000001) {
+                now[0] = start + 20000001;
+            }
+            int time = now[0];
+            wheel.advance(time, new TimerWheel.Handler() {
+                public void fire(int kind, int chatId) {
+                    firedAt[chatId] = time;
+                }
+            });
+        }
+        boolean exact = true;
+        for (int i = 0; i < delays.length; i++) {
+            // A timer fires in the advance() call that passes its deadline.
+            exact &= firedAt[i] >= start + delays[i] && firedAt[i] < start + delays[i] + 998;
+        }
+        testPassed &= assertTrue(exact, "Timers on every level should fire when their deadline passes");
+        testPassed &= assertEquals(0, wheel.size(), "Fired timers should be removed");
+        return testPassed;
+    }
+
+    private static boolean testRescheduleAndCancel() {
+        boolean testPassed = true;
+        TimerWheel wheel = new TimerWheel(1000);
+        List<Integer> fired = new ArrayList<>();
+        TimerWheel.Handler record = new TimerWheel.Handler() {
+            public void fire(int kind, int chatId) {
+                fired.add(kind * 1000 + chatId);
+            }
+        };
+        wheel.schedule(1, 5, 1010);
+        wheel.schedule(2, 5, 1010);
+        wheel.schedule(1, 6, 1010);
+        wheel.schedule(1, 5, 1100); // replaces the first one
+        wheel.cancel(1, 6);
+        testPassed &= assertEquals(2, wheel.size(), "Rescheduling should not add a second timer");
+        testPassed &= assertFalse(wheel.isScheduled(1, 6), "Cancelled timer should be gone");
+
+        wheel.advance(1050, record);
+        testPassed &= assertEquals(1, fired.size(), "Only the untouched timer should fire early");
+        testPassed &= assertEquals(2005, fired.get(0), "Timers of one chat are told apart by kind");
+        wheel.advance(1100, record);
+        testPassed &= assertEquals(2, fired.size(), "Rescheduled timer should fire at its new deadline");
+        testPassed &= assertEquals(1005, fired.get(1), "Rescheduled timer should fire once");
+        return testPassed;
+    }
+
+    private static boolean testPastDeadline() {
+        boolean testPassed = true;
+        TimerWheel wheel = new TimerWheel(5000);
+        final int[] count = {0};
+        final int[] seenChatId = {0};
+        wheel.schedule(0, -42, 10);
+        wheel.advance(5001, new TimerWheel.Handler() {
+            public void fire(int kind, int chatId) {
+                count[0]++;
+                seenChatId[0] = chatId;
+            }
+        });
+        testPassed &= assertEquals(1, count[0], "A deadline in the past should fire on the next tick");
+        testPassed &= assertEquals(-42, seenChatId[0], "Negative chat ids should round trip");
+        return testPassed;
+    }
+
+    private static boolean testRandomDeadlines() {
+        boolean testPassed = true;
+        Random rnd = new Random(7);
+        int start = 1;
+        TimerWheel wheel = new TimerWheel(start);
+        int[] deadlines = new int[5000];
+        for (int i = 0; i < deadlines.length; i++) {
+            deadlines[i] = start + 1 + rnd.nextInt(100000);
+            wheel.schedule(0, i, deadlines[i]);
+        }
+        final boolean[] ok = {true};
+        final int[] fired = {0};
+        for (int t = start + 1; t <= start + 100001; t++) {
+            final int time = t;
+            wheel.advance(time, new TimerWheel.Handler() {
+                public void fire(int kind, int chatId) {
+                    fired[0]++;
+                    ok[0] &= deadlines[chatId] == time;
+                }
+            });
+        }
+        testPassed &= assertEquals(deadlines.length, fired[0], "Every timer should fire exactly once");
+        testPassed &= assertTrue(ok[0], "Ticking every second should fire each timer at its deadline");
+        return testPassed;
+    }
+
+    private static boolean testEngineTimers() {
+        boolean testPassed = true;
+        TestEnvironment env = createTestEnvironment();
+        Client client = createPlayer(env, 300, "Waiting");
+        client.status = Client.Status.READY_TO_FIGHT;
+        client.readyToFightSince = (int) (System.currentTimeMillis() / 1000L) - 60;
+        env.storage.saveClient(client);
+        Client injured = createPlayer(env, 301, "Injured");
+        injured.hp = injured.getMaxHp() - 1;
+        injured.lastRestore = 0;
+        env.storage.saveClient(injured);
+
+        // A fresh engine picks the deadlines up from the stored clients.
+        GameEngine engine = new GameEngine(env.storage, env.telegram);
+        try {
+            Thread.sleep(1100);
+        } catch (InterruptedException e) {
+            // Ignore
+        }
+        engine.runBackgroundTasks();
+        testPassed &= assertEquals(Client.Status.FIGHTING.toString(), env.storage.getClientByChatId(300).status.toString(),
+            "Waiting player should get a bot once the delay has passed");
+        Client healed = env.storage.getClientByChatId(301);
+        testPassed &= assertEquals(healed.getMaxHp(), healed.hp, "Injured player should regenerate");
+        testPassed &= assertTrue(env.telegram.hasMessageForChatContaining(301, "vollständig erholt"),
+            "Fully recovered player should be told");
+        return testPassed;
+    }
+
+    private static boolean testNoRecoveryMessageWhenAlreadyFull() {
+        boolean testPassed = true;
+        TestEnvironment env = createTestEnvironment();
+        Client injured = createPlayer(env, 302, "Healed");
+        injured.hp = injured.getMaxHp() - 1;
+        // Recovered in about a second.
+        injured.lastRestore = (int) (System.currentTimeMillis() / 1000L) - Game.REGEN_INTERVAL_SECONDS + 1;
+        env.storage.saveClient(injured);
+        GameEngine engine = new GameEngine(env.storage, env.telegram);
+        // Hp is made full before the timer fires, e.g. by an admin reset.
+        Client healed = new Client(302, "Healed");
+        env.storage.saveClient(healed);
+        try {
+            Thread.sleep(2100);
+        } catch (InterruptedException e) {
+            // Ignore
+        }
+        engine.runBackgroundTasks();
+        testPassed &= assertFalse(env.telegram.hasMessageForChatContaining(302, "vollständig erholt"),
+            "A player who was not recovering should not be told they recovered");
+        return testPassed;
+    }
+}
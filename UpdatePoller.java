@@ -0,0 +1,171 @@
+package FightLang;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Downloads Telegram updates on its own thread and hands them to the game
+// loop through a bounded queue, so a slow command or disk write no longer
+// delays the next poll.
+//
+// When the queue is full the poller blocks before asking for more, which
+// keeps at most `capacity` fetched updates waiting. Asking for the next
+// offset already acknowledges the fetched updates to Telegram, so those
+// waiting updates are lost in a crash. Main saves maxUpdateId before it
+// processes an update, so an update that crashes the bot is not handled
+// again after a restart either.
+//
+// After an empty poll the poller waits before asking again, starting at
+// MIN_IDLE_SLEEP_MS and doubling up to maxIdleSleepMs while nothing comes in;
+// any update resets it. Time the request itself spent waiting counts towards
+// the pause, so long polls, which wait on Telegram's side, follow each other
+// directly.
+class UpdatePoller {
+  private static final long ERROR_BACKOFF_MS = 1000;
+  private static final long MIN_IDLE_SLEEP_MS = 25;
+  private static final long METRICS_INTERVAL_MS = 5 * 60 * 1000L;
+
+  private final TelegramInterface telegram;
+  private final BlockingQueue<Telegram.Update> queue;
+  private final long maxIdleSleepMs;
+  private volatile int nextOffset;
+  private Thread thread;
+
+  private final LatencyHistogram pollLatency = new LatencyHistogram();
+  private final AtomicLong polls = new AtomicLong();
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong blockedNanos = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private volatile int maxDepth = 0;
+
+  UpdatePoller(TelegramInterface telegram, int offset, int capacity, long maxIdleSleepMs) {
+    this.telegram = telegram;
+    this.nextOffset = offset;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.maxIdleSleepMs = maxIdleSleepMs;
+  }
+
+  synchronized void start() {
+    if (thread != null) {
+      return;
+    }
+    thread = new Thread(new Runnable() {
+      public void run() {
+        long lastMetrics = System.currentTimeMillis();
+        long idleSleepMs = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            long pollStart = System.currentTimeMillis();
+            if (pollOnce() > 0) {
+              idleSleepMs = 0;
+            } else {
+              idleSleepMs = nextIdleSleep(idleSleepMs, maxIdleSleepMs);
+              long sleepMs = idleSleepMs - (System.currentTimeMillis() - pollStart);
+              if (sleepMs > 0) {
+                Thread.sleep(sleepMs);
+              }
+            }
+            if (System.currentTimeMillis() - lastMetrics >= METRICS_INTERVAL_MS) {
+              lastMetrics = System.currentTimeMillis();
+              Logger.log(report());
+            }
+          } catch (InterruptedException e) {
+            return;
+          } catch (Exception e) {
+            errors.incrementAndGet();
+            Logger.logException(e);
+            try {
+              Thread.sleep(ERROR_BACKOFF_MS);
+            } catch (InterruptedException ie) {
+              return;
+            }
+          }
+        }
+      }
+    }, "update-poller");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  static long nextIdleSleep(long current, long max) {
+    return Math.min(max, current == 0 ? MIN_IDLE_SLEEP_MS : current * 2);
+  }
+
+  synchronized void stop() {
+    if (thread != null) {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+  // Fetches one batch and queues it in update id order, blocking while the
+  // queue is full. Returns the number of new updates.
+  int pollOnce() throws InterruptedException {
+    long start = System.nanoTime();
+    Telegram.Update[] updates = telegram.getUpdates(nextOffset);
+    pollLatency.recordSince(start);
+    polls.incrementAndGet();
+    Arrays.sort(updates, new Comparator<Telegram.Update>() {
+      public int compare(Telegram.Update u1, Telegram.Update u2) {
+        return u1.update_id - u2.update_id;
+      }
+    });
+    int queued = 0;
+    for (Telegram.Update upd : updates) {
+      if (upd.update_id < nextOffset) {
+        continue; // already queued by an earlier poll
+      }
+      if (!queue.offer(upd)) {
+        long blockedSince = System.nanoTime();
+        queue.put(upd);
+        blockedNanos.addAndGet(System.nanoTime() - blockedSince);
+      }
+      nextOffset = upd.update_id + 1;
+      received.incrementAndGet();
+      queued++;
+      maxDepth = Math.max(maxDepth, queue.size());
+    }
+    return queued;
+  }
+
+  // Moves up to max queued updates into batch, waiting up to waitMs for the
+  // first one. Returns the number of updates added.
+  int drainTo(Collection<Telegram.Update> batch, int max, long waitMs) throws InterruptedException {
+    Telegram.Update first = queue.poll(waitMs, TimeUnit.MILLISECONDS);
+    if (first == null) {
+      return 0;
+    }
+    batch.add(first);
+    return 1 + queue.drainTo(batch, max - 1);
+  }
+
+  int getQueueDepth() {
+    return queue.size();
+  }
+
+  int getMaxQueueDepth() {
+    return maxDepth;
+  }
+
+  long getPollCount() {
+    return polls.get();
+  }
+
+  long getReceivedCount() {
+    return received.get();
+  }
+
+  // Total time the poller waited for room in the queue.
+  long getBlockedMillis() {
+    return blockedNanos.get() / 1000000L;
+  }
+
+  String report() {
+    return String.format("updates: polls=%d received=%d depth=%d maxDepth=%d blocked=%dms errors=%d poll %s",
+        polls.get(), received.get(), queue.size(), maxDepth, getBlockedMillis(), errors.get(), pollLatency.snapshot());
+  }
+}
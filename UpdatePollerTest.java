@@ -0,0 +1,157 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the update ingestion thread: ordering and offsets, backpressure
+ * from a full queue, draining batches from the game loop, the idle backoff
+ * and long polling.
+ */
+public class UpdatePollerTest {
+
+    // Serves the updates with an id at or above the requested offset.
+    private static class FakeTelegram extends MockTelegram {
+        final List<Telegram.Update> server = new ArrayList<>();
+        final List<Integer> offsets = new ArrayList<>();
+
+        synchronized void add(int... ids) {
+            for (int id : ids) {
+                Telegram.Update u = new Telegram.Update();
+                u.update_id = id;
+                server.add(u);
+            }
+        }
+
+        @Override
+        public synchronized Telegram.Update[] getUpdates(int offset) {
+            offsets.add(offset);
+            List<Telegram.Update> result = new ArrayList<>();
+            for (Telegram.Update u : server) {
+                if (u.update_id >= offset) {
+                    result.add(u);
+                }
+            }
+            return result.toArray(new Telegram.Update[0]);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testOrderAndOffsets();
+        allTestsPassed &= testBackpressure();
+        allTestsPassed &= testPollingThread();
+        allTestsPassed &= testIdleBackoff();
+        allTestsPassed &= testLongPoll();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome update poller tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testOrderAndOffsets() throws Exception {
+        boolean testPassed = true;
+        FakeTelegram telegram = new FakeTelegram();
+        telegram.add(12, 10, 11);
+        UpdatePoller poller = new UpdatePoller(telegram, 10, 10, 0);
+        testPassed &= assertEquals(3, poller.pollOnce(), "All new updates should be queued");
+        telegram.add(13);
+        testPassed &= assertEquals(1, poller.pollOnce(), "Only updates after the last one should be queued");
+        testPassed &= assertEquals(13, (int) telegram.offsets.get(1), "Next poll should ask for the following offset");
+
+        List<Telegram.Update> batch = new ArrayList<>();
+        testPassed &= assertEquals(4, poller.drainTo(batch, 10, 0), "Drain should return everything queued");
+        testPassed &= assertEquals(10, batch.get(0).update_id, "Updates should come out in id order");
+        testPassed &= assertEquals(13, batch.get(3).update_id, "Updates should come out in id order");
+        return testPassed;
+    }
+
+    private static boolean testBackpressure() throws Exception {
+        boolean testPassed = true;
+        FakeTelegram telegram = new FakeTelegram();
+        telegram.add(1, 2, 3, 4, 5);
+        UpdatePoller poller = new UpdatePoller(telegram, 1, 2, 0);
+        Thread polling = new Thread(() -> {
+            try {
+                poller.pollOnce();
+            } catch (InterruptedException e) {
+                // test over
+            }
+        });
+        polling.start();
+        Thread.sleep(200);
+        testPassed &= assertTrue(polling.isAlive(), "Poller should block while the queue is full");
+        testPassed &= assertEquals(2, poller.getQueueDepth(), "Queue should not grow beyond its capacity");
+
+        List<Telegram.Update> batch = new ArrayList<>();
+        while (batch.size() < 5) {
+            poller.drainTo(batch, 5, 1000);
+        }
+        polling.join(1000);
+        testPassed &= assertTrue(!polling.isAlive(), "Poller should continue once the loop drains");
+        testPassed &= assertEquals(5, (int) poller.getReceivedCount(), "Every update should be delivered once");
+        testPassed &= assertEquals(2, poller.getMaxQueueDepth(), "Max depth should be recorded");
+        testPassed &= assertTrue(poller.getBlockedMillis() >= 100, "Blocked time should be recorded");
+        return testPassed;
+    }
+
+    private static boolean testPollingThread() throws Exception {
+        boolean testPassed = true;
+        FakeTelegram telegram = new FakeTelegram();
+        UpdatePoller poller = new UpdatePoller(telegram, 1, 10, 10);
+        poller.start();
+        List<Telegram.Update> batch = new ArrayList<>();
+        testPassed &= assertEquals(0, poller.drainTo(batch, 10, 50), "Drain should time out without updates");
+        telegram.add(1, 2);
+        int got = poller.drainTo(batch, 10, 2000);
+        if (got < 2) {
+            got += poller.drainTo(batch, 10, 2000);
+        }
+        testPassed &= assertEquals(2, got, "Updates should arrive while the loop waits");
+        poller.stop();
+        testPassed &= assertTrue(poller.report().contains("received=2"), "Report should include the counts");
+        return testPassed;
+    }
+
+    private static boolean testIdleBackoff() throws Exception {
+        boolean testPassed = true;
+        testPassed &= assertEquals(25, (int) UpdatePoller.nextIdleSleep(0, 500), "Backoff should start small");
+        testPassed &= assertEquals(400, (int) UpdatePoller.nextIdleSleep(200, 500), "Backoff should double");
+        testPassed &= assertEquals(500, (int) UpdatePoller.nextIdleSleep(400, 500), "Backoff should stop at the maximum");
+        testPassed &= assertEquals(0, (int) UpdatePoller.nextIdleSleep(0, 0), "A zero maximum should not sleep");
+
+        FakeTelegram telegram = new FakeTelegram();
+        UpdatePoller poller = new UpdatePoller(telegram, 1, 10, 200);
+        poller.start();
+        Thread.sleep(1000);
+        long idlePolls = poller.getPollCount();
+        // 25 + 50 + 100 + 200 + 200 + ... ms: a fixed 25 ms pause would poll 40 times.
+        testPassed &= assertTrue(idlePolls <= 12, "Idle poller should back off, polled " + idlePolls + " times");
+        poller.stop();
+        return testPassed;
+    }
+
+    private static boolean testLongPoll() throws Exception {
+        boolean testPassed = true;
+        MockTelegram telegram = new MockTelegram();
+        telegram.setPollWaitMs(5000);
+        UpdatePoller poller = new UpdatePoller(telegram, 1, 10, 500);
+        poller.start();
+        Thread.sleep(300);
+        testPassed &= assertEquals(1, telegram.getPollCount(), "An idle long poll should stay open");
+
+        List<Telegram.Update> batch = new ArrayList<>();
+        long sent = System.currentTimeMillis();
+        telegram.simulateUserMessage(1, "Eager", "/start");
+        testPassed &= assertEquals(1, poller.drainTo(batch, 10, 2000), "Update should be delivered");
+        long latency = System.currentTimeMillis() - sent;
+        testPassed &= assertTrue(latency < 200, "Update should arrive at once, took " + latency + "ms");
+        testPassed &= assertEquals("/start", batch.get(0).message.text, "Update should be passed on");
+        poller.stop();
+        return testPassed;
+    }
+}
@@ -0,0 +1,84 @@
+package FightLang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+// Processes a batch of updates on several threads. Updates are partitioned
+// by chat id, so all updates of one chat go to the same worker and run in
+// the order they arrived. run() returns only when the whole batch is done,
+// which keeps the background tasks that follow it single-threaded.
+//
+// Chats in different partitions can still meet in a fight; GameEngine locks
+// both of them (see ChatLocks).
+class UpdateWorkers {
+  private final int workers;
+  private final ExecutorService pool;
+
+  UpdateWorkers(int workers) {
+    this.workers = workers;
+    this.pool = Executors.newFixedThreadPool(workers, r -> {
+      Thread t = new Thread(r, "update-worker");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  void run(List<Telegram.Update> updates, Consumer<Telegram.Update> handler) throws Exception {
+    List<List<Telegram.Update>> partitions = new ArrayList<>();
+    for (int i = 0; i < workers; i++) {
+      partitions.add(new ArrayList<>());
+    }
+    for (Telegram.Update upd : updates) {
+      partitions.get(Math.floorMod(upd.message.chat.id, workers)).add(upd);
+    }
+    List<Future<Exception>> results = new ArrayList<>();
+    for (final List<Telegram.Update> partition : partitions) {
+      if (partition.isEmpty()) {
+        continue;
+      }
+      results.add(pool.submit(() -> {
+        // A failing update must not hold back the rest of its partition;
+        // the first failure is rethrown once the batch is done.
+        Exception failure = null;
+        for (Telegram.Update upd : partition) {
+          try {
+            handler.accept(upd);
+          } catch (Exception e) {
+            if (failure == null) {
+              failure = e;
+            } else {
+              Logger.logException(e);
+            }
+          }
+        }
+        return failure;
+      }));
+    }
+    Exception failure = null;
+    for (Future<Exception> result : results) {
+      Exception e;
+      try {
+        e = result.get();
+      } catch (ExecutionException error) {
+        throw new RuntimeException(error.getCause());
+      }
+      if (failure == null) {
+        failure = e;
+      } else if (e != null) {
+        Logger.logException(e);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  void shutdown() {
+    pool.shutdownNow();
+  }
+}
@@ -0,0 +1,194 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tests for partitioned multi-threaded update processing: per-chat order,
+ * matchmaking and fights between chats handled by different workers.
+ */
+public class UpdateWorkersTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testPerChatOrder();
+        allTestsPassed &= testConcurrentMatchmaking();
+        allTestsPassed &= testConcurrentFights();
+        allTestsPassed &= testChatLocks();
+        allTestsPassed &= testStaleReadyPlayerDropped();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome update worker tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testPerChatOrder() throws Exception {
+        boolean testPassed = true;
+        UpdateWorkers workers = new UpdateWorkers(4);
+        Map<Integer, List<Integer>> seen = new ConcurrentHashMap<>();
+        List<Telegram.Update> batch = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            batch.add(update(i, 100 + i % 20, String.valueOf(i)));
+        }
+        workers.run(batch, upd -> seen.computeIfAbsent(upd.message.chat.id, id -> new ArrayList<>())
+            .add(Integer.parseInt(upd.message.text)));
+        workers.shutdown();
+
+        boolean ordered = true;
+        int total = 0;
+        for (List<Integer> texts : seen.values()) {
+            total += texts.size();
+            for (int i = 1; i < texts.size(); i++) {
+                ordered &= texts.get(i - 1) < texts.get(i);
+            }
+        }
+        testPassed &= assertEquals(1000, total, "Every update should be handled once");
+        testPassed &= assertEquals(20, seen.size(), "Every chat should be handled");
+        testPassed &= assertTrue(ordered, "Updates of one chat should keep their order");
+        return testPassed;
+    }
+
+    private static boolean testConcurrentMatchmaking() throws Exception {
+        boolean testPassed = true;
+        TestEnvironment env = createTestEnvironment();
+        UpdateWorkers workers = new UpdateWorkers(8);
+        List<Telegram.Update> batch = new ArrayList<>();
+        int id = 1;
+        for (int round = 0; round < 5; round++) {
+            batch.clear();
+            for (int chatId = 100 + round * 40; chatId < 140 + round * 40; chatId++) {
+                batch.add(update(id++, chatId, "Kämpfen"));
+            }
+            workers.run(batch, env.engine::processUpdate);
+        }
+        workers.shutdown();
+
+        int fighting = 0;
+        boolean mutual = true;
+        for (Client client : env.storage.getAllClients().values()) {
+            if (client.status != Client.Status.FIGHTING) {
+                continue;
+            }
+            fighting++;
+            Client opponent = env.storage.getClientByChatId(client.fightingChatId);
+            mutual &= opponent != null && opponent.status == Client.Status.FIGHTING
+                && opponent.fightingChatId == client.chatId;
+        }
+        testPassed &= assertEquals(200, env.storage.getAllClients().size(), "Every player should be created");
+        testPassed &= assertTrue(fighting > 0, "Concurrent players should find opponents");
+        testPassed &= assertTrue(mutual, "Every fight should pair exactly two players");
+        return testPassed;
+    }
+
+    private static boolean testConcurrentFights() throws Exception {
+        boolean testPassed = true;
+        TestEnvironment env = createTestEnvironment();
+        for (int pair = 0; pair < 20; pair++) {
+            Client a = createPlayer(env, 1000 + pair, "A" + pair);
+            Client b = createPlayer(env, 2000 + pair, "B" + pair);
+            env.engine.prepareToFight(a, b);
+            env.storage.saveClients(a, b);
+        }
+        UpdateWorkers workers = new UpdateWorkers(8);
+        List<Telegram.Update> batch = new ArrayList<>();
+        int id = 1;
+        for (int hit = 0; hit < 30; hit++) {
+            for (int pair = 0; pair < 20; pair++) {
+                batch.add(update(id++, 1000 + pair, "Erfolg"));
+                batch.add(update(id++, 2000 + pair, "Erfolg"));
+            }
+        }
+        // Both sides of every fight hit at once on different workers; a lock
+        // order bug would hang here.
+        Thread runner = new Thread(() -> {
+            try {
+                workers.run(batch, env.engine::processUpdate);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        runner.setDaemon(true);
+        runner.start();
+        runner.join(30000);
+        testPassed &= assertFalse(runner.isAlive(), "Concurrent fights should not deadlock");
+        workers.shutdown();
+
+        boolean consistent = true;
+        for (int pair = 0; pair < 20; pair++) {
+            Client a = env.storage.getClientByChatId(1000 + pair);
+            Client b = env.storage.getClientByChatId(2000 + pair);
+            consistent &= a.totalFights == b.totalFights;
+            consistent &= (a.status == Client.Status.FIGHTING) == (b.status == Client.Status.FIGHTING);
+        }
+        testPassed &= assertTrue(consistent, "Both sides of a fight should see the same outcome");
+        return testPassed;
+    }
+
+    private static boolean testChatLocks() throws Exception {
+        boolean testPassed = true;
+        ChatLocks locks = new ChatLocks(16);
+        try (ChatLocks.Held held = locks.lock(1, 2)) {
+            testPassed &= assertTrue(held.covers(1) && held.covers(2), "Locked chats should be covered");
+            final boolean[] acquired = new boolean[1];
+            Thread other = new Thread(() -> {
+                try (ChatLocks.Held otherHeld = locks.lock(3)) {
+                    acquired[0] = otherHeld.tryAdd(2);
+                }
+            });
+            other.start();
+            other.join();
+            testPassed &= assertFalse(acquired[0], "A held chat should not be taken by another thread");
+        }
+        try (ChatLocks.Held held = locks.lock(3)) {
+            testPassed &= assertTrue(held.tryAdd(2), "A released chat should be free again");
+            held.release(2);
+            testPassed &= assertFalse(held.covers(2), "A chat let go of should not be covered");
+            testPassed &= assertTrue(held.covers(3), "Letting go of one chat should keep the others");
+            final boolean[] acquired = new boolean[1];
+            Thread other = new Thread(() -> {
+                try (ChatLocks.Held otherHeld = locks.lock(4)) {
+                    acquired[0] = otherHeld.tryAdd(2);
+                }
+            });
+            other.start();
+            other.join();
+            testPassed &= assertTrue(acquired[0], "A chat let go of should be free for other threads");
+        }
+        return testPassed;
+    }
+
+    private static boolean testStaleReadyPlayerDropped() {
+        boolean testPassed = true;
+        TestEnvironment env = createTestEnvironment();
+        env.engine.processUpdate(update(1, 700, "Kämpfen"));
+        testPassed &= assertEquals(1, env.engine.getReadyToFightCount(), "Player should be waiting");
+        // The waiting player left the queue without a fight.
+        Client gone = env.storage.getClientByChatId(700);
+        gone.status = Client.Status.IDLE;
+        env.storage.saveClient(gone);
+
+        env.engine.processUpdate(update(2, 701, "Kämpfen"));
+        testPassed &= assertEquals(Client.Status.READY_TO_FIGHT.toString(), env.storage.getClientByChatId(701).status.toString(),
+            "A player who stopped waiting should not be taken as opponent");
+        testPassed &= assertEquals(1, env.engine.getReadyToFightCount(), "The stale entry should be dropped");
+        return testPassed;
+    }
+
+    private static Telegram.Update update(int updateId, int chatId, String text) {
+        Telegram.Update upd = new Telegram.Update();
+        upd.update_id = updateId;
+        upd.message = new Telegram.Message();
+        upd.message.chat = new Telegram.Chat();
+        upd.message.chat.id = chatId;
+        upd.message.from = new Telegram.User();
+        upd.message.from.username = "p" + chatId;
+        upd.message.text = text;
+        return upd;
+    }
+}
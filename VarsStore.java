@@ -0,0 +1,172 @@
+package FightLang;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Small key/value store for int vars such as maxUpdateId, kept in one
+// memory-mapped file that stays open. A put is a few stores into the
+// mapping, so recording every update id costs no system call; the page
+// cache keeps the value if the process dies, and force() makes it durable
+// against a power loss once per loop cycle.
+//
+// Each var has a fixed 64-byte slot: a length-prefixed name followed by two
+// copies of (seq, value, crc32). A put overwrites the older copy, so a write
+// cut short leaves the other copy to win on the next start, like the slots
+// of MappedStorage.
+class VarsStore {
+  private static final int MAGIC = 0x464c5641; // "FLVA"
+  private static final int SLOT_SIZE = 64;
+  private static final int MAX_SLOTS = 63; // slot 0 is the header
+  private static final int NAME = 2;
+  private static final int MAX_NAME_BYTES = 38;
+  private static final int COPIES = NAME + MAX_NAME_BYTES;
+  private static final int COPY_SIZE = 12;
+
+  private static class Var {
+    final int slot;
+    final byte[] name;
+    int seq;
+    int value;
+    boolean set = false;
+
+    Var(int slot, byte[] name) {
+      this.slot = slot;
+      this.name = name;
+    }
+  }
+
+  private final RandomAccessFile file;
+  private final MappedByteBuffer map;
+  private final boolean fsync;
+  private final Map<String, Var> vars = new HashMap<>();
+  private int nextSlot = 1;
+  private boolean dirty = false;
+
+  VarsStore(String path, boolean fsync) throws IOException {
+    this.fsync = fsync;
+    file = new RandomAccessFile(new File(path), "rw");
+    boolean fresh = file.length() == 0;
+    map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SLOT_SIZE * (MAX_SLOTS + 1));
+    if (fresh || map.getInt(0) != MAGIC) {
+      map.putInt(0, MAGIC);
+      return;
+    }
+    for (int slot = 1; slot <= MAX_SLOTS; slot++) {
+      int base = slot * SLOT_SIZE;
+      int length = map.getShort(base);
+      if (length <= 0 || length > MAX_NAME_BYTES) {
+        continue;
+      }
+      byte[] name = new byte[length];
+      for (int i = 0; i < length; i++) {
+        name[i] = map.get(base + NAME + i);
+      }
+      Var var = new Var(slot, name);
+      for (int copy = 0; copy < 2; copy++) {
+        int at = base + COPIES + copy * COPY_SIZE;
+        int seq = map.getInt(at);
+        int value = map.getInt(at + 4);
+        if (map.getInt(at + 8) == checksum(name, seq, value) && (!var.set || seq - var.seq > 0)) {
+          var.seq = seq;
+          var.value = value;
+          var.set = true;
+        }
+      }
+      vars.put(new String(name, StandardCharsets.UTF_8), var);
+      nextSlot = slot + 1;
+    }
+  }
+
+  synchronized Map<String, Integer> getAll() {
+    Map<String, Integer> result = new HashMap<>();
+    for (Map.Entry<String, Var> e : vars.entrySet()) {
+      if (e.getValue().set) {
+        result.put(e.getKey(), e.getValue().value);
+      }
+    }
+    return result;
+  }
+
+  synchronized Integer getInt(String name) {
+    Var var = vars.get(name);
+    return var == null || !var.set ? null : var.value;
+  }
+
+  // Returns false when the var does not fit, so the caller can keep it
+  // elsewhere.
+  synchronized boolean putInt(String name, int value) {
+    Var var = vars.get(name);
+    if (var == null) {
+      var = create(name);
+      if (var == null) {
+        return false;
+      }
+    } else if (var.set && var.value == value) {
+      return true;
+    }
+    var.seq++;
+    var.value = value;
+    var.set = true;
+    int at = var.slot * SLOT_SIZE + COPIES + (var.seq & 1) * COPY_SIZE;
+    map.putInt(at, var.seq);
+    map.putInt(at + 4, value);
+    map.putInt(at + 8, checksum(var.name, var.seq, value));
+    dirty = true;
+    return true;
+  }
+
+  synchronized void flush() {
+    if (fsync && dirty) {
+      map.force();
+      StorageStats.fsynced();
+    }
+    dirty = false;
+  }
+
+  synchronized void close() {
+    flush();
+    try {
+      file.close();
+    } catch (IOException e) {
+      Logger.logException(e);
+    }
+  }
+
+  private Var create(String name) {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_NAME_BYTES || nextSlot > MAX_SLOTS) {
+      return null;
+    }
+    int slot = nextSlot++;
+    int base = slot * SLOT_SIZE;
+    for (int i = 0; i < SLOT_SIZE; i++) {
+      map.put(base + i, (byte) 0);
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      map.put(base + NAME + i, bytes[i]);
+    }
+    // The name goes in last, so a half-created slot stays empty.
+    map.putShort(base, (short) bytes.length);
+    Var var = new Var(slot, bytes);
+    vars.put(name, var);
+    return var;
+  }
+
+  private static int checksum(byte[] name, int seq, int value) {
+    CRC32 crc = new CRC32();
+    crc.update(name);
+    crc.update(new byte[] {
+      (byte) (seq >>> 24), (byte) (seq >>> 16), (byte) (seq >>> 8), (byte) seq,
+      (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+    return (int) crc.getValue();
+  }
+}
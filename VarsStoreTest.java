@@ -0,0 +1,96 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests for the memory-mapped vars store: reopen, recovery from a torn
+ * write and reading vars written by older versions.
+ */
+public class VarsStoreTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testPutAndReopen();
+        allTestsPassed &= testTornWriteKeepsPreviousValue();
+        allTestsPassed &= testLegacyVarFile();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome vars store tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testPutAndReopen() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("varsstore");
+        String path = dir.getPath() + "/vars/vars.map";
+
+        VarsStore store = new VarsStore(path, true);
+        testPassed &= assertTrue(store.getInt("maxUpdateId") == null, "Unknown var should be null");
+        for (int id = 1; id <= 1000; id++) {
+            store.putInt("maxUpdateId", id);
+        }
+        store.putInt("other", -5);
+        store.flush();
+        store.close();
+
+        store = new VarsStore(path, true);
+        testPassed &= assertEquals(1000, store.getInt("maxUpdateId"), "Latest value should survive reopening");
+        testPassed &= assertEquals(-5, store.getInt("other"), "Each var should keep its own slot");
+        store.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testTornWriteKeepsPreviousValue() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("varsstore");
+        String path = dir.getPath() + "/vars/vars.map";
+
+        VarsStore store = new VarsStore(path, false);
+        store.putInt("maxUpdateId", 41);
+        store.putInt("maxUpdateId", 42);
+        store.close();
+
+        // Corrupt the value of the newer copy (seq 2, second copy) as if the
+        // process died half way through the put.
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            raf.seek(64 + 40 + 0 * 12 + 4);
+            raf.writeInt(99);
+        }
+        store = new VarsStore(path, false);
+        testPassed &= assertEquals(41, store.getInt("maxUpdateId"), "Torn write should fall back to the previous value");
+        store.putInt("maxUpdateId", 43);
+        store.close();
+        store = new VarsStore(path, false);
+        testPassed &= assertEquals(43, store.getInt("maxUpdateId"), "Writes after recovery should win");
+        store.close();
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+
+    private static boolean testLegacyVarFile() throws Exception {
+        boolean testPassed = true;
+        File dir = createTempDb("varsstore");
+
+        try (FileWriter fw = new FileWriter(new File(dir, "vars/maxUpdateId.db"))) {
+            fw.write("123");
+        }
+        Storage storage = new Storage();
+        testPassed &= assertEquals(123, storage.getMaxUpdateId(), "Var file of older versions should be read");
+        storage.saveMaxUpdateId(124);
+        testPassed &= assertEquals(124, storage.getMaxUpdateId(), "Saved var should come from the map");
+        Logger.setDbPath(dir.getPath()); // reopens the map
+        testPassed &= assertEquals(124, storage.getMaxUpdateId(), "Saved var should survive reopening");
+
+        deleteRecursively(dir);
+        return testPassed;
+    }
+}
@@ -0,0 +1,96 @@
+package FightLang;
+
+import java.util.Set;
+import java.util.stream.Stream;
+
+// Outermost decorator that gives every client record a version. Each save
+// bumps Client.version, and saveIfVersion() checks the stored version and
+// saves under the same lock, so a writer holding a stale copy of a client
+// is told instead of silently overwriting newer state. Conflicts are counted
+// and logged.
+class VersionedStorage implements StorageInterface {
+  private final StorageInterface delegate;
+  private long conflicts = 0;
+
+  VersionedStorage(StorageInterface delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public synchronized void saveClients(Client... clients) {
+    for (Client client : clients) {
+      client.version++;
+    }
+    delegate.saveClients(clients);
+  }
+
+  @Override
+  public synchronized void saveClient(Client client) {
+    client.version++;
+    delegate.saveClient(client);
+  }
+
+  @Override
+  public synchronized boolean saveIfVersion(Client client, int expectedVersion) {
+    Client stored = delegate.getClientByChatId(client.chatId);
+    int current = stored == null ? 0 : stored.version;
+    if (stored != client && current != expectedVersion) {
+      conflicts++;
+      Logger.log("Version conflict saving " + client.chatId + ": expected "
+          + expectedVersion + ", stored " + current);
+      return false;
+    }
+    client.version = current + 1;
+    delegate.saveClient(client);
+    return true;
+  }
+
+  @Override
+  public Stream<Client> streamClients() {
+    return delegate.streamClients();
+  }
+
+  @Override
+  public Stream<Client> streamAllClients() {
+    return delegate.streamAllClients();
+  }
+
+  @Override
+  public void forEachIndexedClient(ClientDo doable) {
+    delegate.forEachIndexedClient(doable);
+  }
+
+  @Override
+  public Client getClientByChatId(int chatId) {
+    return delegate.getClientByChatId(chatId);
+  }
+
+  @Override
+  public Client[] getClientsByChatIds(Set<Integer> chatIds) {
+    return delegate.getClientsByChatIds(chatIds);
+  }
+
+  @Override
+  public void deleteClient(int chatId) {
+    delegate.deleteClient(chatId);
+  }
+
+  @Override
+  public int getMaxUpdateId() {
+    return delegate.getMaxUpdateId();
+  }
+
+  @Override
+  public void saveMaxUpdateId(int id) {
+    delegate.saveMaxUpdateId(id);
+  }
+
+  @Override
+  public void flush() {
+    delegate.flush();
+  }
+
+  synchronized long getConflictCount() {
+    return conflicts;
+  }
+}
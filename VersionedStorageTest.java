@@ -0,0 +1,73 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+import java.io.File;
+
+/**
+ * Tests for per-record versions: version bumps on save and compare-and-set
+ * saves that reject stale copies.
+ */
+public class VersionedStorageTest {
+
+    public static void main(String[] args) throws Exception {
+        boolean allTestsPassed = true;
+
+        File dir = createTempDb("versionedstorage");
+        allTestsPassed &= testSaveBumpsVersion();
+        allTestsPassed &= testStaleCopyRejected();
+        allTestsPassed &= testNewClientCreated();
+        deleteRecursively(dir);
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome versioned storage tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testSaveBumpsVersion() {
+        boolean testPassed = true;
+        VersionedStorage storage = new VersionedStorage(new Storage());
+        Client client = new Client(1, "Versioned");
+        storage.saveClient(client);
+        storage.saveClients(client, new Client(2, "Other"));
+        testPassed &= assertEquals(2, client.version, "Every save should bump the version");
+        testPassed &= assertEquals(2, storage.getClientByChatId(1).version, "Version should be stored with the record");
+        return testPassed;
+    }
+
+    private static boolean testStaleCopyRejected() {
+        boolean testPassed = true;
+        VersionedStorage storage = new VersionedStorage(new Storage());
+        storage.saveClient(new Client(3, "Contended"));
+
+        // Background regen and a fight hit both load the client.
+        Client regen = storage.getClientByChatId(3);
+        Client hit = storage.getClientByChatId(3);
+        int regenVersion = regen.version;
+
+        hit.hp -= 2;
+        storage.saveClient(hit);
+
+        regen.hp++;
+        testPassed &= assertTrue(!storage.saveIfVersion(regen, regenVersion), "Stale copy should be rejected");
+        testPassed &= assertEquals(1, (int) storage.getConflictCount(), "Conflict should be counted");
+        testPassed &= assertEquals(hit.hp, storage.getClientByChatId(3).hp, "Newer state must not be overwritten");
+
+        Client fresh = storage.getClientByChatId(3);
+        fresh.hp++;
+        testPassed &= assertTrue(storage.saveIfVersion(fresh, fresh.version), "Retry on a fresh copy should succeed");
+        testPassed &= assertEquals(hit.hp + 1, storage.getClientByChatId(3).hp, "Retried change should be stored");
+        return testPassed;
+    }
+
+    private static boolean testNewClientCreated() {
+        boolean testPassed = true;
+        VersionedStorage storage = new VersionedStorage(new Storage());
+        Client client = new Client(4, "New");
+        testPassed &= assertTrue(storage.saveIfVersion(client, 0), "Unknown client should be created at version 0");
+        testPassed &= assertTrue(!storage.saveIfVersion(new Client(4, "Duplicate"), 0), "Second create should conflict");
+        testPassed &= assertEquals("New", storage.getClientByChatId(4).username, "First create should win");
+        return testPassed;
+    }
+}
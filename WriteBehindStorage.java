@@ -0,0 +1,187 @@
+package FightLang;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+// Caching decorator that keeps recently used clients in memory and defers
+// writes. A save only marks the client dirty; dirty clients are written to
+// the underlying store once per flush, so the two or three saves a single
+// command triggers end up as one write. Flushes happen when Main calls
+// flush() at the end of a loop cycle, or earlier when the interval elapses
+// or too many clients are dirty.
+//
+// Like MockStorage, reads hand out the cached instance, so callers see the
+// latest in-memory state of a client. A crash loses at most the writes of
+// the current flush window.
+class WriteBehindStorage implements StorageInterface {
+  private final StorageInterface delegate;
+  private final int maxCached;
+  private final int maxDirty;
+  private final long flushIntervalMs;
+  private final Map<Integer, Client> cache;
+  private final Set<Integer> dirty = new LinkedHashSet<>();
+  private long lastFlush = System.currentTimeMillis();
+
+  private long saves = 0;
+  private long writes = 0;
+  private long coalesced = 0;
+  private long flushes = 0;
+
+  WriteBehindStorage(StorageInterface delegate, int maxCached, int maxDirty, long flushIntervalMs) {
+    this.delegate = delegate;
+    this.maxCached = maxCached;
+    this.maxDirty = maxDirty;
+    this.flushIntervalMs = flushIntervalMs;
+    this.cache = new LinkedHashMap<Integer, Client>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Client> eldest) {
+        if (size() <= WriteBehindStorage.this.maxCached) {
+          return false;
+        }
+        if (dirty.remove(eldest.getKey())) {
+          WriteBehindStorage.this.delegate.saveClient(eldest.getValue());
+          writes++;
+        }
+        return true;
+      }
+    };
+  }
+
+  @Override
+  public synchronized void saveClients(Client... clients) {
+    for (Client client : clients) {
+      markDirty(client);
+    }
+    flushIfNeeded();
+  }
+
+  @Override
+  public synchronized void saveClient(Client client) {
+    markDirty(client);
+    flushIfNeeded();
+  }
+
+  @Override
+  public Stream<Client> streamClients() {
+    flush();
+    return delegate.streamClients().map(c -> {
+      Client cached;
+      synchronized (WriteBehindStorage.this) {
+        cached = cache.get(c.chatId);
+      }
+      return cached != null ? cached : c;
+    });
+  }
+
+  @Override
+  public Stream<Client> streamAllClients() {
+    flush();
+    return delegate.streamAllClients().map(c -> {
+      Client cached;
+      synchronized (WriteBehindStorage.this) {
+        cached = cache.get(c.chatId);
+      }
+      return cached != null ? cached : c;
+    });
+  }
+
+  @Override
+  public synchronized Client getClientByChatId(int chatId) {
+    Client client = cache.get(chatId);
+    if (client != null) {
+      return client;
+    }
+    client = delegate.getClientByChatId(chatId);
+    if (client != null) {
+      cache.put(chatId, client);
+    }
+    return client;
+  }
+
+  @Override
+  public synchronized Client[] getClientsByChatIds(Set<Integer> chatIds) {
+    Client[] result = new Client[chatIds.size()];
+    int i = 0;
+    for (int chatId : chatIds) {
+      result[i] = getClientByChatId(chatId);
+      i++;
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized void deleteClient(int chatId) {
+    dirty.remove(chatId);
+    cache.remove(chatId);
+    delegate.deleteClient(chatId);
+  }
+
+  @Override
+  public int getMaxUpdateId() {
+    return delegate.getMaxUpdateId();
+  }
+
+  @Override
+  public void saveMaxUpdateId(int id) {
+    delegate.saveMaxUpdateId(id);
+  }
+
+  @Override
+  public synchronized void flush() {
+    if (!dirty.isEmpty()) {
+      Client[] toWrite = new Client[dirty.size()];
+      int i = 0;
+      for (int chatId : dirty) {
+        toWrite[i] = cache.get(chatId);
+        i++;
+      }
+      dirty.clear();
+      delegate.saveClients(toWrite);
+      writes += toWrite.length;
+      flushes++;
+    }
+    lastFlush = System.currentTimeMillis();
+    delegate.flush();
+  }
+
+  // Number of saveClient(s) calls per client handed to this store.
+  synchronized long getSaveCount() {
+    return saves;
+  }
+
+  // Number of client records actually written to the underlying store.
+  synchronized long getWriteCount() {
+    return writes;
+  }
+
+  // Saves that were absorbed because the client was already dirty.
+  synchronized long getCoalescedCount() {
+    return coalesced;
+  }
+
+  synchronized long getFlushCount() {
+    return flushes;
+  }
+
+  synchronized int getDirtyCount() {
+    return dirty.size();
+  }
+
+  private void markDirty(Client client) {
+    saves++;
+    cache.put(client.chatId, client);
+    if (!dirty.add(client.chatId)) {
+      coalesced++;
+    }
+  }
+
+  private void flushIfNeeded() {
+    if (dirty.size() >= maxDirty
+        || System.currentTimeMillis() - lastFlush >= flushIntervalMs) {
+      flush();
+    }
+  }
+}
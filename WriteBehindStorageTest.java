@@ -0,0 +1,115 @@
+package FightLang;
+
+import static FightLang.TestHelper.*;
+
+/**
+ * Tests for the write-behind client cache: coalescing of repeated saves,
+ * the dirty-count flush threshold, eviction and transparency to GameEngine.
+ */
+public class WriteBehindStorageTest {
+
+    // MockStorage that counts how many client records reach it.
+    private static class CountingStorage extends MockStorage {
+        int writes = 0;
+
+        @Override
+        public void saveClients(Client... clients) {
+            writes += clients.length;
+            super.saveClients(clients);
+        }
+
+        @Override
+        public void saveClient(Client client) {
+            writes++;
+            super.saveClient(client);
+        }
+    }
+
+    public static void main(String[] args) {
+        boolean allTestsPassed = true;
+
+        allTestsPassed &= testCoalescing();
+        allTestsPassed &= testDirtyThreshold();
+        allTestsPassed &= testEvictionWritesDirtyClient();
+        allTestsPassed &= testTaskCommandWritesOnce();
+
+        if (!allTestsPassed) {
+            System.out.println("\nSome write-behind storage tests failed!");
+            System.exit(1);
+        }
+    }
+
+    private static boolean testCoalescing() {
+        boolean testPassed = true;
+        CountingStorage backend = new CountingStorage();
+        WriteBehindStorage storage = new WriteBehindStorage(backend, 100, 100, 60000);
+
+        Client client = new Client(100, "Saver");
+        storage.saveClient(client);
+        client.exp = 10;
+        storage.saveClient(client);
+        storage.saveClients(client, new Client(200, "Other"));
+
+        testPassed &= assertEquals(0, backend.writes, "Nothing should be written before flush");
+        testPassed &= assertTrue(storage.getClientByChatId(100) == client, "Reads should be served from the cache");
+
+        storage.flush();
+        testPassed &= assertEquals(2, backend.writes, "Each dirty client should be written once");
+        testPassed &= assertEquals(4, (int) storage.getSaveCount(), "All saves should be counted");
+        testPassed &= assertEquals(2, (int) storage.getCoalescedCount(), "Repeated saves should be coalesced");
+        testPassed &= assertEquals(10, backend.getClientByChatId(100).exp, "Flushed state should be the latest one");
+
+        storage.flush();
+        testPassed &= assertEquals(2, backend.writes, "Flush without dirty clients should write nothing");
+        return testPassed;
+    }
+
+    private static boolean testDirtyThreshold() {
+        boolean testPassed = true;
+        CountingStorage backend = new CountingStorage();
+        WriteBehindStorage storage = new WriteBehindStorage(backend, 100, 3, 60000);
+
+        storage.saveClient(new Client(1, "A"));
+        storage.saveClient(new Client(2, "B"));
+        testPassed &= assertEquals(0, backend.writes, "Below threshold nothing should be written");
+        storage.saveClient(new Client(3, "C"));
+        testPassed &= assertEquals(3, backend.writes, "Reaching the dirty threshold should flush");
+        testPassed &= assertEquals(0, storage.getDirtyCount(), "Nothing should stay dirty after flush");
+        return testPassed;
+    }
+
+    private static boolean testEvictionWritesDirtyClient() {
+        boolean testPassed = true;
+        CountingStorage backend = new CountingStorage();
+        WriteBehindStorage storage = new WriteBehindStorage(backend, 2, 100, 60000);
+
+        storage.saveClient(new Client(1, "A"));
+        storage.saveClient(new Client(2, "B"));
+        storage.saveClient(new Client(3, "C"));
+        testPassed &= assertEquals(1, backend.writes, "Evicted dirty client should be written");
+        testPassed &= assertTrue(backend.getClientByChatId(1) != null, "Evicted client should reach the backend");
+        storage.flush();
+        testPassed &= assertEquals(3, backend.writes, "Remaining dirty clients should be written on flush");
+        return testPassed;
+    }
+
+    private static boolean testTaskCommandWritesOnce() {
+        boolean testPassed = true;
+        CountingStorage backend = new CountingStorage();
+        WriteBehindStorage storage = new WriteBehindStorage(backend, 100, 100, 60000);
+        MockTelegram telegram = new MockTelegram();
+        GameEngine engine = new GameEngine(storage, telegram);
+
+        telegram.simulateUserMessage(100, "Worker", "/start");
+        telegram.simulateUserMessage(100, "Worker", "Aufgabe");
+        for (Telegram.Update upd : telegram.getUpdates(1)) {
+            engine.processUpdate(upd);
+        }
+        storage.flush();
+
+        testPassed &= assertEquals(1, backend.writes, "Several commands in one cycle should write the client once");
+        testPassed &= assertTrue(storage.getCoalescedCount() >= 2, "Aufgabe saves should be coalesced");
+        testPassed &= assertEquals(1, backend.getClientByChatId(100).getSuccessToday(), "Task success should be persisted");
+        return testPassed;
+    }
+}